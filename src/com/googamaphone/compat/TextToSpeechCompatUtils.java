@@ -0,0 +1,158 @@
+package com.googamaphone.compat;
+
+import java.lang.reflect.Method;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+import android.speech.tts.UtteranceProgressListener;
+
+public class TextToSpeechCompatUtils {
+    private static final Class<?> CLASS_TextToSpeech = TextToSpeech.class;
+    private static final Method METHOD_getMaxSpeechInputLength = ReflectUtils.getMethod(
+            CLASS_TextToSpeech, "getMaxSpeechInputLength");
+
+    /** Error code used when the platform doesn't report a specific error. */
+    public static final int ERROR_UNKNOWN = -1;
+
+    /**
+     * The input limit enforced by platforms before API 18, which don't report
+     * it.
+     */
+    public static final int DEFAULT_MAX_SPEECH_INPUT_LENGTH = 4000;
+
+    /**
+     * @return The maximum number of characters that can be passed to
+     *         {@link TextToSpeech#speak} or
+     *         {@link TextToSpeech#synthesizeToFile} in a single call.
+     */
+    public static final int getMaxSpeechInputLength() {
+        return (Integer) ReflectUtils.invoke(null, METHOD_getMaxSpeechInputLength,
+                DEFAULT_MAX_SPEECH_INPUT_LENGTH);
+    }
+
+    /**
+     * Sets a listener for utterance events on the specified engine. Start,
+     * error, stop, and range events are only reported on platforms that
+     * support them. On older platforms, errors are reported as completions.
+     *
+     * @param tts The text-to-speech engine.
+     * @param listener The listener, or {@code null} to remove the current
+     *            listener.
+     */
+    @SuppressWarnings("deprecation")
+    public static void setUtteranceListener(TextToSpeech tts, UtteranceListener listener) {
+        if (Build.VERSION.SDK_INT >= 15) {
+            new SetProgressListener(tts, listener).run();
+        } else if (listener == null) {
+            tts.setOnUtteranceCompletedListener(null);
+        } else {
+            tts.setOnUtteranceCompletedListener(new CompletionForwarder(listener));
+        }
+    }
+
+    /**
+     * Receives utterance events. Callbacks may arrive on any thread, but
+     * callbacks from a single engine are delivered one at a time.
+     */
+    public interface UtteranceListener {
+        public void onUtteranceStarted(String utteranceId);
+
+        public void onUtteranceDone(String utteranceId);
+
+        public void onUtteranceError(String utteranceId, int errorCode);
+
+        /**
+         * Called when an utterance is stopped or flushed from the queue. Only
+         * reported on API 23 and above.
+         */
+        public void onUtteranceStopped(String utteranceId, boolean interrupted);
+
+        /**
+         * Called when the engine starts speaking a range of an utterance. Only
+         * reported on API 26 and above, and only by some engines.
+         *
+         * @param utteranceId The utterance being spoken.
+         * @param start The start of the range, relative to the utterance text.
+         * @param end The end of the range.
+         */
+        public void onUtteranceRangeStarted(String utteranceId, int start, int end);
+    }
+
+    private static class CompletionForwarder implements OnUtteranceCompletedListener {
+        private final UtteranceListener mListener;
+
+        public CompletionForwarder(UtteranceListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onUtteranceCompleted(String utteranceId) {
+            mListener.onUtteranceDone(utteranceId);
+        }
+    }
+
+    @TargetApi(15)
+    private static class SetProgressListener implements Runnable {
+        private final TextToSpeech mTts;
+        private final UtteranceListener mListener;
+
+        public SetProgressListener(TextToSpeech tts, UtteranceListener listener) {
+            mTts = tts;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (mListener == null) {
+                mTts.setOnUtteranceProgressListener(null);
+            } else {
+                mTts.setOnUtteranceProgressListener(new ProgressForwarder(mListener));
+            }
+        }
+    }
+
+    /**
+     * Forwards progress events. Methods added after API 15 can't be annotated
+     * as overrides when building against older platforms.
+     */
+    @TargetApi(15)
+    private static class ProgressForwarder extends UtteranceProgressListener {
+        private final UtteranceListener mListener;
+
+        public ProgressForwarder(UtteranceListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onStart(String utteranceId) {
+            mListener.onUtteranceStarted(utteranceId);
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            mListener.onUtteranceDone(utteranceId);
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            mListener.onUtteranceError(utteranceId, ERROR_UNKNOWN);
+        }
+
+        /** Added in API 21. */
+        public void onError(String utteranceId, int errorCode) {
+            mListener.onUtteranceError(utteranceId, errorCode);
+        }
+
+        /** Added in API 23. */
+        public void onStop(String utteranceId, boolean interrupted) {
+            mListener.onUtteranceStopped(utteranceId, interrupted);
+        }
+
+        /** Added in API 26. */
+        public void onRangeStart(String utteranceId, int start, int end, int frame) {
+            mListener.onUtteranceRangeStarted(utteranceId, start, end);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.googamaphone.typeandspeak.utils.LogUtils;
+
+import android.util.Log;
+
+/**
+ * Stores text extracted from web pages on disk, keyed by URL, along with the
+ * validators needed to check whether the page has changed. The least
+ * recently used entries are deleted when the cache grows beyond its maximum
+ * size.
+ * <p>
+ * Entries are compressed with GZIP and named by a hash of their URL. Like
+ * {@link SynthesisCache}, access order is kept in each file's modification
+ * time. All methods are thread-safe.
+ */
+public class ArticleCache {
+    private static final String EXTENSION = ".gz";
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Version of the entry file format. */
+    private static final int VERSION = 1;
+
+    /** Distinguishes URL hashes from synthesis keys. */
+    private static final String KEY_PREFIX = "article";
+
+    /** Entry sizes by key, in access order. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    private long mSize = 0;
+
+    /** Whether the directory has been scanned for existing entries. */
+    private boolean mLoaded = false;
+
+    /**
+     * @param directory The directory to store entries in. It is created if
+     *            necessary and should not be used for anything else.
+     * @param maxSize The maximum total size of the compressed entries, in
+     *            bytes.
+     */
+    public ArticleCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Looks up the entry for a URL and marks it as the most recently used.
+     *
+     * @param url The URL of the page.
+     * @return The entry, or {@code null} if there's no readable entry.
+     */
+    public synchronized Entry get(String url) {
+        loadIfNeeded();
+
+        final String key = getKey(url);
+
+        if ((key == null) || (mEntries.get(key) == null)) {
+            return null;
+        }
+
+        final File file = getFile(key);
+        final Entry entry;
+
+        try {
+            entry = read(file);
+        } catch (final IOException e) {
+            // Deleted externally or truncated.
+            remove(key);
+            return null;
+        }
+
+        if (!url.equals(entry.url)) {
+            // A hash collision, which put will resolve.
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+
+        return entry;
+    }
+
+    /**
+     * Stores an entry, replacing any entry for the same URL, then deletes
+     * the least recently used entries until the cache fits within its
+     * maximum size.
+     *
+     * @return {@code true} if the entry was stored.
+     */
+    public synchronized boolean put(Entry entry) {
+        loadIfNeeded();
+
+        final String key = getKey(entry.url);
+
+        if (key == null) {
+            return false;
+        }
+
+        final File file = getFile(key);
+        final File temp = new File(mDirectory, key + ".tmp");
+
+        try {
+            write(temp, entry);
+        } catch (final IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to cache %s: %s", entry.url, e.toString());
+            temp.delete();
+            return false;
+        }
+
+        if ((temp.length() > mMaxSize) || !temp.renameTo(file)) {
+            temp.delete();
+            return false;
+        }
+
+        final Long previous = mEntries.put(key, file.length());
+
+        if (previous != null) {
+            mSize -= previous;
+        }
+
+        mSize += file.length();
+
+        trimToSize();
+
+        return true;
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public synchronized void clear() {
+        loadIfNeeded();
+
+        for (String key : mEntries.keySet()) {
+            getFile(key).delete();
+        }
+
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return The total size of the compressed entries, in bytes.
+     */
+    public synchronized long getSize() {
+        loadIfNeeded();
+
+        return mSize;
+    }
+
+    private static String getKey(String url) {
+        return SynthesisCache.hash(KEY_PREFIX, url);
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + EXTENSION);
+    }
+
+    private void remove(String key) {
+        final Long size = mEntries.remove(key);
+
+        if (size != null) {
+            mSize -= size;
+        }
+
+        getFile(key).delete();
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+
+            getFile(entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads the existing entries, oldest first, and deletes any left over
+     * from interrupted writes.
+     */
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtils.log(this, Log.ERROR, "Failed to create cache directory %s", mDirectory);
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, LAST_MODIFIED_COMPARATOR);
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (!name.endsWith(EXTENSION)) {
+                file.delete();
+                continue;
+            }
+
+            final String key = name.substring(0, name.length() - EXTENSION.length());
+            final long size = file.length();
+
+            mEntries.put(key, size);
+            mSize += size;
+        }
+
+        trimToSize();
+    }
+
+    private static Entry read(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(
+                file), BUFFER_SIZE));
+
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown version");
+            }
+
+            final String url = in.readUTF();
+            final String etag = in.readUTF();
+            final long lastModified = in.readLong();
+            final long fetchTime = in.readLong();
+
+            // The text follows the header, and may be longer than readUTF
+            // allows.
+            final Reader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+            final StringBuilder text = new StringBuilder();
+            final char[] buffer = new char[BUFFER_SIZE];
+            int count;
+
+            while ((count = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, count);
+            }
+
+            return new Entry(url, text.toString(), (etag.length() == 0) ? null : etag,
+                    lastModified, fetchTime);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, Entry entry) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE));
+
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(entry.url);
+            out.writeUTF((entry.etag == null) ? "" : entry.etag);
+            out.writeLong(entry.lastModified);
+            out.writeLong(entry.fetchTime);
+
+            final Writer writer = new OutputStreamWriter(out, CHARSET);
+
+            writer.write(entry.text);
+            writer.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final Comparator<File> LAST_MODIFIED_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            final long lhsModified = lhs.lastModified();
+            final long rhsModified = rhs.lastModified();
+
+            return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+        }
+    };
+
+    /**
+     * The extracted text of a page and its validators.
+     */
+    public static class Entry {
+        public final String url;
+        public final String text;
+
+        /** The entity tag sent by the server, or {@code null} if none. */
+        public final String etag;
+
+        /** The last modified time sent by the server, or {@code 0} if none. */
+        public final long lastModified;
+
+        /** The time the page was last fetched or revalidated. */
+        public final long fetchTime;
+
+        public Entry(String url, String text, String etag, long lastModified, long fetchTime) {
+            this.url = url;
+            this.text = text;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchTime = fetchTime;
+        }
+
+        /**
+         * @return A copy of this entry that was revalidated at the specified
+         *         time.
+         */
+        public Entry revalidate(long time) {
+            return new Entry(url, text, etag, lastModified, time);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import com.googamaphone.typeandspeak.utils.LightweightArticleExtractor;
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.PageExtractor;
+import com.googamaphone.typeandspeak.utils.StreamingArticleExtractor;
+import com.googamaphone.typeandspeak.utils.PageExtractor.ParagraphListener;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Loads the article text of web pages through an {@link ArticleCache}. Pages
+ * fetched recently are served from the cache without using the network.
+ * Older entries are revalidated with a conditional request, and pages that
+ * have changed or aren't cached are extracted as they download.
+ */
+public class ArticleLoader {
+    /** How long an entry is used without revalidating it. */
+    private static final long FRESH_TIME = (12 * DateUtils.HOUR_IN_MILLIS);
+
+    private final ArticleCache mCache;
+
+    /** Whether to extract with {@link LightweightArticleExtractor}. */
+    private volatile boolean mLightweight = false;
+
+    public ArticleLoader(ArticleCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets whether to extract pages with the lightweight extractor, which
+     * needs far less memory than {@link StreamingArticleExtractor} but
+     * recognizes fewer kinds of boilerplate.
+     */
+    public void setLightweight(boolean lightweight) {
+        mLightweight = lightweight;
+    }
+
+    /**
+     * Loads the article text of a page, passing each paragraph to a listener
+     * on the calling thread. Cached text is passed as a single paragraph.
+     *
+     * @param url The page to load.
+     * @param listener The listener, which may stop loading by returning
+     *            {@code false}.
+     * @return {@code true} if the text was loaded without being stopped.
+     */
+    public boolean load(String url, ParagraphListener listener) throws IOException {
+        final ArticleCache.Entry cached = mCache.get(url);
+        final long now = System.currentTimeMillis();
+
+        if ((cached != null) && ((now - cached.fetchTime) < FRESH_TIME)) {
+            return listener.onParagraphExtracted(cached.text);
+        }
+
+        final URLConnection connection = PageExtractor.openConnection(new URL(url));
+
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+
+            if (cached.lastModified > 0) {
+                connection.setIfModifiedSince(cached.lastModified);
+            }
+        }
+
+        if ((cached != null) && (connection instanceof HttpURLConnection)
+                && (((HttpURLConnection) connection)
+                        .getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+            LogUtils.log(this, Log.INFO, "Revalidated %s", url);
+
+            ((HttpURLConnection) connection).disconnect();
+            mCache.put(cached.revalidate(now));
+
+            return listener.onParagraphExtracted(cached.text);
+        }
+
+        final CachingListener cachingListener = new CachingListener(listener);
+        final PageExtractor extractor;
+
+        if (mLightweight) {
+            extractor = new LightweightArticleExtractor(cachingListener);
+        } else {
+            extractor = new StreamingArticleExtractor(cachingListener);
+        }
+
+        extractor.extract(connection);
+
+        if (cachingListener.mStopped) {
+            // Don't cache a partial article.
+            return false;
+        }
+
+        // Don't cache a page without an article, so the next load retries it.
+        if (cachingListener.mText.length() > 0) {
+            mCache.put(new ArticleCache.Entry(url, cachingListener.mText.toString(),
+                    connection.getHeaderField("ETag"), connection.getLastModified(), now));
+        }
+
+        return true;
+    }
+
+    /**
+     * Collects the paragraphs passed to another listener.
+     */
+    private static class CachingListener implements ParagraphListener {
+        private final ParagraphListener mListener;
+        private final StringBuilder mText = new StringBuilder();
+
+        /** Whether the wrapped listener stopped extraction. */
+        private boolean mStopped = false;
+
+        public CachingListener(ParagraphListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean onParagraphExtracted(String paragraph) {
+            if (mText.length() > 0) {
+                mText.append('\n');
+            }
+
+            mText.append(paragraph);
+
+            if (!mListener.onParagraphExtracted(paragraph)) {
+                mStopped = true;
+            }
+
+            return !mStopped;
+        }
+    }
+}
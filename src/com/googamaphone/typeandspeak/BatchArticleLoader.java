@@ -0,0 +1,201 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.PageExtractor.ParagraphListener;
+
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Loads several pages at once with an {@link ArticleLoader}, using a bounded
+ * pool of worker threads. Paragraphs are still delivered in the order of the
+ * pages, and those of the first unfinished page are delivered as soon as
+ * they are extracted, so a batch takes about as long as its slowest page.
+ * <p>
+ * Each instance loads a single batch.
+ */
+public class BatchArticleLoader {
+    /** The default number of pages loaded at once. */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /** The longest a single page may take once its worker has started. */
+    private static final long PAGE_TIMEOUT = DateUtils.MINUTE_IN_MILLIS;
+
+    private final ArticleLoader mLoader;
+    private final int mConcurrency;
+
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param loader The loader used for each page.
+     * @param concurrency The maximum number of pages loaded at once.
+     */
+    public BatchArticleLoader(ArticleLoader loader, int concurrency) {
+        mLoader = loader;
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Loads pages and passes their paragraphs to a listener on the calling
+     * thread, in page order. A page that fails or times out is skipped.
+     *
+     * @param urls The pages to load.
+     * @param listener The listener, which may stop the whole batch by
+     *            returning {@code false}.
+     * @throws InterruptedException If the calling thread is interrupted, in
+     *             which case the batch is canceled.
+     */
+    public void load(List<String> urls, ParagraphListener listener) throws InterruptedException {
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<Page> pages = new ArrayList<Page>(urls.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(mConcurrency,
+                urls.size()));
+
+        try {
+            for (String url : urls) {
+                final Page page = new Page(url);
+
+                pages.add(page);
+                executor.execute(page);
+            }
+
+            for (Page page : pages) {
+                if (!deliver(page, listener)) {
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            cancel();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops loading. Pages that are being extracted stop at their next
+     * paragraph.
+     */
+    public void cancel() {
+        mCancelled = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Passes the paragraphs of a page to the listener as they arrive, until
+     * the page is done or has timed out.
+     *
+     * @return {@code false} if the batch was stopped.
+     */
+    private synchronized boolean deliver(Page page, ParagraphListener listener)
+            throws InterruptedException {
+        while (true) {
+            if (mCancelled) {
+                return false;
+            }
+
+            while (!page.paragraphs.isEmpty()) {
+                if (!listener.onParagraphExtracted(page.paragraphs.remove(0))) {
+                    cancel();
+                    return false;
+                }
+            }
+
+            if (page.done) {
+                return true;
+            }
+
+            if (page.startTime < 0) {
+                wait();
+                continue;
+            }
+
+            final long remaining = (page.startTime + PAGE_TIMEOUT - SystemClock.uptimeMillis());
+
+            if (remaining <= 0) {
+                LogUtils.log(this, Log.ERROR, "Timed out loading %s", page.url);
+                page.abandoned = true;
+                return true;
+            }
+
+            wait(remaining);
+        }
+    }
+
+    /**
+     * A page in the batch, loaded on a worker thread. Fields are guarded by
+     * the enclosing loader.
+     */
+    private class Page implements Runnable, ParagraphListener {
+        public final String url;
+
+        /** Paragraphs extracted but not yet delivered. */
+        public final ArrayList<String> paragraphs = new ArrayList<String>();
+
+        /** The time the worker started, or {@code -1} if still queued. */
+        public long startTime = -1;
+
+        public boolean done = false;
+
+        /** Whether the page timed out and its paragraphs will be ignored. */
+        public boolean abandoned = false;
+
+        public Page(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            synchronized (BatchArticleLoader.this) {
+                startTime = SystemClock.uptimeMillis();
+                BatchArticleLoader.this.notifyAll();
+            }
+
+            try {
+                if (!mCancelled) {
+                    mLoader.load(url, this);
+                }
+            } catch (final IOException e) {
+                LogUtils.log(BatchArticleLoader.class, Log.ERROR, "Failed to load %s: %s", url,
+                        e.toString());
+            } catch (final RuntimeException e) {
+                // The parser throws unchecked exceptions on malformed input.
+                LogUtils.log(BatchArticleLoader.class, Log.ERROR, "Failed to extract %s: %s",
+                        url, e.toString());
+            }
+
+            synchronized (BatchArticleLoader.this) {
+                done = true;
+                BatchArticleLoader.this.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean onParagraphExtracted(String paragraph) {
+            synchronized (BatchArticleLoader.this) {
+                if (mCancelled || abandoned) {
+                    return false;
+                }
+
+                paragraphs.add(paragraph);
+                BatchArticleLoader.this.notifyAll();
+
+                return true;
+            }
+        }
+    }
+}
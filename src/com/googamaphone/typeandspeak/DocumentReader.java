@@ -0,0 +1,233 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.googamaphone.typeandspeak.utils.EpubExtractor;
+import com.googamaphone.typeandspeak.utils.LightweightArticleExtractor;
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.PageExtractor;
+import com.googamaphone.typeandspeak.utils.PdfExtractor;
+import com.googamaphone.typeandspeak.utils.PlainTextExtractor;
+import com.googamaphone.typeandspeak.utils.PageExtractor.ParagraphListener;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Reads the paragraphs of a shared document on a background thread. Only a
+ * few paragraphs are read ahead of the caller, which takes them with
+ * {@link #poll()} as they're needed, so memory use doesn't depend on the size
+ * of the document.
+ * <p>
+ * Plain text, HTML, EPUB and PDF documents are supported. Each instance
+ * reads a single document.
+ */
+public class DocumentReader {
+    /** The number of paragraphs read ahead of the caller. */
+    private static final int READ_AHEAD = 16;
+
+    private static final String TYPE_PDF = "application/pdf";
+    private static final String TYPE_EPUB = "application/epub+zip";
+    private static final String TYPE_HTML = "text/html";
+    private static final String TYPE_XHTML = "application/xhtml+xml";
+
+    private final BlockingQueue<String> mParagraphs = new ArrayBlockingQueue<String>(READ_AHEAD);
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mType;
+
+    private Handler mHandler;
+    private int mWhat;
+    private Thread mThread;
+
+    private volatile boolean mClosed = false;
+    private volatile boolean mFinished = false;
+    private volatile boolean mFailed = false;
+
+    /**
+     * @param resolver The resolver used to open the document.
+     * @param uri The document.
+     * @param type The MIME type of the document, or {@code null} to guess it
+     *            from the name.
+     */
+    public DocumentReader(ContentResolver resolver, Uri uri, String type) {
+        mResolver = resolver;
+        mUri = uri;
+        mType = type;
+    }
+
+    /**
+     * Starts reading the document. A message is sent to the handler whenever
+     * paragraphs become available after the queue was empty, and when the
+     * document has been read.
+     *
+     * @param handler The handler to notify. Each message has this reader as
+     *            its {@code obj}.
+     * @param what The {@code what} value for messages.
+     */
+    public void start(Handler handler, int what) {
+        mHandler = handler;
+        mWhat = what;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                read();
+            }
+        }, "DocumentReader");
+
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * @return The next paragraph, or {@code null} if none has been read yet
+     *         or the document has been read completely.
+     */
+    public String poll() {
+        return mParagraphs.poll();
+    }
+
+    /**
+     * @return {@code true} if the whole document has been read and every
+     *         paragraph has been taken.
+     */
+    public boolean isFinished() {
+        return mFinished && mParagraphs.isEmpty();
+    }
+
+    /**
+     * @return {@code true} if the document couldn't be opened or read.
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Stops reading and discards any paragraphs read ahead.
+     */
+    public void close() {
+        mClosed = true;
+
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+
+        mParagraphs.clear();
+    }
+
+    private void read() {
+        try {
+            final InputStream in = mResolver.openInputStream(mUri);
+
+            if (in == null) {
+                throw new IOException("No content for " + mUri);
+            }
+
+            try {
+                createExtractor(getType(), mParagraphListener).extract(in, null);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to read %s: %s", mUri, e.toString());
+            mFailed = true;
+        } catch (final RuntimeException e) {
+            // Malformed archives and pages may throw unchecked exceptions.
+            LogUtils.log(this, Log.ERROR, "Failed to extract %s: %s", mUri, e.toString());
+            mFailed = true;
+        }
+
+        mFinished = true;
+        notifyHandler();
+    }
+
+    /**
+     * @return The MIME type of the document, guessed from its extension if
+     *         it wasn't specified.
+     */
+    private String getType() {
+        if (mType != null) {
+            // Remove any parameters, such as the charset.
+            final int end = mType.indexOf(';');
+            final String type = ((end < 0) ? mType : mType.substring(0, end)).trim()
+                    .toLowerCase(Locale.US);
+
+            if (!type.equals("application/octet-stream")) {
+                return type;
+            }
+        }
+
+        final String path = mUri.getPath();
+
+        if (path == null) {
+            return null;
+        }
+
+        final String lowerPath = path.toLowerCase(Locale.US);
+
+        if (lowerPath.endsWith(".pdf")) {
+            return TYPE_PDF;
+        } else if (lowerPath.endsWith(".epub")) {
+            return TYPE_EPUB;
+        } else if (lowerPath.endsWith(".html") || lowerPath.endsWith(".htm")) {
+            return TYPE_HTML;
+        } else if (lowerPath.endsWith(".xhtml")) {
+            return TYPE_XHTML;
+        }
+
+        return null;
+    }
+
+    private static PageExtractor createExtractor(String type, ParagraphListener listener) {
+        if (TYPE_PDF.equals(type)) {
+            return new PdfExtractor(listener);
+        } else if (TYPE_EPUB.equals(type)) {
+            return new EpubExtractor(listener);
+        } else if (TYPE_HTML.equals(type) || TYPE_XHTML.equals(type)) {
+            return new LightweightArticleExtractor(listener);
+        }
+
+        // Anything else is read as text.
+        return new PlainTextExtractor(listener);
+    }
+
+    private void notifyHandler() {
+        if (!mClosed) {
+            mHandler.obtainMessage(mWhat, this).sendToTarget();
+        }
+    }
+
+    private final ParagraphListener mParagraphListener = new ParagraphListener() {
+        @Override
+        public boolean onParagraphExtracted(String paragraph) {
+            if (mClosed) {
+                return false;
+            }
+
+            try {
+                // Wait for the caller to take paragraphs.
+                mParagraphs.put(paragraph);
+            } catch (final InterruptedException e) {
+                return false;
+            }
+
+            // The caller may be waiting if the queue was empty.
+            if (mParagraphs.size() == 1) {
+                notifyHandler();
+            }
+
+            return !mClosed;
+        }
+    };
+}
@@ -1,87 +1,144 @@
-
 package com.googamaphone.typeandspeak;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 
-import com.googamaphone.typeandspeak.utils.ReferencedHandler;
+import com.googamaphone.typeandspeak.SaveService.LocalBinder;
+import com.googamaphone.typeandspeak.SaveService.SaveListener;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
+import com.googamaphone.typeandspeak.utils.DocumentSplitter;
+import com.googamaphone.typeandspeak.utils.LogUtils;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
+import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
-import android.net.Uri;
+import android.content.DialogInterface.OnClickListener;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Environment;
-import android.os.Message;
-import android.provider.MediaStore.Audio.AudioColumns;
-import android.provider.MediaStore.Audio.Media;
-import android.provider.MediaStore.MediaColumns;
-import android.speech.tts.TextToSpeech;
-import android.speech.tts.TextToSpeech.Engine;
-
+import android.os.IBinder;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Queues text to be saved by {@link SaveService} and shows the progress of
+ * the most recent save, along with its throughput and the estimated time
+ * remaining. The user can hide the progress dialog and continue working while
+ * saves run in the background.
+ * <p>
+ * Text documents can also be exported in a batch, with one file for each
+ * document or each part of a document. Progress is shown for the whole batch.
+ */
 public class FileSynthesizer {
-    private static final String UTTERANCE_ID = "synthesize";
-    private static final int UTTERANCE_COMPLETED = 1;
+    /** Extensions of the documents that can be exported. */
+    private static final String[] DOCUMENT_EXTENSIONS = {
+            ".txt", ".text", ".md"
+    };
 
-    private final ContentValues mContentValues = new ContentValues(10);
-    private final HashMap<String, String> mSpeechParams = new HashMap<String, String>();
+    /** The maximum length of a generated file name, without its extension. */
+    private static final int MAX_FILENAME_LENGTH = 64;
 
     private final Context mContext;
-    private final TextToSpeech mTts;
-    private final String mArtistValue;
-    private final String mAlbumValue;
 
     private ProgressDialog mProgressDialog;
     private FileSynthesizerListener mListener;
 
-    private boolean mCanceled = false;
+    /** The bound service, or {@code null} if not connected. */
+    private SaveService mService;
 
-    public FileSynthesizer(Context context, TextToSpeech tts) {
-        mContext = context;
-        mTts = tts;
+    /** The number of engine instances to request for each save. */
+    private int mEngineCount = 1;
+
+    /** The text normalizer rules to apply to each save. */
+    private int mNormalizerRules = 0;
+
+    /** The save shown in the progress dialog, or {@code null} if none. */
+    private SaveRequest mRequest;
+
+    /** Writes the text of the save shown in the progress dialog, or {@code null}. */
+    private TextWriterTask mTextWriter;
+
+    /** The progress message without throughput, for the current save. */
+    private String mSavingMessage;
+
+    /** The batch shown in the progress dialog, or {@code null} if none. */
+    private ArrayList<SaveRequest> mBatch;
 
-        mArtistValue = mContext.getString(R.string.app_name);
-        mAlbumValue = mContext.getString(R.string.album_name);
+    /** Characters completed by running requests in the batch, by identifier. */
+    private final HashMap<Long, Integer> mBatchRunning = new HashMap<Long, Integer>();
 
-        mSpeechParams.put(Engine.KEY_PARAM_UTTERANCE_ID, UTTERANCE_ID);
+    private int mBatchLength;
+    private int mBatchCompletedLength;
+    private int mBatchCompletedCount;
+    private int mBatchFailedCount;
+
+    public FileSynthesizer(Context context) {
+        mContext = context;
+
+        final Intent intent = new Intent(mContext, SaveService.class);
+        mContext.bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     public void setListener(FileSynthesizerListener listener) {
         mListener = listener;
     }
 
-    @SuppressWarnings("deprecation")
-    private void onUtteranceCompleted(String utteranceId) {
-        mTts.setOnUtteranceCompletedListener(null);
-
-        if (mCanceled) {
-            onWriteCanceled();
-        } else {
-            onWriteCompleted();
-        }
+    /**
+     * Sets the number of engine instances used to synthesize segments
+     * concurrently. The default is a single instance.
+     *
+     * @param count The number of instances, which must be at least one.
+     */
+    public void setEngineCount(int count) {
+        mEngineCount = count;
     }
 
     /**
-     * Inserts media information into the database after a successful save
-     * operation.
+     * Sets the normalizer rules applied to text before it's synthesized. The
+     * default is to synthesize text as written.
      *
-     * @param contentValues The media descriptor values.
+     * @param rules A combination of
+     *            {@link com.googamaphone.typeandspeak.utils.TextNormalizer}
+     *            rules, or
+     *            {@code 0} for none.
      */
-    private void onWriteCompleted() {
-        final ContentResolver resolver = mContext.getContentResolver();
-        final String path = mContentValues.getAsString(MediaColumns.DATA);
-        final Uri uriForPath = Media.getContentUriForPath(path);
+    public void setNormalizerRules(int rules) {
+        mNormalizerRules = rules;
+    }
 
-        resolver.insert(uriForPath, mContentValues);
+    /**
+     * Disconnects from the save service. Queued saves continue in the
+     * background.
+     */
+    public void release() {
+        if (mService != null) {
+            mService.removeListener(mSaveListener);
+            mService = null;
+        }
+
+        mContext.unbindService(mServiceConnection);
+        mRequest = null;
+        mTextWriter = null;
+        mBatch = null;
 
-        // Clears last queue element to avoid deletion on exit.
-        mTts.speak("", TextToSpeech.QUEUE_FLUSH, null);
+        if (mProgressDialog != null) {
+            dismissProgressDialog();
+        }
+    }
 
+    private void dismissProgressDialog() {
         try {
             if (mProgressDialog.isShowing()) {
                 mProgressDialog.dismiss();
@@ -89,49 +146,101 @@ public class FileSynthesizer {
         } catch (final IllegalArgumentException e) {
             e.printStackTrace();
         }
-
-        if (mListener != null) {
-            mListener.onFileSynthesized(mContentValues);
-        }
-
-        mContentValues.clear();
     }
 
     /**
-     * Deletes the partially completed file after a canceled save operation.
-     *
-     * @param values The media descriptor values.
+     * Notifies the user after a canceled save operation. The service deletes
+     * the partially completed file.
      */
     private void onWriteCanceled() {
-        try {
-            final String path = mContentValues.getAsString(MediaColumns.DATA);
-            new File(path).delete();
-        } catch (final Exception e) {
-            e.printStackTrace();
-        }
-
         final String title = mContext.getString(R.string.canceled_title);
         final String message = mContext.getString(R.string.canceled_message);
         final AlertDialog alert = new Builder(mContext).setTitle(title).setMessage(message)
                 .setPositiveButton(android.R.string.ok, null).create();
 
-        mTts.stop();
+        try {
+            alert.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notifies the user after a failed save operation. The service deletes
+     * the partially completed file.
+     */
+    private void onWriteFailed(SaveRequest request) {
+        dismissProgressDialog();
+
+        final String message = mContext.getString(R.string.save_failed_message,
+                request.outputFile.getName());
+        final AlertDialog alert = new Builder(mContext).setTitle(R.string.save_failed_title)
+                .setMessage(message).setPositiveButton(android.R.string.ok, null).create();
 
         try {
             alert.show();
         } catch (final RuntimeException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Updates the progress dialog with the progress of the current save.
+     * Progress is indeterminate until the engine has produced some audio.
+     */
+    private void onWriteProgress(SynthesisProgress progress) {
+        final int percent = progress.getPercent();
+
+        if ((percent == SynthesisProgress.UNKNOWN) || (progress.completedCharacters <= 0)) {
+            return;
+        }
 
-        mContentValues.clear();
+        final StringBuilder message = new StringBuilder(mSavingMessage);
+
+        message.append('\n');
+
+        if (progress.audioSecondsPerSecond != SynthesisProgress.UNKNOWN) {
+            message.append(mContext.getString(R.string.saving_throughput,
+                    progress.charactersPerSecond, progress.audioSecondsPerSecond));
+        } else {
+            message.append(mContext.getString(R.string.saving_characters,
+                    progress.charactersPerSecond));
+        }
+
+        if (progress.remainingMillis != SynthesisProgress.UNKNOWN) {
+            final String remaining = DateUtils.formatElapsedTime(progress.remainingMillis
+                    / DateUtils.SECOND_IN_MILLIS);
+
+            message.append('\n');
+            message.append(mContext.getString(R.string.saving_remaining, remaining));
+        }
+
+        mProgressDialog.setIndeterminate(false);
+        mProgressDialog.setProgress(percent);
+        mProgressDialog.setMessage(message);
     }
 
-    @SuppressWarnings("deprecation")
-    public void writeInput(String text, Locale locale, int pitch, int rate, String filename) {
-        mCanceled = false;
+    /**
+     * Queues text to be saved to a file in the output directory.
+     *
+     * @param text The text to synthesize.
+     * @param locale The locale to use for synthesis.
+     * @param pitch The pitch, where {@code 50} is normal.
+     * @param rate The speech rate, where {@code 50} is normal.
+     * @param filename The file name, with or without an extension.
+     * @param format One of the {@link AudioEncoder} format constants. Falls
+     *            back to WAV if the format isn't supported.
+     */
+    public void writeInput(String text, Locale locale, int pitch, int rate, String filename,
+            int format) {
+        if (!AudioEncoder.isSupported(format)) {
+            format = AudioEncoder.FORMAT_WAV;
+        }
 
-        if (filename.toLowerCase().endsWith(".wav")) {
-            filename = filename.substring(0, filename.length() - 4);
+        final String extension = "." + AudioEncoder.getExtension(format);
+
+        if (filename.toLowerCase().endsWith(extension)) {
+            filename = filename.substring(0, filename.length() - extension.length());
         }
 
         filename = filename.trim();
@@ -144,51 +253,42 @@ public class FileSynthesizer {
                 + "/typeandspeak";
 
         final File outdir = new File(directory);
-        final File outfile = new File(directory + "/" + filename + ".wav");
+        final File outfile = new File(directory + "/" + filename + extension);
 
         final String message;
         final AlertDialog alert;
 
-        if (outfile.exists()) {
-            message = mContext.getString(R.string.exists_message, filename);
+        if (outfile.exists() || ((mService != null) && mService.isQueued(outfile))) {
+            message = mContext.getString(R.string.exists_message, outfile.getName());
             alert = new Builder(mContext).setTitle(R.string.exists_title).setMessage(message)
                     .setPositiveButton(android.R.string.ok, null).create();
         } else if (!outdir.exists() && !outdir.mkdirs()) {
-            message = mContext.getString(R.string.no_write_message, filename);
+            message = mContext.getString(R.string.no_write_message, outfile.getName());
             alert = new Builder(mContext).setTitle(R.string.no_write_title).setMessage(message)
                     .setPositiveButton(android.R.string.ok, null).create();
         } else {
-            // Attempt to set the locale.
-            if (locale != null) {
-                mTts.setLanguage(locale);
-            }
-
-            // Populate content values for the media provider.
-            mContentValues.clear();
-            mContentValues.put(MediaColumns.DISPLAY_NAME, filename);
-            mContentValues.put(MediaColumns.TITLE, filename);
-            mContentValues.put(AudioColumns.ARTIST, mArtistValue);
-            mContentValues.put(AudioColumns.ALBUM, mAlbumValue);
-            mContentValues.put(AudioColumns.IS_ALARM, true);
-            mContentValues.put(AudioColumns.IS_RINGTONE, true);
-            mContentValues.put(AudioColumns.IS_NOTIFICATION, true);
-            mContentValues.put(AudioColumns.IS_MUSIC, true);
-            mContentValues.put(MediaColumns.MIME_TYPE, "audio/wav");
-            mContentValues.put(MediaColumns.DATA, outfile.getAbsolutePath());
-
-            mTts.setPitch(pitch / 50.0f);
-            mTts.setSpeechRate(rate / 50.0f);
-            mTts.setOnUtteranceCompletedListener(mOnUtteranceCompletedListener);
-            mTts.synthesizeToFile(text, mSpeechParams, outfile.getAbsolutePath());
-
-            message = mContext.getString(R.string.saving_message, filename);
+            // Long text is too large for an intent, so it's written to a
+            // file that the request reads.
+            mTextWriter = new TextWriterTask(text, locale, pitch, rate, outfile, format,
+                    mNormalizerRules);
+            mTextWriter.execute();
+
+            mRequest = null;
+            mBatch = null;
+
+            message = mContext.getString(R.string.saving_message, outfile.getName());
+            mSavingMessage = message;
 
             mProgressDialog = new ProgressDialog(mContext);
             mProgressDialog.setCancelable(true);
             mProgressDialog.setTitle(R.string.saving_title);
             mProgressDialog.setMessage(message);
+            mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mProgressDialog.setMax(100);
             mProgressDialog.setIndeterminate(true);
             mProgressDialog.setOnCancelListener(mOnCancelListener);
+            mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    mContext.getString(R.string.save_in_background), mOnHideListener);
 
             alert = mProgressDialog;
         }
@@ -199,40 +299,556 @@ public class FileSynthesizer {
             e.printStackTrace();
         }
     }
-    
-    private SynthesizerHandler mHandler = new SynthesizerHandler(this);
 
-    private final TextToSpeech.OnUtteranceCompletedListener mOnUtteranceCompletedListener = new TextToSpeech.OnUtteranceCompletedListener() {
+    /**
+     * Queues text documents to be saved, each to its own file in the output
+     * directory. Documents are read on a background thread, and file names
+     * are generated from the document names and the titles of their parts.
+     *
+     * @param path A text document, or a directory of text documents.
+     * @param splitMode One of the {@link DocumentSplitter} split modes.
+     * @param locale The locale to use for synthesis.
+     * @param pitch The pitch, where {@code 50} is normal.
+     * @param rate The speech rate, where {@code 50} is normal.
+     * @param format One of the {@link AudioEncoder} format constants. Falls
+     *            back to WAV if the format isn't supported.
+     */
+    public void writeDocuments(final File path, final int splitMode, final Locale locale,
+            final int pitch, final int rate, int format) {
+        if (!AudioEncoder.isSupported(format)) {
+            format = AudioEncoder.FORMAT_WAV;
+        }
+
+        final File outdir = getOutputDirectory();
+
+        if (!outdir.exists() && !outdir.mkdirs()) {
+            final String message = mContext.getString(R.string.no_write_message,
+                    outdir.getName());
+
+            showAlert(R.string.no_write_title, message);
+            return;
+        }
+
+        // Names must not collide with queued saves, which are only visible on
+        // the main thread.
+        final HashSet<File> taken = new HashSet<File>();
+
+        if (mService != null) {
+            taken.addAll(mService.getQueuedFiles());
+        }
+
+        final String extension = "." + AudioEncoder.getExtension(format);
+        final int outputFormat = format;
+
+        final ProgressDialog preparing = new ProgressDialog(mContext);
+        preparing.setCancelable(false);
+        preparing.setTitle(R.string.saving_title);
+        preparing.setMessage(mContext.getString(R.string.export_preparing));
+        preparing.setIndeterminate(true);
+
+        try {
+            preparing.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        new AsyncTask<Void, Void, ArrayList<SaveRequest>>() {
+            @Override
+            protected ArrayList<SaveRequest> doInBackground(Void... params) {
+                final ArrayList<SaveRequest> requests = new ArrayList<SaveRequest>();
+
+                for (File document : getDocuments(path)) {
+                    final List<DocumentSplitter.Part> parts;
+
+                    try {
+                        parts = DocumentSplitter.split(document, splitMode);
+                    } catch (final IOException e) {
+                        LogUtils.log(FileSynthesizer.class, Log.ERROR, "Failed to read %s: %s",
+                                document, e.toString());
+                        continue;
+                    }
+
+                    for (int i = 0; i < parts.size(); i++) {
+                        final DocumentSplitter.Part part = parts.get(i);
+                        final String name = getPartName(document, part, i, parts.size());
+                        final File outfile = getUniqueFile(outdir, name, extension, taken);
+
+                        requests.add(new SaveRequest(document, part.start, part.end, locale,
+                                pitch, rate, outfile, outputFormat, mNormalizerRules));
+                    }
+                }
+
+                return requests;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<SaveRequest> requests) {
+                try {
+                    preparing.dismiss();
+                } catch (final IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+
+                if (requests.isEmpty()) {
+                    showAlert(R.string.export_none_title, mContext.getString(
+                            R.string.export_none_message, path.getPath()));
+                    return;
+                }
+
+                startBatch(requests);
+            }
+        }.execute();
+    }
+
+    /**
+     * Queues a batch of requests and shows the progress dialog for it.
+     */
+    private void startBatch(ArrayList<SaveRequest> requests) {
+        mRequest = null;
+        mTextWriter = null;
+        mBatch = requests;
+        mBatchRunning.clear();
+        mBatchLength = 0;
+        mBatchCompletedLength = 0;
+        mBatchCompletedCount = 0;
+        mBatchFailedCount = 0;
+
+        for (SaveRequest request : requests) {
+            queueRequest(request);
+
+            mBatchLength += request.getLength();
+        }
+
+        mSavingMessage = mContext.getString(R.string.export_saving, 1, requests.size(),
+                requests.get(0).outputFile.getName());
+
+        mProgressDialog = new ProgressDialog(mContext);
+        mProgressDialog.setCancelable(true);
+        mProgressDialog.setTitle(R.string.saving_title);
+        mProgressDialog.setMessage(mSavingMessage);
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgressDialog.setMax(100);
+        mProgressDialog.setIndeterminate(true);
+        mProgressDialog.setOnCancelListener(mOnCancelListener);
+        mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                mContext.getString(R.string.save_in_background), mOnHideListener);
+
+        try {
+            mProgressDialog.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void queueRequest(SaveRequest request) {
+        final Intent intent = new Intent(mContext, SaveService.class);
+
+        intent.setAction(SaveService.ACTION_SAVE);
+        intent.putExtra(SaveService.EXTRA_ENGINE_COUNT, mEngineCount);
+        request.writeToIntent(intent);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Updates the progress dialog with the progress of the whole batch. The
+     * time remaining is estimated from the throughput of the latest sample.
+     */
+    private void onBatchProgress(SaveRequest request, SynthesisProgress progress) {
+        mBatchRunning.put(request.id, progress.completedCharacters);
+
+        if ((mBatchLength <= 0) || (progress.completedCharacters <= 0)) {
+            return;
+        }
+
+        int completed = mBatchCompletedLength;
+
+        for (int characters : mBatchRunning.values()) {
+            completed += characters;
+        }
+
+        final int index = Math.min(mBatch.size(),
+                (mBatchCompletedCount + mBatchFailedCount + 1));
+        final StringBuilder message = new StringBuilder(mContext.getString(
+                R.string.export_saving, index, mBatch.size(), request.outputFile.getName()));
+
+        if (progress.charactersPerSecond > 0) {
+            final long remaining = (long) ((mBatchLength - completed)
+                    / progress.charactersPerSecond);
+
+            message.append('\n');
+            message.append(mContext.getString(R.string.saving_characters,
+                    progress.charactersPerSecond));
+            message.append('\n');
+            message.append(mContext.getString(R.string.saving_remaining,
+                    DateUtils.formatElapsedTime(Math.max(0, remaining))));
+        }
+
+        mProgressDialog.setIndeterminate(false);
+        mProgressDialog.setProgress((int) ((100L * completed) / mBatchLength));
+        mProgressDialog.setMessage(message);
+    }
+
+    /**
+     * Records a finished request in the batch, and shows a summary once every
+     * request has finished.
+     */
+    private void onBatchRequestFinished(SaveRequest request, boolean succeeded) {
+        mBatchRunning.remove(request.id);
+
+        if (succeeded) {
+            mBatchCompletedCount++;
+        } else {
+            mBatchFailedCount++;
+        }
+
+        mBatchCompletedLength += request.getLength();
+
+        if ((mBatchCompletedCount + mBatchFailedCount) < mBatch.size()) {
+            return;
+        }
+
+        mBatch = null;
+        dismissProgressDialog();
+
+        String message = mContext.getString(R.string.export_completed_message,
+                mBatchCompletedCount);
+
+        if (mBatchFailedCount > 0) {
+            message += "\n"
+                    + mContext.getString(R.string.export_failed_message, mBatchFailedCount);
+        }
+
+        showAlert(R.string.export_completed_title, message);
+    }
+
+    private boolean isInBatch(SaveRequest request) {
+        if (mBatch == null) {
+            return false;
+        }
+
+        for (SaveRequest batchRequest : mBatch) {
+            if (batchRequest.id == request.id) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void showAlert(int titleId, String message) {
+        final AlertDialog alert = new Builder(mContext).setTitle(titleId).setMessage(message)
+                .setPositiveButton(android.R.string.ok, null).create();
+
+        try {
+            alert.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The directory that saved speech is written to.
+     */
+    private static File getOutputDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "typeandspeak");
+    }
+
+    /**
+     * @return The text documents at a path, sorted by name. Directories are
+     *         not searched recursively.
+     */
+    private static List<File> getDocuments(File path) {
+        final ArrayList<File> documents = new ArrayList<File>();
+
+        if (path.isFile()) {
+            documents.add(path);
+            return documents;
+        }
+
+        final File[] files = path.listFiles();
+
+        if (files == null) {
+            return documents;
+        }
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (file.isFile() && isDocument(file)) {
+                documents.add(file);
+            }
+        }
+
+        return documents;
+    }
+
+    private static boolean isDocument(File file) {
+        final String name = file.getName().toLowerCase();
+
+        for (String extension : DOCUMENT_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return A file name for a part of a document, without an extension.
+     *         Parts are numbered so their files sort in document order.
+     */
+    private static String getPartName(File document, DocumentSplitter.Part part, int index,
+            int count) {
+        String name = document.getName();
+        final int extension = name.lastIndexOf('.');
+
+        if (extension > 0) {
+            name = name.substring(0, extension);
+        }
+
+        if (count > 1) {
+            final int digits = Integer.toString(count).length();
+            final String number = String.format("%0" + digits + "d", (index + 1));
+
+            name = name + " " + number + " " + part.title;
+        }
+
+        name = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", " ").replaceAll("\\s+", " ")
+                .trim();
+
+        if (name.length() > MAX_FILENAME_LENGTH) {
+            name = name.substring(0, MAX_FILENAME_LENGTH).trim();
+        }
+
+        return name;
+    }
+
+    /**
+     * Returns a file in a directory that doesn't exist and hasn't been taken,
+     * adding a number to the name if necessary, and marks it as taken.
+     */
+    private static File getUniqueFile(File directory, String name, String extension,
+            HashSet<File> taken) {
+        File file = new File(directory, name + extension);
+
+        for (int i = 2; file.exists() || taken.contains(file); i++) {
+            file = new File(directory, name + " (" + i + ")" + extension);
+        }
+
+        taken.add(file);
+
+        return file;
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((LocalBinder) binder).getService();
+            mService.addListener(mSaveListener);
+        }
+
         @Override
-        public void onUtteranceCompleted(String utteranceId) {
-            mHandler.obtainMessage(UTTERANCE_COMPLETED, utteranceId).sendToTarget();
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    private final SaveListener mSaveListener = new SaveListener() {
+        @Override
+        public void onSaveStarted(SaveRequest request) {
+            // Progress is shown from the time the request is queued.
+        }
+
+        @Override
+        public void onSaveProgress(SaveRequest request, SynthesisProgress progress) {
+            if (isInBatch(request)) {
+                onBatchProgress(request, progress);
+                return;
+            }
+
+            if ((mRequest == null) || (mRequest.id != request.id)) {
+                return;
+            }
+
+            onWriteProgress(progress);
+
+            if (mListener != null) {
+                mListener.onSynthesisProgress(progress);
+            }
+        }
+
+        @Override
+        public boolean onSaveCompleted(SaveRequest request, ContentValues contentValues) {
+            if (isInBatch(request)) {
+                onBatchRequestFinished(request, true);
+                return true;
+            }
+
+            if ((mRequest == null) || (mRequest.id != request.id)) {
+                return false;
+            }
+
+            mRequest = null;
+            dismissProgressDialog();
+
+            if (mListener != null) {
+                mListener.onFileSynthesized(contentValues);
+            }
+
+            return true;
+        }
+
+        @Override
+        public boolean onSaveFailed(SaveRequest request) {
+            if (isInBatch(request)) {
+                onBatchRequestFinished(request, false);
+                return true;
+            }
+
+            if ((mRequest == null) || (mRequest.id != request.id)) {
+                return false;
+            }
+
+            mRequest = null;
+            onWriteFailed(request);
+
+            return true;
+        }
+    };
+
+    /**
+     * Hides the progress dialog and lets the save continue in the background.
+     */
+    private final OnClickListener mOnHideListener = new OnClickListener() {
+        @Override
+        public void onClick(DialogInterface dialog, int which) {
+            // Text that is still being written is queued when it's done.
+            mRequest = null;
+            mTextWriter = null;
+            mBatch = null;
         }
     };
 
     private final DialogInterface.OnCancelListener mOnCancelListener = new OnCancelListener() {
         @Override
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
-            mTts.stop();
+            if (mBatch != null) {
+                // Requests that already finished are ignored by the service.
+                for (SaveRequest request : mBatch) {
+                    cancelRequest(request);
+                }
+
+                mBatch = null;
+                onWriteCanceled();
+                return;
+            }
+
+            if (mTextWriter != null) {
+                // The request hasn't been queued yet.
+                mTextWriter.cancel(false);
+                mTextWriter = null;
+                onWriteCanceled();
+                return;
+            }
+
+            if (mRequest == null) {
+                return;
+            }
+
+            cancelRequest(mRequest);
+
+            mRequest = null;
+            onWriteCanceled();
+        }
+
+        private void cancelRequest(SaveRequest request) {
+            final Intent intent = new Intent(mContext, SaveService.class);
+
+            intent.setAction(SaveService.ACTION_CANCEL);
+            intent.putExtra(SaveService.EXTRA_REQUEST_ID, request.id);
+            mContext.startService(intent);
         }
     };
-    
-    private static class SynthesizerHandler extends ReferencedHandler<FileSynthesizer> {
-        public SynthesizerHandler(FileSynthesizer parent) {
-            super(parent);
+
+    /**
+     * Writes text to a private file for a request on a background thread,
+     * and then queues the request.
+     */
+    private class TextWriterTask extends AsyncTask<Void, Void, SaveRequest> {
+        private final String mText;
+        private final Locale mLocale;
+        private final int mPitch;
+        private final int mRate;
+        private final File mOutputFile;
+        private final int mFormat;
+        private final int mRules;
+
+        public TextWriterTask(String text, Locale locale, int pitch, int rate, File outputFile,
+                int format, int rules) {
+            mText = text;
+            mLocale = locale;
+            mPitch = pitch;
+            mRate = rate;
+            mOutputFile = outputFile;
+            mFormat = format;
+            mRules = rules;
+        }
+
+        @Override
+        protected SaveRequest doInBackground(Void... params) {
+            final SaveRequest request;
+
+            try {
+                request = SaveRequest.createForText(mContext, mText, mLocale, mPitch, mRate,
+                        mOutputFile, mFormat, mRules);
+            } catch (final IOException e) {
+                LogUtils.log(FileSynthesizer.class, Log.ERROR, "Failed to write text for %s: %s",
+                        mOutputFile, e.toString());
+                return null;
+            }
+
+            if (isCancelled()) {
+                request.sourceFile.delete();
+                return null;
+            }
+
+            return request;
         }
 
         @Override
-        protected void handleMessage(Message msg, FileSynthesizer parent) {
-            switch (msg.what) {
-                case UTTERANCE_COMPLETED:
-                    parent.onUtteranceCompleted((String) msg.obj);
-                    break;
+        protected void onPostExecute(SaveRequest request) {
+            final boolean shown = (mTextWriter == this);
+
+            if (shown) {
+                mTextWriter = null;
+            }
+
+            if (request == null) {
+                if (shown) {
+                    dismissProgressDialog();
+                    showAlert(R.string.save_failed_title, mContext.getString(
+                            R.string.save_failed_message, mOutputFile.getName()));
+                }
+
+                return;
+            }
+
+            queueRequest(request);
+
+            if (shown) {
+                mRequest = request;
             }
         }
     }
 
     public interface FileSynthesizerListener {
+        /**
+         * Called periodically while the save shown in the progress dialog is
+         * running.
+         */
+        public void onSynthesisProgress(SynthesisProgress progress);
+
         public void onFileSynthesized(ContentValues contentValues);
     }
 }
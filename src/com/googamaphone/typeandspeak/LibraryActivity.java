@@ -19,7 +19,6 @@ import android.os.Environment;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AudioColumns;
-import android.provider.MediaStore.Audio.Media;
 import android.text.format.DateFormat;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -33,6 +32,7 @@ import android.widget.TextView;
 
 import com.googamaphone.PinnedDialog;
 import com.googamaphone.PinnedDialogManager;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
 
 public class LibraryActivity extends ListActivity {
     private static final String[] FROM = new String[] {
@@ -155,6 +155,15 @@ public class LibraryActivity extends ListActivity {
         }
     };
 
+    private final Runnable mDeletedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!isFinishing()) {
+                requestCursor();
+            }
+        }
+    };
+
     private final OnClickListener mOnClickListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -190,18 +199,13 @@ public class LibraryActivity extends ListActivity {
 
                     final int dataIndex = cursor.getColumnIndex(AudioColumns.DATA);
                     final String dataPath = cursor.getString(dataIndex);
+                    final int idIndex = cursor.getColumnIndex(AudioColumns._ID);
+                    final long id = cursor.getLong(idIndex);
 
-                    if (new File(dataPath).delete()) {
-                        final int idIndex = cursor.getColumnIndex(AudioColumns._ID);
-                        final long id = cursor.getLong(idIndex);
-                        final Uri uriForPath = Media.getContentUriForPath(dataPath);
-
-                        getContentResolver().delete(uriForPath, AudioColumns._ID + "=?", new String[] {
-                            "" + id
-                        });
-                    }
-
-                    requestCursor();
+                    // Deletions are batched off the main thread, so reload
+                    // once this one has been applied.
+                    MediaIndexWriter.getInstance(LibraryActivity.this).delete(new File(dataPath),
+                            id, mDeletedRunnable);
                     break;
                 }
                 case R.id.cancel_delete: {
@@ -219,7 +223,7 @@ public class LibraryActivity extends ListActivity {
                     final Intent shareIntent = new Intent();
                     shareIntent.setAction(Intent.ACTION_SEND);
                     shareIntent.putExtra(Intent.EXTRA_STREAM, Uri.parse(dataPath));
-                    shareIntent.setType("audio/wav");
+                    shareIntent.setType(AudioEncoder.getMimeTypeForPath(dataPath));
 
                     final Intent chooserIntent = Intent.createChooser(shareIntent,
                             getString(R.string.share_to));
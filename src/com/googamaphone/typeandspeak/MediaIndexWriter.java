@@ -0,0 +1,270 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.googamaphone.typeandspeak.utils.LogUtils;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.provider.MediaStore.Audio.Media;
+import android.util.Log;
+
+/**
+ * Adds saved files to the media database and removes deleted files from it
+ * on a background thread. Operations that are requested close together are
+ * applied as one batch, with a single {@link ContentResolver#bulkInsert} and
+ * a single delete per content URI. Batches that fail, for example because the
+ * media provider is restarting, are retried after a delay.
+ * <p>
+ * Methods may be called from any thread. Callbacks run on the main thread
+ * once the batch containing their operation has been applied or has failed.
+ */
+public class MediaIndexWriter {
+    /** The delay used to collect operations into a batch. */
+    private static final long BATCH_DELAY = 250;
+
+    /** The delay before the first retry, doubled for each later retry. */
+    private static final long RETRY_DELAY = 1000;
+
+    /** The number of times a batch is attempted before it's dropped. */
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static MediaIndexWriter sInstance;
+
+    private final ScheduledExecutorService mExecutor = Executors
+            .newSingleThreadScheduledExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Operations waiting for the next batch. Guarded by {@code this}. */
+    private final ArrayList<Operation> mPending = new ArrayList<Operation>();
+
+    private final ContentResolver mResolver;
+
+    private MediaIndexWriter(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * @return The writer shared by the whole application.
+     */
+    public static synchronized MediaIndexWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaIndexWriter(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Adds a file to the media database.
+     *
+     * @param values The row to insert, which must include
+     *            {@link android.provider.MediaStore.MediaColumns#DATA}.
+     * @param callback Run after the row is inserted, or {@code null}.
+     */
+    public void insert(ContentValues values, Runnable callback) {
+        final Operation operation = new Operation(callback);
+
+        operation.values = values;
+
+        enqueue(operation);
+    }
+
+    /**
+     * Deletes a file, then removes its row from the media database if the
+     * file was deleted.
+     *
+     * @param file The file to delete.
+     * @param id The row identifier of the file.
+     * @param callback Run after the row is removed, or {@code null}.
+     */
+    public void delete(File file, long id, Runnable callback) {
+        final Operation operation = new Operation(callback);
+
+        operation.file = file;
+        operation.id = id;
+
+        enqueue(operation);
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        mPending.add(operation);
+
+        if (mPending.size() == 1) {
+            mExecutor.schedule(new Batch(), BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes the pending operations, to be applied as one batch.
+     */
+    private synchronized ArrayList<Operation> takePending() {
+        final ArrayList<Operation> operations = new ArrayList<Operation>(mPending);
+
+        mPending.clear();
+
+        return operations;
+    }
+
+    /**
+     * Applies a batch of operations on the background thread. Operations are
+     * marked as applied as each group succeeds, so a retry doesn't repeat
+     * them.
+     */
+    private void apply(ArrayList<Operation> operations) {
+        final HashMap<Uri, ArrayList<Operation>> inserts = new HashMap<Uri, ArrayList<Operation>>();
+        final HashMap<Uri, ArrayList<Operation>> deletes = new HashMap<Uri, ArrayList<Operation>>();
+
+        for (Operation operation : operations) {
+            if (operation.applied) {
+                continue;
+            }
+
+            if (operation.values != null) {
+                final String path = operation.values.getAsString(Media.DATA);
+
+                getList(inserts, Media.getContentUriForPath(path)).add(operation);
+            } else if (!operation.file.exists() || operation.file.delete()) {
+                final String path = operation.file.getPath();
+
+                getList(deletes, Media.getContentUriForPath(path)).add(operation);
+            } else {
+                operation.applied = true;
+            }
+        }
+
+        for (Map.Entry<Uri, ArrayList<Operation>> entry : inserts.entrySet()) {
+            final ArrayList<Operation> group = entry.getValue();
+            final ContentValues[] values = new ContentValues[group.size()];
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = group.get(i).values;
+            }
+
+            mResolver.bulkInsert(entry.getKey(), values);
+            setApplied(group);
+        }
+
+        for (Map.Entry<Uri, ArrayList<Operation>> entry : deletes.entrySet()) {
+            final ArrayList<Operation> group = entry.getValue();
+            final String[] ids = new String[group.size()];
+
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = Long.toString(group.get(i).id);
+            }
+
+            mResolver.delete(entry.getKey(), getIdSelection(ids.length), ids);
+            setApplied(group);
+        }
+    }
+
+    private static ArrayList<Operation> getList(HashMap<Uri, ArrayList<Operation>> map, Uri uri) {
+        ArrayList<Operation> list = map.get(uri);
+
+        if (list == null) {
+            list = new ArrayList<Operation>();
+            map.put(uri, list);
+        }
+
+        return list;
+    }
+
+    private static void setApplied(ArrayList<Operation> group) {
+        for (Operation operation : group) {
+            operation.applied = true;
+        }
+    }
+
+    /**
+     * @return A selection matching any of {@code count} row identifiers.
+     */
+    private static String getIdSelection(int count) {
+        final StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+
+        for (int i = 0; i < count; i++) {
+            selection.append((i == 0) ? "?" : ",?");
+        }
+
+        return selection.append(')').toString();
+    }
+
+    private void postCallbacks(ArrayList<Operation> operations) {
+        for (Operation operation : operations) {
+            if (operation.callback != null) {
+                mMainHandler.post(operation.callback);
+            }
+        }
+    }
+
+    /**
+     * Applies the pending operations, retrying with the same operations if
+     * the media provider fails.
+     */
+    private class Batch implements Runnable {
+        private ArrayList<Operation> mOperations;
+        private int mAttempts = 0;
+
+        @Override
+        public void run() {
+            if (mOperations == null) {
+                mOperations = takePending();
+            }
+
+            mAttempts++;
+
+            try {
+                apply(mOperations);
+            } catch (final RuntimeException e) {
+                // The provider throws unchecked exceptions when it's
+                // unavailable or its database is locked.
+                if (mAttempts < MAX_ATTEMPTS) {
+                    final long delay = (RETRY_DELAY << (mAttempts - 1));
+
+                    LogUtils.log(MediaIndexWriter.class, Log.ERROR,
+                            "Failed to update media index, retrying in %d ms: %s", delay,
+                            e.toString());
+
+                    mExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                LogUtils.log(MediaIndexWriter.class, Log.ERROR,
+                        "Failed to update media index for %d files: %s", mOperations.size(),
+                        e.toString());
+            }
+
+            postCallbacks(mOperations);
+        }
+    }
+
+    /**
+     * An insert, if {@link #values} is set, or otherwise a delete.
+     */
+    private static class Operation {
+        public final Runnable callback;
+
+        public ContentValues values;
+
+        public File file;
+        public long id;
+
+        /** Whether the operation has been applied by an earlier attempt. */
+        public boolean applied;
+
+        public Operation(Runnable callback) {
+            this.callback = callback;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import com.googamaphone.compat.AudioManagerCompatUtils;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
 import com.googamaphone.typeandspeak.utils.ReferencedHandler;
 
 public class PlaybackDialog extends AlertDialog {
@@ -149,7 +150,7 @@ public class PlaybackDialog extends AlertDialog {
                     final Intent shareIntent = new Intent();
                     shareIntent.setAction(Intent.ACTION_SEND);
                     shareIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(mSavedFile));
-                    shareIntent.setType("audio/wav");
+                    shareIntent.setType(AudioEncoder.getMimeTypeForPath(mSavedFile.getPath()));
 
                     final Context context = getContext();
                     final Intent chooserIntent = Intent.createChooser(shareIntent,
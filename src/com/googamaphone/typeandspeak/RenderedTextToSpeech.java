@@ -0,0 +1,489 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googamaphone.compat.TextToSpeechCompatUtils;
+import com.googamaphone.compat.TextToSpeechCompatUtils.UtteranceListener;
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.TextToSpeechStub;
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.UtteranceEventQueue;
+import com.googamaphone.typeandspeak.utils.UtteranceEventQueue.EventConsumer;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.os.Handler;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.Engine;
+import android.util.Log;
+
+/**
+ * Speaks each unit by rendering it to a file and playing the file, rather
+ * than asking the engine to speak it directly. Rendered units are kept in a
+ * {@link SynthesisCache}, so replaying or rewinding to a recent unit starts
+ * immediately, and units queued with {@link TextToSpeech#QUEUE_ADD} are
+ * rendered while earlier units are playing. Units are looked up in the cache
+ * on a background thread, and cached audio stays pinned until it has been
+ * played or discarded.
+ * <p>
+ * When rendering is disabled, calls are passed through to the engine. Changes
+ * to the mode take effect at the next {@link TextToSpeech#QUEUE_FLUSH}.
+ * <p>
+ * All methods must be called on the main thread. Events are reported to the
+ * utterance listener on the main thread.
+ */
+public class RenderedTextToSpeech implements TextToSpeechStub {
+    /** Prefix for the utterance identifiers of rendered units. */
+    private static final String UTTERANCE_PREFIX = "render:";
+
+    /** Looks up units in the cache and copies rendered units into it. */
+    private static final ExecutorService CACHE_WRITER = Executors.newSingleThreadExecutor();
+
+    private final HashMap<String, String> mParams = new HashMap<String, String>();
+    private final Handler mHandler = new Handler();
+
+    /** Units waiting to be played, in speaking order. */
+    private final LinkedList<Unit> mUnits = new LinkedList<Unit>();
+
+    private final TextToSpeech mTts;
+    private final SynthesisCache mCache;
+    private final File mTempDirectory;
+    private final UtteranceEventQueue mRenderEvents;
+
+    private UtteranceListener mListener;
+    private String mVoice = SynthesisCache.getVoice(null, null, 50, 50);
+
+    /** Whether to render units that are queued after the next flush. */
+    private boolean mEnabled = false;
+
+    /** Whether the current units are being rendered. */
+    private boolean mRendering = false;
+
+    /** The unit being rendered, or {@code null} if none. */
+    private Unit mRenderingUnit;
+
+    /** The unit being played, or {@code null} if none. */
+    private Unit mPlayingUnit;
+    private MediaPlayer mPlayer;
+
+    /** Sequence number used to generate unique render identifiers. */
+    private int mRenderSequence = 0;
+
+    /**
+     * @param tts The engine used to render units.
+     * @param cache The cache of rendered units.
+     * @param tempDirectory A directory the engine can write to, used for
+     *            units that are being rendered.
+     */
+    public RenderedTextToSpeech(TextToSpeech tts, SynthesisCache cache, File tempDirectory) {
+        mTts = tts;
+        mCache = cache;
+        mTempDirectory = tempDirectory;
+        mRenderEvents = new UtteranceEventQueue(mHandler, mRenderConsumer);
+    }
+
+    /**
+     * Sets whether units are rendered and cached. The default is to pass
+     * units through to the engine.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Sets the voice used to look up rendered units. This must match the
+     * engine's settings, or units rendered with other settings will be
+     * played.
+     *
+     * @see SynthesisCache#getVoice
+     */
+    public void setVoice(String engine, Locale locale, int pitch, int rate) {
+        mVoice = SynthesisCache.getVoice(engine, locale, pitch, rate);
+    }
+
+    @Override
+    public void setUtteranceListener(UtteranceListener listener) {
+        mListener = listener;
+
+        if (!mRendering) {
+            TextToSpeechCompatUtils.setUtteranceListener(mTts, listener);
+        }
+    }
+
+    @Override
+    public int speak(String text, int queueMode, HashMap<String, String> params) {
+        if (queueMode == TextToSpeech.QUEUE_FLUSH) {
+            flush();
+
+            if (mRendering != mEnabled) {
+                mRendering = mEnabled;
+                TextToSpeechCompatUtils.setUtteranceListener(mTts, (mRendering ? mRenderEvents
+                        : mListener));
+            }
+        }
+
+        if (!mRendering) {
+            return mTts.speak(text, queueMode, params);
+        }
+
+        final Unit unit = new Unit(params.get(Engine.KEY_PARAM_UTTERANCE_ID), text,
+                SynthesisCache.getKey(mVoice, text));
+
+        mUnits.add(unit);
+
+        if (unit.key != null) {
+            lookUpUnit(unit);
+        }
+
+        renderNextUnit();
+        playNextUnit();
+
+        return TextToSpeech.SUCCESS;
+    }
+
+    /**
+     * Looks up a unit in the cache on the cache thread, pinning its audio if
+     * it has been rendered before.
+     */
+    private void lookUpUnit(final Unit unit) {
+        unit.lookingUp = true;
+
+        CACHE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File cached = mCache.acquire(unit.key);
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onUnitLookedUp(unit, cached);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onUnitLookedUp(Unit unit, File cached) {
+        if (!mUnits.contains(unit)) {
+            // Flushed while looking up.
+            if (cached != null) {
+                releaseCachedAudio(unit.key);
+            }
+            return;
+        }
+
+        unit.lookingUp = false;
+        unit.audio = cached;
+
+        renderNextUnit();
+        playNextUnit();
+    }
+
+    /**
+     * Releases a unit's cached audio on the cache thread, since releasing may
+     * delete entries.
+     */
+    private void releaseCachedAudio(final String key) {
+        CACHE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.release(key);
+            }
+        });
+    }
+
+    /**
+     * Deletes a unit's temporary audio, or releases its cached audio.
+     */
+    private void releaseAudio(Unit unit) {
+        if (unit.audio == null) {
+            return;
+        }
+
+        if (unit.temporary) {
+            unit.audio.delete();
+        } else {
+            releaseCachedAudio(unit.key);
+        }
+    }
+
+    @Override
+    public void stop() {
+        flush();
+    }
+
+    /**
+     * Stops rendering and playback, and discards queued units.
+     */
+    private void flush() {
+        mTts.stop();
+        mRenderEvents.clear();
+
+        if (mPlayer != null) {
+            mPlayer.release();
+            mPlayer = null;
+        }
+
+        for (Unit unit : mUnits) {
+            releaseAudio(unit);
+        }
+
+        if (mRenderingUnit != null) {
+            mRenderingUnit.renderFile.delete();
+            mRenderingUnit = null;
+        }
+
+        mUnits.clear();
+        mPlayingUnit = null;
+    }
+
+    /**
+     * Starts rendering the first queued unit that doesn't have audio, if no
+     * unit is being rendered. Units are rendered in order, so this waits for
+     * earlier units to be looked up.
+     */
+    private void renderNextUnit() {
+        if (mRenderingUnit != null) {
+            return;
+        }
+
+        for (Unit unit : mUnits) {
+            if (unit.lookingUp) {
+                return;
+            }
+
+            if ((unit.audio == null) && (unit.renderFile == null)) {
+                startRendering(unit);
+                return;
+            }
+        }
+    }
+
+    private void startRendering(Unit unit) {
+        final int sequence = mRenderSequence++;
+
+        if (!mTempDirectory.isDirectory()) {
+            mTempDirectory.mkdirs();
+        }
+
+        unit.renderId = UTTERANCE_PREFIX + sequence;
+        unit.renderFile = new File(mTempDirectory, ".render." + sequence + ".tmp");
+        mRenderingUnit = unit;
+
+        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, unit.renderId);
+
+        final int result = mTts.synthesizeToFile(unit.text, mParams,
+                unit.renderFile.getAbsolutePath());
+
+        if (result != TextToSpeech.SUCCESS) {
+            onRenderFailed(unit, result);
+        }
+    }
+
+    private void onRenderCompleted(final Unit unit) {
+        mRenderingUnit = null;
+
+        if (unit.key == null) {
+            // The audio can't be cached, so play the temporary file.
+            onRenderCached(unit, unit.renderFile, true);
+        } else {
+            CACHE_WRITER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final File cached = mCache.putAndAcquire(unit.key, unit.renderFile);
+
+                    if (cached != null) {
+                        unit.renderFile.delete();
+                    }
+
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (cached != null) {
+                                onRenderCached(unit, cached, false);
+                            } else {
+                                onRenderCached(unit, unit.renderFile, true);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        // Render the next unit while this one is copied and played.
+        renderNextUnit();
+    }
+
+    private void onRenderCached(Unit unit, File audio, boolean temporary) {
+        if (!mUnits.contains(unit)) {
+            // Flushed while copying.
+            if (temporary) {
+                audio.delete();
+            } else {
+                releaseCachedAudio(unit.key);
+            }
+            return;
+        }
+
+        unit.audio = audio;
+        unit.temporary = temporary;
+
+        playNextUnit();
+    }
+
+    private void onRenderFailed(Unit unit, int errorCode) {
+        LogUtils.log(this, Log.ERROR, "Failed to render %s, error %d", unit.utteranceId,
+                errorCode);
+
+        mRenderingUnit = null;
+        unit.renderFile.delete();
+        mUnits.remove(unit);
+
+        if (mListener != null) {
+            mListener.onUtteranceError(unit.utteranceId, errorCode);
+        }
+
+        renderNextUnit();
+        playNextUnit();
+    }
+
+    /**
+     * Starts playing the first queued unit if nothing is playing and the
+     * unit has been rendered.
+     */
+    private void playNextUnit() {
+        final Unit unit = mUnits.peek();
+
+        if ((mPlayingUnit != null) || (unit == null) || (unit.audio == null)) {
+            return;
+        }
+
+        final MediaPlayer player = new MediaPlayer();
+
+        try {
+            // The player runs in another process, so pass it an open file
+            // rather than a path to a private file.
+            final FileInputStream input = new FileInputStream(unit.audio);
+
+            try {
+                player.setDataSource(input.getFD());
+            } finally {
+                input.close();
+            }
+
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.prepare();
+        } catch (final IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to play %s: %s", unit.audio, e.toString());
+            player.release();
+            onPlaybackFinished(unit, false);
+            return;
+        }
+
+        player.setOnCompletionListener(mCompletionListener);
+        player.start();
+
+        mPlayer = player;
+        mPlayingUnit = unit;
+
+        if (mListener != null) {
+            mListener.onUtteranceStarted(unit.utteranceId);
+        }
+    }
+
+    private void onPlaybackFinished(Unit unit, boolean succeeded) {
+        mUnits.remove(unit);
+        releaseAudio(unit);
+
+        if (mListener != null) {
+            if (succeeded) {
+                mListener.onUtteranceDone(unit.utteranceId);
+            } else {
+                mListener.onUtteranceError(unit.utteranceId, TextToSpeech.ERROR);
+            }
+        }
+
+        playNextUnit();
+    }
+
+    private final OnCompletionListener mCompletionListener = new OnCompletionListener() {
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            if (mp != mPlayer) {
+                return;
+            }
+
+            final Unit unit = mPlayingUnit;
+
+            mPlayer.release();
+            mPlayer = null;
+            mPlayingUnit = null;
+
+            onPlaybackFinished(unit, true);
+        }
+    };
+
+    private final EventConsumer mRenderConsumer = new EventConsumer() {
+        @Override
+        public void onUtteranceEvent(int type, String utteranceId, int arg1, int arg2) {
+            final Unit unit = mRenderingUnit;
+
+            if ((unit == null) || !unit.renderId.equals(utteranceId)) {
+                // Event for a unit that was flushed.
+                return;
+            }
+
+            switch (type) {
+                case UtteranceEventQueue.EVENT_DONE:
+                    onRenderCompleted(unit);
+                    break;
+                case UtteranceEventQueue.EVENT_ERROR:
+                    onRenderFailed(unit, arg1);
+                    break;
+            }
+        }
+
+        @Override
+        public void onEventsDropped() {
+            // Rendering produces at most a few events per unit.
+        }
+    };
+
+    /**
+     * A unit waiting to be played.
+     */
+    private static class Unit {
+        public final String utteranceId;
+        public final String text;
+
+        /** The cache key, or {@code null} if the unit can't be cached. */
+        public final String key;
+
+        /** The rendered audio, or {@code null} if not rendered yet. */
+        public File audio;
+
+        /** Whether {@link #audio} is a temporary file rather than cached. */
+        public boolean temporary;
+
+        /** Whether the unit is being looked up in the cache. */
+        public boolean lookingUp;
+
+        /** The file being rendered, or {@code null} if not started. */
+        public File renderFile;
+        public String renderId;
+
+        public Unit(String utteranceId, String text, String key) {
+            this.utteranceId = utteranceId;
+            this.text = text;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.googamaphone.typeandspeak.audio.WavHeader;
+
+/**
+ * Records the segments of a save that have been written to its partial file,
+ * so an interrupted save can continue from the last completed segment. Each
+ * record is written after the sample data it describes has been flushed to
+ * disk, and a truncated record at the end of the journal is ignored.
+ * <p>
+ * The journal starts with a key identifying the text and voice, so a save of
+ * different text to the same file starts over.
+ */
+public class SaveJournal {
+    /** Version of the journal file format. */
+    private static final int VERSION = 1;
+
+    private final File mFile;
+
+    private DataOutputStream mOutput;
+    private FileOutputStream mFileOutput;
+
+    public SaveJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the key for a save. Unlike cache keys, whitespace is
+     * significant, since it changes the source positions in the journal.
+     *
+     * @param voice The voice returned by {@link SynthesisCache#getVoice}.
+     * @param text The text to save.
+     * @return The key, or {@code null} if hashing isn't available.
+     */
+    public static String getKey(String voice, String text) {
+        return SynthesisCache.hash(voice, text);
+    }
+
+    /**
+     * @return The partial WAV file that a save writes before producing the
+     *         output file.
+     */
+    public static File getPartialFile(File outputFile) {
+        return new File(outputFile.getParentFile(), "." + outputFile.getName() + ".part");
+    }
+
+    /**
+     * @return The journal file for a save.
+     */
+    public static File getJournalFile(File outputFile) {
+        return new File(outputFile.getParentFile(), "." + outputFile.getName() + ".journal");
+    }
+
+    /**
+     * Reads the last complete record from the journal.
+     *
+     * @param key The key that the journal must have been started with.
+     * @return The last record, or {@code null} if the journal doesn't exist,
+     *         has a different key, or has no records.
+     */
+    public Record read(String key) {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        Record last = null;
+
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+
+            try {
+                if ((in.readInt() != VERSION) || !in.readUTF().equals(key)) {
+                    return null;
+                }
+
+                while (true) {
+                    final Record record = new Record();
+
+                    record.segmentCount = in.readInt();
+                    record.position = in.readInt();
+                    record.sampleLength = in.readLong();
+                    record.format = new WavHeader(in.readShort(), in.readInt(), in.readShort());
+
+                    last = record;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final EOFException e) {
+            // Reached the end of the journal, or a partial record.
+        } catch (final IOException e) {
+            return null;
+        }
+
+        return last;
+    }
+
+    /**
+     * Starts a new journal, discarding any existing records.
+     *
+     * @param key Identifies the text and voice of the save.
+     */
+    public void start(String key) throws IOException {
+        open();
+
+        mOutput.writeInt(VERSION);
+        mOutput.writeUTF(key);
+        sync();
+    }
+
+    /**
+     * Continues from a record returned by {@link #read}. The journal is
+     * rewritten with only that record, which drops any partial record that
+     * follows it.
+     */
+    public void resume(String key, Record record) throws IOException {
+        start(key);
+        append(record.segmentCount, record.position, record.sampleLength, record.format);
+    }
+
+    /**
+     * Appends a record and flushes it to disk. The sample data must already
+     * have been flushed.
+     *
+     * @param segmentCount The number of segments written.
+     * @param position The source position following the last segment.
+     * @param sampleLength The number of bytes of sample data written.
+     * @param format The format of the sample data.
+     */
+    public void append(int segmentCount, int position, long sampleLength, WavHeader format)
+            throws IOException {
+        mOutput.writeInt(segmentCount);
+        mOutput.writeInt(position);
+        mOutput.writeLong(sampleLength);
+        mOutput.writeShort(format.channels);
+        mOutput.writeInt(format.sampleRate);
+        mOutput.writeShort(format.bitsPerSample);
+        sync();
+    }
+
+    public void close() {
+        if (mOutput == null) {
+            return;
+        }
+
+        try {
+            mOutput.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        mOutput = null;
+        mFileOutput = null;
+    }
+
+    /**
+     * Closes and deletes the journal.
+     */
+    public void delete() {
+        close();
+        mFile.delete();
+    }
+
+    private void open() throws IOException {
+        close();
+
+        mFileOutput = new FileOutputStream(mFile);
+        mOutput = new DataOutputStream(mFileOutput);
+    }
+
+    private void sync() throws IOException {
+        mOutput.flush();
+        mFileOutput.getFD().sync();
+    }
+
+    /**
+     * The state of a save after a number of segments.
+     */
+    public static class Record {
+        public int segmentCount;
+        public int position;
+        public long sampleLength;
+        public WavHeader format;
+    }
+}
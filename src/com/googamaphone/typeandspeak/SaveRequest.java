@@ -0,0 +1,422 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.googamaphone.typeandspeak.utils.FileSegmentSource;
+import com.googamaphone.typeandspeak.utils.SegmentSource;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Describes text to be saved to an audio file by {@link SaveService}. The text
+ * is read from a range of a document when the request runs. Text that isn't
+ * in a document is first written to a private file, so that requests stay
+ * small enough to pass in intents and to read back quickly from the queue.
+ */
+public class SaveRequest {
+    private static final String EXTRA_ID = "id";
+    private static final String EXTRA_TEXT_DIGEST = "text_digest";
+    private static final String EXTRA_LOCALE = "locale";
+    private static final String EXTRA_PITCH = "pitch";
+    private static final String EXTRA_RATE = "rate";
+    private static final String EXTRA_OUTPUT = "output";
+    private static final String EXTRA_FORMAT = "format";
+    private static final String EXTRA_NORMALIZER_RULES = "normalizer_rules";
+    private static final String EXTRA_SOURCE = "source";
+    private static final String EXTRA_SOURCE_START = "source_start";
+    private static final String EXTRA_SOURCE_END = "source_end";
+
+    /**
+     * Version of the queue file format. Version 1 had no document ranges,
+     * version 2 had no normalizer rules, and versions before 4 held text in
+     * the queue.
+     */
+    private static final int QUEUE_VERSION = 4;
+
+    /** The directory that text is written to, in the private files directory. */
+    private static final String TEXT_DIRECTORY = "save_text";
+
+    private static final String CHARSET = "UTF-8";
+
+    private static long sLastId = 0;
+
+    public final long id;
+
+    /** The document to read. */
+    public final File sourceFile;
+
+    /** The range of characters to read from the document. */
+    public final int sourceStart;
+    public final int sourceEnd;
+
+    public final Locale locale;
+    public final int pitch;
+    public final int rate;
+    public final File outputFile;
+    public final int format;
+
+    /** The {@code TextNormalizer} rules to apply, or {@code 0} for none. */
+    public final int normalizerRules;
+
+    /**
+     * A digest of the text if the document was written by
+     * {@link #createForText}, or {@code null} for other documents.
+     */
+    public final String textDigest;
+
+    /**
+     * Creates a new request that reads a range of a UTF-8 text document.
+     *
+     * @param sourceFile The document to read.
+     * @param sourceStart The offset of the first character to read.
+     * @param sourceEnd The offset following the last character to read.
+     * @param locale The locale to use for synthesis, or {@code null} to use
+     *            the engine's default.
+     * @param pitch The pitch, where {@code 50} is normal.
+     * @param rate The speech rate, where {@code 50} is normal.
+     * @param outputFile The file to write.
+     * @param format One of the {@code AudioEncoder} format constants.
+     * @param normalizerRules The {@code TextNormalizer} rules to apply, or
+     *            {@code 0} to synthesize the text as written.
+     */
+    public SaveRequest(File sourceFile, int sourceStart, int sourceEnd, Locale locale,
+            int pitch, int rate, File outputFile, int format, int normalizerRules) {
+        this(nextId(), sourceFile, sourceStart, sourceEnd, locale, pitch, rate, outputFile,
+                format, normalizerRules, null);
+    }
+
+    private SaveRequest(long id, File sourceFile, int sourceStart, int sourceEnd,
+            Locale locale, int pitch, int rate, File outputFile, int format,
+            int normalizerRules, String textDigest) {
+        this.id = id;
+        this.sourceFile = sourceFile;
+        this.sourceStart = sourceStart;
+        this.sourceEnd = sourceEnd;
+        this.locale = locale;
+        this.pitch = pitch;
+        this.rate = rate;
+        this.outputFile = outputFile;
+        this.format = format;
+        this.normalizerRules = normalizerRules;
+        this.textDigest = textDigest;
+    }
+
+    /**
+     * Creates a new request for text by writing it to a private file. This
+     * writes the whole text, so call it on a background thread.
+     *
+     * @param context The context whose files directory holds the text.
+     * @param text The text to synthesize.
+     * @see #SaveRequest(File, int, int, Locale, int, int, File, int, int)
+     */
+    public static SaveRequest createForText(Context context, String text, Locale locale,
+            int pitch, int rate, File outputFile, int format, int normalizerRules)
+            throws IOException {
+        return createForText(getTextDirectory(context), nextId(), text, locale, pitch, rate,
+                outputFile, format, normalizerRules);
+    }
+
+    private static SaveRequest createForText(File directory, long id, String text,
+            Locale locale, int pitch, int rate, File outputFile, int format,
+            int normalizerRules) throws IOException {
+        final File textFile = new File(directory, id + ".txt");
+        final File temp = new File(directory, id + ".tmp");
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        final Writer out = new OutputStreamWriter(new BufferedOutputStream(
+                new FileOutputStream(temp)), CHARSET);
+
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(textFile)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + textFile);
+        }
+
+        final String digest = SynthesisCache.hash("", text);
+
+        return new SaveRequest(id, textFile, 0, text.length(), locale, pitch, rate,
+                outputFile, format, normalizerRules, (digest != null) ? digest : textFile
+                        .getName());
+    }
+
+    /**
+     * @return The directory that {@link #createForText} writes text to.
+     */
+    public static File getTextDirectory(Context context) {
+        return new File(context.getFilesDir(), TEXT_DIRECTORY);
+    }
+
+    /**
+     * Returns a unique identifier. Identifiers increase over time, so they
+     * remain unique across restarts.
+     */
+    private static synchronized long nextId() {
+        sLastId = Math.max(sLastId + 1, System.currentTimeMillis());
+        return sLastId;
+    }
+
+    /**
+     * @return The file name without its extension.
+     */
+    public String getTitle() {
+        final String name = outputFile.getName();
+        final int extension = name.lastIndexOf('.');
+
+        return (extension > 0) ? name.substring(0, extension) : name;
+    }
+
+    /**
+     * @return The number of characters to synthesize.
+     */
+    public int getLength() {
+        return (sourceEnd - sourceStart);
+    }
+
+    /**
+     * Creates a source for the text. The document is read as segments are
+     * requested, rather than loaded into memory.
+     *
+     * @param maxLength The maximum length of a segment, in characters.
+     */
+    public SegmentSource createSource(int maxLength) {
+        return new FileSegmentSource(sourceFile, sourceStart, sourceEnd, locale, maxLength);
+    }
+
+    /**
+     * Describes the content of this request, for use in a
+     * {@link SaveJournal} key. Text is described by its digest, so saving the
+     * same text again can continue a partial save. A document is described
+     * by its path, range and modification time rather than read in full.
+     */
+    public String getContentDescription() {
+        if (textDigest != null) {
+            return textDigest;
+        }
+
+        return sourceFile.getAbsolutePath() + "|" + sourceFile.lastModified() + "|"
+                + sourceStart + "|" + sourceEnd;
+    }
+
+    /**
+     * Writes this request to the extras of an intent.
+     */
+    public void writeToIntent(Intent intent) {
+        intent.putExtra(EXTRA_ID, id);
+        intent.putExtra(EXTRA_SOURCE, sourceFile.getAbsolutePath());
+        intent.putExtra(EXTRA_SOURCE_START, sourceStart);
+        intent.putExtra(EXTRA_SOURCE_END, sourceEnd);
+        intent.putExtra(EXTRA_TEXT_DIGEST, textDigest);
+
+        intent.putExtra(EXTRA_LOCALE, locale);
+        intent.putExtra(EXTRA_PITCH, pitch);
+        intent.putExtra(EXTRA_RATE, rate);
+        intent.putExtra(EXTRA_OUTPUT, outputFile.getAbsolutePath());
+        intent.putExtra(EXTRA_FORMAT, format);
+        intent.putExtra(EXTRA_NORMALIZER_RULES, normalizerRules);
+    }
+
+    /**
+     * Reads a request from the extras of an intent.
+     *
+     * @return The request, or {@code null} if the intent doesn't contain one.
+     */
+    public static SaveRequest readFromIntent(Intent intent) {
+        final Bundle extras = intent.getExtras();
+
+        if ((extras == null) || !extras.containsKey(EXTRA_OUTPUT)) {
+            return null;
+        }
+
+        final String source = extras.getString(EXTRA_SOURCE);
+
+        if (source == null) {
+            return null;
+        }
+
+        return new SaveRequest(extras.getLong(EXTRA_ID), new File(source),
+                extras.getInt(EXTRA_SOURCE_START), extras.getInt(EXTRA_SOURCE_END),
+                (Locale) extras.getSerializable(EXTRA_LOCALE), extras.getInt(EXTRA_PITCH, 50),
+                extras.getInt(EXTRA_RATE, 50), new File(extras.getString(EXTRA_OUTPUT)),
+                extras.getInt(EXTRA_FORMAT), extras.getInt(EXTRA_NORMALIZER_RULES),
+                extras.getString(EXTRA_TEXT_DIGEST));
+    }
+
+    /**
+     * Writes a list of requests to a file. The file is replaced atomically,
+     * so a failed write leaves the previous contents intact.
+     */
+    public static void writeQueue(File file, List<SaveRequest> requests) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+
+        try {
+            out.writeInt(QUEUE_VERSION);
+            out.writeInt(requests.size());
+
+            for (SaveRequest request : requests) {
+                out.writeLong(request.id);
+                writeString(out, request.sourceFile.getAbsolutePath());
+                out.writeInt(request.sourceStart);
+                out.writeInt(request.sourceEnd);
+                out.writeBoolean(request.textDigest != null);
+
+                if (request.textDigest != null) {
+                    writeString(out, request.textDigest);
+                }
+
+                writeLocale(out, request.locale);
+                out.writeInt(request.pitch);
+                out.writeInt(request.rate);
+                writeString(out, request.outputFile.getAbsolutePath());
+                out.writeInt(request.format);
+                out.writeInt(request.normalizerRules);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Reads a list of requests written by {@link #writeQueue}. Text held in
+     * queues written by earlier versions is moved to private files, so call
+     * this on a background thread.
+     *
+     * @return The requests, or an empty list if the file doesn't exist.
+     */
+    public static List<SaveRequest> readQueue(Context context, File file) throws IOException {
+        final ArrayList<SaveRequest> requests = new ArrayList<SaveRequest>();
+
+        if (!file.exists()) {
+            return requests;
+        }
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+
+        try {
+            final int version = in.readInt();
+
+            if ((version < 1) || (version > QUEUE_VERSION)) {
+                throw new IOException("Unsupported queue version");
+            }
+
+            final int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                String text = null;
+                File sourceFile = null;
+                int sourceStart = 0;
+                int sourceEnd = 0;
+                String textDigest = null;
+
+                if ((version < 4) && ((version == 1) || in.readBoolean())) {
+                    text = readString(in);
+                } else {
+                    sourceFile = new File(readString(in));
+                    sourceStart = in.readInt();
+                    sourceEnd = in.readInt();
+
+                    if ((version >= 4) && in.readBoolean()) {
+                        textDigest = readString(in);
+                    }
+                }
+
+                final Locale locale = readLocale(in);
+                final int pitch = in.readInt();
+                final int rate = in.readInt();
+                final File outputFile = new File(readString(in));
+                final int format = in.readInt();
+                final int normalizerRules = (version >= 3) ? in.readInt() : 0;
+
+                if (text != null) {
+                    requests.add(createForText(getTextDirectory(context), id, text, locale,
+                            pitch, rate, outputFile, format, normalizerRules));
+                } else {
+                    requests.add(new SaveRequest(id, sourceFile, sourceStart, sourceEnd, locale,
+                            pitch, rate, outputFile, format, normalizerRules, textDigest));
+                }
+
+                synchronized (SaveRequest.class) {
+                    sLastId = Math.max(sLastId, id);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return requests;
+    }
+
+    /**
+     * Writes a string of any length. {@link DataOutputStream#writeUTF} is
+     * limited to 64KB, which is too short for long documents.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+
+        if (length < 0) {
+            throw new IOException("Invalid string length");
+        }
+
+        final char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+
+        return new String(chars);
+    }
+
+    private static void writeLocale(DataOutputStream out, Locale locale) throws IOException {
+        out.writeBoolean(locale != null);
+
+        if (locale != null) {
+            writeString(out, locale.getLanguage());
+            writeString(out, locale.getCountry());
+            writeString(out, locale.getVariant());
+        }
+    }
+
+    private static Locale readLocale(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        return new Locale(readString(in), readString(in), readString(in));
+    }
+}
@@ -0,0 +1,901 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googamaphone.compat.TextToSpeechCompatUtils;
+import com.googamaphone.typeandspeak.SynthesisJob.SynthesisJobListener;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.SegmentSource;
+import com.googamaphone.typeandspeak.utils.SsmlBuilder;
+import com.googamaphone.typeandspeak.utils.TextNormalizer;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.provider.MediaStore.MediaColumns;
+import android.provider.Settings;
+import android.speech.tts.TextToSpeech;
+import android.support.v4.app.NotificationCompat;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Saves text to audio files in the background. Requests are queued and
+ * persisted, so saves continue when the activity is destroyed and resume if
+ * the process is restarted. Requests run concurrently when the engine pool
+ * has more than one engine, with each running request using a share of the
+ * pool.
+ * <p>
+ * Start the service with {@link #ACTION_SAVE} to queue a request, and bind to
+ * it to receive progress and results.
+ */
+public class SaveService extends Service {
+    /** Queues the {@link SaveRequest} in the intent extras. */
+    public static final String ACTION_SAVE = "com.googamaphone.typeandspeak.action.SAVE";
+
+    /** Cancels the request identified by {@link #EXTRA_REQUEST_ID}. */
+    public static final String ACTION_CANCEL = "com.googamaphone.typeandspeak.action.CANCEL";
+
+    /** The number of engine instances to use, applied when no saves are running. */
+    public static final String EXTRA_ENGINE_COUNT = "engine_count";
+
+    public static final String EXTRA_REQUEST_ID = "request_id";
+
+    /** The file used to persist the queue, in the private files directory. */
+    private static final String QUEUE_FILE = "save_queue";
+
+    /** The directory used to cache synthesized segments, in the cache directory. */
+    private static final String CACHE_DIRECTORY = "synthesis";
+
+    /** The maximum size of the segment cache, in bytes. */
+    private static final long CACHE_SIZE = (32 * 1024 * 1024);
+
+    /** The age after which segment and render temporary files are orphaned. */
+    private static final long TEMP_FILE_AGE = DateUtils.HOUR_IN_MILLIS;
+
+    /** The age after which unqueued partial files and journals are deleted. */
+    private static final long PARTIAL_FILE_AGE = DateUtils.DAY_IN_MILLIS;
+
+    private static final int NOTIFICATION_PROGRESS = 1;
+
+    /** The interval between progress samples of running requests. */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    /** Writes the queue file in the order that changes are made. */
+    private static final ExecutorService QUEUE_WRITER = Executors.newSingleThreadExecutor();
+
+    /** Receives progress samples for every request, or {@code null}. */
+    private static SaveInstrumentation sInstrumentation;
+
+    private final Handler mHandler = new Handler();
+
+    private final LocalBinder mBinder = new LocalBinder();
+    private final ArrayList<SaveListener> mListeners = new ArrayList<SaveListener>();
+
+    /** Requests that haven't started, in the order they were queued. */
+    private final ArrayList<SaveRequest> mWaiting = new ArrayList<SaveRequest>();
+
+    /** Requests that are running, in the order they started. */
+    private final ArrayList<RunningSave> mRunning = new ArrayList<RunningSave>();
+
+    /** Engines in use by running requests. */
+    private final HashSet<TextToSpeech> mBusyEngines = new HashSet<TextToSpeech>();
+
+    private NotificationManager mNotificationManager;
+    private TextToSpeech mTts;
+    private TextToSpeechPool mPool;
+    private SynthesisCache mCache;
+    private File mQueueFile;
+
+    private String mArtistValue;
+    private String mAlbumValue;
+
+    /** Whether the primary engine has initialized. */
+    private boolean mTtsReady = false;
+
+    /** Whether the primary engine failed to initialize. */
+    private boolean mTtsFailed = false;
+
+    /** Whether the persisted queue has been read. */
+    private boolean mQueueLoaded = false;
+
+    /** Whether the pool is resizing or initializing engines. */
+    private boolean mPoolPending = false;
+
+    private int mRequestedEngineCount = 1;
+    private int mEngineCount = 1;
+
+    /** The most recent start identifier, used to avoid stopping early. */
+    private int mLastStartId = 0;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        mQueueFile = new File(getFilesDir(), QUEUE_FILE);
+        mArtistValue = getString(R.string.app_name);
+        mAlbumValue = getString(R.string.album_name);
+        mCache = new SynthesisCache(new File(getCacheDir(), CACHE_DIRECTORY), CACHE_SIZE);
+
+        // Read the queue, scan the cache directory before the first lookup
+        // needs it, and clean up after saves that were interrupted.
+        QUEUE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<SaveRequest> queue;
+
+                try {
+                    queue = SaveRequest.readQueue(SaveService.this, mQueueFile);
+                } catch (final IOException e) {
+                    LogUtils.log(SaveService.class, Log.ERROR, "Failed to read save queue: %s",
+                            e.toString());
+                    queue = new ArrayList<SaveRequest>();
+                }
+
+                final List<SaveRequest> requests = queue;
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onQueueLoaded(requests);
+                    }
+                });
+
+                mCache.getSize();
+                deleteOrphanedFiles(requests);
+            }
+        });
+
+        mTts = new TextToSpeech(this, mInitListener);
+        mPool = new TextToSpeechPool(this, mTts);
+
+        updateNotification();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Also drops the queue if it's read after the service is destroyed.
+        mHandler.removeCallbacksAndMessages(null);
+
+        // Running requests are still queued, so keep their partial files.
+        for (RunningSave save : mRunning) {
+            save.job.suspend();
+        }
+
+        mRunning.clear();
+        mPool.shutdown();
+        mTts.shutdown();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        handleCommand(intent);
+
+        // Restart after being killed, and resume from the persisted queue.
+        return START_STICKY;
+    }
+
+    /**
+     * Handles start requests on platforms before API 5.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void onStart(Intent intent, int startId) {
+        mLastStartId = startId;
+        handleCommand(intent);
+    }
+
+    /**
+     * Deletes temporary files left in the output directory when the process
+     * died during a save. Partial files and journals of queued requests are
+     * kept so the requests can resume, and others are kept for a day in case
+     * the same text is saved again. Text written for requests that were
+     * never queued is also deleted.
+     *
+     * @param queue The requests read from the queue file.
+     */
+    private void deleteOrphanedFiles(List<SaveRequest> queue) {
+        final HashSet<File> queuedFiles = new HashSet<File>();
+
+        for (SaveRequest request : queue) {
+            queuedFiles.add(SaveJournal.getPartialFile(request.outputFile));
+            queuedFiles.add(SaveJournal.getJournalFile(request.outputFile));
+            queuedFiles.add(request.sourceFile);
+        }
+
+        final long now = System.currentTimeMillis();
+        final File[] texts = SaveRequest.getTextDirectory(this).listFiles();
+
+        if (texts != null) {
+            for (File file : texts) {
+                // Text is written shortly before its request is queued.
+                final long age = (now - file.lastModified());
+
+                if (!queuedFiles.contains(file) && (age > TEMP_FILE_AGE) && file.delete()) {
+                    LogUtils.log(this, Log.INFO, "Deleted orphaned file %s", file);
+                }
+            }
+        }
+
+        final File directory = new File(Environment.getExternalStorageDirectory(),
+                "typeandspeak");
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+            final long age = (now - file.lastModified());
+
+            if (!name.startsWith(".") || queuedFiles.contains(file)) {
+                continue;
+            }
+
+            final boolean orphaned;
+
+            if (name.endsWith(".tmp")) {
+                orphaned = (age > TEMP_FILE_AGE);
+            } else if (name.endsWith(".part") || name.endsWith(".journal")) {
+                orphaned = (age > PARTIAL_FILE_AGE);
+            } else {
+                orphaned = false;
+            }
+
+            if (orphaned && file.delete()) {
+                LogUtils.log(this, Log.INFO, "Deleted orphaned file %s", file);
+            }
+        }
+    }
+
+    /**
+     * Sets a hook that receives the same progress samples as listeners, for
+     * every request, along with the engine that produced them. This can be
+     * used to compare the throughput of engines and speech rates.
+     *
+     * @param instrumentation The hook, or {@code null} to remove it.
+     */
+    public static void setInstrumentation(SaveInstrumentation instrumentation) {
+        sInstrumentation = instrumentation;
+    }
+
+    /**
+     * @return The cache of synthesized segments, which tracks hits and misses.
+     */
+    public SynthesisCache getCache() {
+        return mCache;
+    }
+
+    public void addListener(SaveListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(SaveListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return Whether a queued or running request will write the specified
+     *         file.
+     */
+    public boolean isQueued(File outputFile) {
+        for (RunningSave save : mRunning) {
+            if (save.request.outputFile.equals(outputFile)) {
+                return true;
+            }
+        }
+
+        for (SaveRequest request : mWaiting) {
+            if (request.outputFile.equals(outputFile)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The files that queued or running requests will write.
+     */
+    public List<File> getQueuedFiles() {
+        final ArrayList<File> files = new ArrayList<File>();
+
+        for (RunningSave save : mRunning) {
+            files.add(save.request.outputFile);
+        }
+
+        for (SaveRequest request : mWaiting) {
+            files.add(request.outputFile);
+        }
+
+        return files;
+    }
+
+    /**
+     * Cancels a queued or running request and deletes its output.
+     *
+     * @param requestId The identifier of the request to cancel.
+     */
+    public void cancel(long requestId) {
+        for (int i = 0; i < mWaiting.size(); i++) {
+            if (mWaiting.get(i).id == requestId) {
+                final SaveRequest request = mWaiting.remove(i);
+
+                onQueueChanged();
+                deleteText(request);
+                return;
+            }
+        }
+
+        final RunningSave save = findRunningSave(requestId);
+
+        if (save != null) {
+            save.job.cancel();
+            finishRunningSave(save);
+            onQueueChanged();
+            deleteText(save.request);
+        }
+    }
+
+    private void handleCommand(Intent intent) {
+        if (intent == null) {
+            // Restarted with the persisted queue.
+            return;
+        }
+
+        final String action = intent.getAction();
+
+        if (ACTION_SAVE.equals(action)) {
+            final SaveRequest request = SaveRequest.readFromIntent(intent);
+
+            mRequestedEngineCount = Math.max(1, intent.getIntExtra(EXTRA_ENGINE_COUNT, 1));
+
+            if (request != null) {
+                mWaiting.add(request);
+
+                if (mTtsFailed) {
+                    failWaitingRequests();
+                } else {
+                    onQueueChanged();
+                }
+            }
+        } else if (ACTION_CANCEL.equals(action)) {
+            cancel(intent.getLongExtra(EXTRA_REQUEST_ID, -1));
+        }
+    }
+
+    /**
+     * Adds the requests read from the queue file ahead of any that were
+     * queued while it was read, and starts them.
+     */
+    private void onQueueLoaded(List<SaveRequest> requests) {
+        mWaiting.addAll(0, requests);
+        mQueueLoaded = true;
+
+        if (mTtsFailed) {
+            failWaitingRequests();
+        } else {
+            onQueueChanged();
+        }
+    }
+
+    /**
+     * Fails every waiting request once the primary engine has failed to
+     * initialize, since it will never become ready to save them.
+     */
+    private void failWaitingRequests() {
+        final ArrayList<SaveRequest> failed = new ArrayList<SaveRequest>(mWaiting);
+
+        mWaiting.clear();
+
+        for (SaveRequest request : failed) {
+            onSaveFailed(request);
+        }
+
+        onQueueChanged();
+
+        for (SaveRequest request : failed) {
+            deleteText(request);
+        }
+
+        // Wait for the queue file, whose requests also need to fail.
+        if (mQueueLoaded && mRunning.isEmpty()) {
+            stopSelfResult(mLastStartId);
+        }
+    }
+
+    /**
+     * Persists the queue, starts waiting requests, and updates the
+     * notification.
+     */
+    private void onQueueChanged() {
+        if (!mQueueLoaded) {
+            // Writing now would drop the requests that haven't been read.
+            updateNotification();
+            return;
+        }
+
+        final ArrayList<SaveRequest> queue = new ArrayList<SaveRequest>();
+
+        for (RunningSave save : mRunning) {
+            queue.add(save.request);
+        }
+
+        queue.addAll(mWaiting);
+
+        QUEUE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SaveRequest.writeQueue(mQueueFile, queue);
+                } catch (final IOException e) {
+                    LogUtils.log(SaveService.class, Log.ERROR, "Failed to write save queue: %s",
+                            e.toString());
+                }
+            }
+        });
+
+        startWaitingRequests();
+        updateNotification();
+    }
+
+    /**
+     * Starts as many waiting requests as there are idle engines, splitting
+     * the idle engines evenly between the requests that start.
+     */
+    private void startWaitingRequests() {
+        if (!mQueueLoaded || !mTtsReady || mPoolPending) {
+            return;
+        }
+
+        if (mRunning.isEmpty() && (mEngineCount != mRequestedEngineCount)) {
+            // Only resize the pool while no engines are in use.
+            mEngineCount = mRequestedEngineCount;
+            mPoolPending = true;
+            mPool.setSize(mEngineCount);
+            mPool.whenReady(mPoolReadyRunnable);
+            return;
+        }
+
+        final ArrayList<TextToSpeech> idle = new ArrayList<TextToSpeech>();
+
+        for (TextToSpeech tts : mPool.getEngines()) {
+            if (!mBusyEngines.contains(tts)) {
+                idle.add(tts);
+            }
+        }
+
+        while (!mWaiting.isEmpty() && !idle.isEmpty()) {
+            final int share = (idle.size() / Math.min(idle.size(), mWaiting.size()));
+            final List<TextToSpeech> engines = new ArrayList<TextToSpeech>(idle.subList(0,
+                    share));
+
+            idle.removeAll(engines);
+            startRequest(mWaiting.remove(0), engines);
+        }
+
+        if (mRunning.isEmpty() && mWaiting.isEmpty()) {
+            stopSelfResult(mLastStartId);
+        }
+    }
+
+    private void startRequest(SaveRequest request, List<TextToSpeech> engines) {
+        final String engine = Settings.Secure.getString(getContentResolver(),
+                Settings.Secure.TTS_DEFAULT_SYNTH);
+        final float pitch = (request.pitch / 50.0f);
+        final float rate = (request.rate / 50.0f);
+        SsmlBuilder ssmlBuilder = null;
+        final int maxInputLength = TextToSpeechCompatUtils.getMaxSpeechInputLength();
+        int maxLength = maxInputLength;
+
+        if (SsmlBuilder.isSupported(engine)) {
+            // The markup carries the prosody, so leave the engines at normal.
+            ssmlBuilder = new SsmlBuilder();
+            ssmlBuilder.setProsody(pitch, rate);
+            maxLength -= SsmlBuilder.MAX_MARKUP_LENGTH;
+            TextToSpeechPool.configure(engines, request.locale, 1.0f, 1.0f);
+        } else {
+            TextToSpeechPool.configure(engines, request.locale, pitch, rate);
+        }
+
+        // Engines reject input longer than their maximum, so synthesize the
+        // text in segments and stream them into the output file.
+        final SegmentSource source = request.createSource(maxLength);
+
+        AudioEncoder encoder = AudioEncoder.createEncoder(request.format);
+
+        if (encoder == null) {
+            encoder = AudioEncoder.createEncoder(AudioEncoder.FORMAT_WAV);
+        }
+
+        final RunningSave save = new RunningSave(request, engines, engine, new SynthesisJob(
+                engines, source, request.outputFile, encoder));
+
+        mRunning.add(save);
+        mBusyEngines.addAll(engines);
+
+        final String voice = SynthesisCache.getVoice(engine, request.locale, request.pitch,
+                request.rate);
+
+        save.job.setListener(mJobListener);
+        save.job.setCache(mCache, voice);
+
+        save.job.setSsmlBuilder(ssmlBuilder);
+        save.job.setMaxInputLength(maxInputLength);
+
+        if (request.normalizerRules != 0) {
+            save.job.setNormalizer(new TextNormalizer(request.normalizerRules));
+        }
+
+        // Normalized text and markup sound different, so a partial save made
+        // with other settings can't be continued.
+        save.job.setResumeKey(SaveJournal.getKey(voice + "|" + request.normalizerRules
+                + ((ssmlBuilder != null) ? "|ssml" : ""), request.getContentDescription()));
+        save.job.start();
+
+        for (SaveListener listener : new ArrayList<SaveListener>(mListeners)) {
+            listener.onSaveStarted(request);
+        }
+
+        mHandler.removeCallbacks(mProgressRunnable);
+        mHandler.postDelayed(mProgressRunnable, PROGRESS_INTERVAL);
+    }
+
+    /**
+     * Samples the progress of running requests and passes it to listeners
+     * and the instrumentation hook.
+     */
+    private void sampleProgress() {
+        for (RunningSave save : mRunning) {
+            save.job.getProgress(save.progress);
+
+            for (SaveListener listener : new ArrayList<SaveListener>(mListeners)) {
+                listener.onSaveProgress(save.request, save.progress);
+            }
+
+            reportInstrumentation(save, false);
+        }
+    }
+
+    private void reportInstrumentation(RunningSave save, boolean finished) {
+        final SaveInstrumentation instrumentation = sInstrumentation;
+
+        if (instrumentation != null) {
+            instrumentation.onProgressSampled(save.request, save.engine, save.engines.size(),
+                    save.progress, finished);
+        }
+    }
+
+    private void onJobFinished(SynthesisJob job, boolean succeeded) {
+        final RunningSave save = findRunningSave(job);
+
+        if (save == null) {
+            return;
+        }
+
+        finishRunningSave(save);
+
+        save.job.getProgress(save.progress);
+        reportInstrumentation(save, true);
+
+        LogUtils.log(this, Log.INFO, "Finished %s with %s: %s", save.request.getTitle(),
+                save.engine, save.progress);
+
+        if (succeeded) {
+            onSaveCompleted(save.request);
+        } else {
+            onSaveFailed(save.request);
+        }
+
+        onQueueChanged();
+        deleteText(save.request);
+    }
+
+    /**
+     * Deletes the text that {@link SaveRequest#createForText} wrote for a
+     * request that has left the queue. The queue is written first, so the
+     * text of a queued request is never missing after a restart.
+     */
+    private void deleteText(final SaveRequest request) {
+        if (request.textDigest == null) {
+            return;
+        }
+
+        QUEUE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.sourceFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Queues media information to be inserted into the database after a
+     * successful save operation and notifies listeners.
+     */
+    private void onSaveCompleted(SaveRequest request) {
+        final ContentValues contentValues = new ContentValues(10);
+        final String path = request.outputFile.getAbsolutePath();
+        final String title = request.getTitle();
+
+        contentValues.put(MediaColumns.DISPLAY_NAME, title);
+        contentValues.put(MediaColumns.TITLE, title);
+        contentValues.put(AudioColumns.ARTIST, mArtistValue);
+        contentValues.put(AudioColumns.ALBUM, mAlbumValue);
+        contentValues.put(AudioColumns.IS_ALARM, true);
+        contentValues.put(AudioColumns.IS_RINGTONE, true);
+        contentValues.put(AudioColumns.IS_NOTIFICATION, true);
+        contentValues.put(AudioColumns.IS_MUSIC, true);
+        contentValues.put(MediaColumns.MIME_TYPE, AudioEncoder.getMimeTypeForPath(path));
+        contentValues.put(MediaColumns.DATA, path);
+
+        MediaIndexWriter.getInstance(this).insert(contentValues, null);
+
+        boolean handled = false;
+
+        for (SaveListener listener : new ArrayList<SaveListener>(mListeners)) {
+            handled |= listener.onSaveCompleted(request, contentValues);
+        }
+
+        if (!handled) {
+            final Intent intent = new Intent(this, LibraryActivity.class);
+
+            showResultNotification(request, android.R.drawable.stat_sys_download_done,
+                    getString(R.string.saved_title), request.outputFile.getName(), intent);
+        }
+    }
+
+    private void onSaveFailed(SaveRequest request) {
+        boolean handled = false;
+
+        for (SaveListener listener : new ArrayList<SaveListener>(mListeners)) {
+            handled |= listener.onSaveFailed(request);
+        }
+
+        if (!handled) {
+            final Intent intent = new Intent(this, TypeAndSpeak.class);
+            final String message = getString(R.string.save_failed_message,
+                    request.outputFile.getName());
+
+            showResultNotification(request, android.R.drawable.stat_notify_error,
+                    getString(R.string.save_failed_title), message, intent);
+        }
+    }
+
+    private void finishRunningSave(RunningSave save) {
+        mRunning.remove(save);
+        mBusyEngines.removeAll(save.engines);
+    }
+
+    private RunningSave findRunningSave(long requestId) {
+        for (RunningSave save : mRunning) {
+            if (save.request.id == requestId) {
+                return save;
+            }
+        }
+
+        return null;
+    }
+
+    private RunningSave findRunningSave(SynthesisJob job) {
+        for (RunningSave save : mRunning) {
+            if (save.job == job) {
+                return save;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Shows an ongoing notification while requests are queued or running,
+     * which also keeps the service in the foreground.
+     */
+    private void updateNotification() {
+        if (mRunning.isEmpty() && mWaiting.isEmpty()) {
+            if (Build.VERSION.SDK_INT >= 5) {
+                stopForeground(true);
+            } else {
+                mNotificationManager.cancel(NOTIFICATION_PROGRESS);
+            }
+
+            return;
+        }
+
+        final RunningSave running = mRunning.isEmpty() ? null : mRunning.get(0);
+        final SaveRequest current = (running == null) ? mWaiting.get(0) : running.request;
+        final SynthesisProgress progress = (running == null) ? null : running.progress;
+        final int percent = (progress == null) ? SynthesisProgress.UNKNOWN : progress
+                .getPercent();
+        final int remaining = (mRunning.size() + mWaiting.size() - 1);
+        final String text;
+
+        if (remaining > 0) {
+            text = getString(R.string.saving_notification_queued, current.getTitle(), remaining);
+        } else {
+            text = current.getTitle();
+        }
+
+        final Intent intent = new Intent(this, TypeAndSpeak.class);
+        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, 0);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.saving_notification_title))
+                .setContentText(text).setContentIntent(contentIntent).setOngoing(true);
+
+        if (percent == SynthesisProgress.UNKNOWN) {
+            builder.setProgress(0, 0, true);
+        } else {
+            builder.setProgress(100, percent, false);
+        }
+
+        if ((progress != null) && (progress.remainingMillis != SynthesisProgress.UNKNOWN)) {
+            builder.setContentInfo(DateUtils
+                    .formatElapsedTime(progress.remainingMillis / DateUtils.SECOND_IN_MILLIS));
+        }
+
+        final Notification notification = builder.build();
+
+        if (Build.VERSION.SDK_INT >= 5) {
+            startForeground(NOTIFICATION_PROGRESS, notification);
+        } else {
+            mNotificationManager.notify(NOTIFICATION_PROGRESS, notification);
+        }
+    }
+
+    private void showResultNotification(SaveRequest request, int icon, String title,
+            String text, Intent intent) {
+        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        final Notification notification = new NotificationCompat.Builder(this)
+                .setSmallIcon(icon).setContentTitle(title).setContentText(text)
+                .setContentIntent(contentIntent).setAutoCancel(true).build();
+
+        // Use a distinct identifier for each request, so results accumulate.
+        mNotificationManager.notify((int) request.id, notification);
+    }
+
+    private final TextToSpeech.OnInitListener mInitListener = new TextToSpeech.OnInitListener() {
+        @Override
+        public void onInit(int status) {
+            if (status != TextToSpeech.SUCCESS) {
+                LogUtils.log(SaveService.class, Log.ERROR, "Failed to initialize engine");
+
+                // Engines without a voice installed may fail synchronously,
+                // before any requests have been queued.
+                mTtsFailed = true;
+                failWaitingRequests();
+                return;
+            }
+
+            mTtsReady = true;
+            startWaitingRequests();
+        }
+    };
+
+    private final Runnable mPoolReadyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPoolPending = false;
+            startWaitingRequests();
+        }
+    };
+
+    private final Runnable mProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRunning.isEmpty()) {
+                return;
+            }
+
+            sampleProgress();
+            updateNotification();
+
+            mHandler.postDelayed(this, PROGRESS_INTERVAL);
+        }
+    };
+
+    private final SynthesisJobListener mJobListener = new SynthesisJobListener() {
+        @Override
+        public void onJobCompleted(SynthesisJob job) {
+            onJobFinished(job, true);
+        }
+
+        @Override
+        public void onJobFailed(SynthesisJob job) {
+            onJobFinished(job, false);
+        }
+    };
+
+    private static class RunningSave {
+        public final SaveRequest request;
+        public final List<TextToSpeech> engines;
+        public final SynthesisJob job;
+        public final SynthesisProgress progress = new SynthesisProgress();
+
+        /** The package name of the engine, or {@code null} if unknown. */
+        public final String engine;
+
+        public RunningSave(SaveRequest request, List<TextToSpeech> engines, String engine,
+                SynthesisJob job) {
+            this.request = request;
+            this.engines = engines;
+            this.engine = engine;
+            this.job = job;
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public SaveService getService() {
+            return SaveService.this;
+        }
+    }
+
+    /**
+     * Receives the progress and results of save requests on the main thread.
+     */
+    public interface SaveListener {
+        public void onSaveStarted(SaveRequest request);
+
+        /**
+         * Called periodically while a request is running. The progress object
+         * is reused for later samples.
+         */
+        public void onSaveProgress(SaveRequest request, SynthesisProgress progress);
+
+        /**
+         * @return Whether the listener notified the user. If no listener
+         *         notifies the user, the service shows a notification.
+         */
+        public boolean onSaveCompleted(SaveRequest request, ContentValues contentValues);
+
+        /**
+         * @return Whether the listener notified the user.
+         */
+        public boolean onSaveFailed(SaveRequest request);
+    }
+
+    /**
+     * Receives progress samples for every request on the main thread.
+     */
+    public interface SaveInstrumentation {
+        /**
+         * @param request The request being saved.
+         * @param engine The package name of the engine, or {@code null} if
+         *            unknown.
+         * @param engineCount The number of engine instances in use.
+         * @param progress The progress of the request.
+         * @param finished Whether this is the final sample, taken when the
+         *            request completed or failed.
+         */
+        public void onProgressSampled(SaveRequest request, String engine, int engineCount,
+                SynthesisProgress progress, boolean finished);
+    }
+}
@@ -0,0 +1,434 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.googamaphone.typeandspeak.utils.LogUtils;
+
+import android.util.Log;
+
+/**
+ * Stores synthesized audio on disk, keyed by a hash of the text and the voice
+ * that spoke it, so identical text doesn't need to be synthesized again. The
+ * least recently used entries are deleted when the cache grows beyond its
+ * maximum size.
+ * <p>
+ * Entries are WAV files named by their key. Access order is kept in each
+ * file's modification time, so it survives restarts. Entries that are in use
+ * can be pinned so they aren't deleted. All methods are thread-safe, and
+ * audio is copied into the cache without holding its lock, so lookups don't
+ * wait for copies.
+ */
+public class SynthesisCache {
+    private static final String EXTENSION = ".wav";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Entry sizes by key, in access order. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+
+    /** The number of times each pinned entry has been acquired, by key. */
+    private final HashMap<String, Integer> mPinned = new HashMap<String, Integer>();
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    private long mSize = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /** Whether the directory has been scanned for existing entries. */
+    private boolean mLoaded = false;
+
+    /**
+     * @param directory The directory to store entries in. It is created if
+     *            necessary and should not be used for anything else.
+     * @param maxSize The maximum total size of the entries, in bytes.
+     */
+    public SynthesisCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Describes the settings that affect the sound of synthesized speech.
+     *
+     * @param engine The package name of the engine, or {@code null} if
+     *            unknown.
+     * @param locale The locale, or {@code null} for the engine's default.
+     * @param pitch The pitch, where {@code 50} is normal.
+     * @param rate The speech rate, where {@code 50} is normal.
+     * @return A string to pass to {@link #getKey}.
+     */
+    public static String getVoice(String engine, Locale locale, int pitch, int rate) {
+        return engine + "|" + locale + "|" + pitch + "|" + rate;
+    }
+
+    /**
+     * Returns the key for text spoken with a voice. Runs of whitespace are
+     * collapsed before hashing, since they don't change the audio.
+     *
+     * @param voice The voice returned by {@link #getVoice}.
+     * @param text The text to speak.
+     * @return The key, or {@code null} if hashing isn't available.
+     */
+    public static String getKey(String voice, CharSequence text) {
+        return hash(voice, normalize(text));
+    }
+
+    /**
+     * @return A hex SHA-1 hash of the voice and the exact text, or
+     *         {@code null} if hashing isn't available.
+     */
+    static String hash(String voice, String text) {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+            digest.update(voice.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(text.getBytes("UTF-8"));
+        } catch (final NoSuchAlgorithmException e) {
+            return null;
+        } catch (final UnsupportedEncodingException e) {
+            return null;
+        }
+
+        final byte[] hash = digest.digest();
+        final char[] key = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            key[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            key[(i * 2) + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+
+        return new String(key);
+    }
+
+    private static String normalize(CharSequence text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        boolean space = false;
+
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                space = (builder.length() > 0);
+            } else {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+
+                builder.append(c);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Looks up an entry and marks it as the most recently used. The file may
+     * be read directly, but it may be deleted by a later {@link #put} once
+     * enough newer entries have been added. Use {@link #acquire} to keep it.
+     *
+     * @param key The key returned by {@link #getKey}.
+     * @return The cached audio, or {@code null} if there's no entry.
+     */
+    public synchronized File get(String key) {
+        loadIfNeeded();
+
+        if (mEntries.get(key) == null) {
+            mMissCount++;
+            return null;
+        }
+
+        final File file = getFile(key);
+
+        if (!file.exists()) {
+            // Deleted externally, for example when storage ran low.
+            mSize -= mEntries.remove(key);
+            mMissCount++;
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        mHitCount++;
+
+        return file;
+    }
+
+    /**
+     * Looks up an entry like {@link #get}, and keeps it from being deleted
+     * until {@link #release} is called with the same key. Entries may be
+     * acquired more than once.
+     *
+     * @param key The key returned by {@link #getKey}.
+     * @return The cached audio, or {@code null} if there's no entry.
+     */
+    public synchronized File acquire(String key) {
+        final File file = get(key);
+
+        if (file != null) {
+            pin(key);
+        }
+
+        return file;
+    }
+
+    /**
+     * Releases an entry returned by {@link #acquire}. Once every acquisition
+     * has been released, the entry may be deleted to make room for others.
+     *
+     * @param key The key passed to {@link #acquire}.
+     */
+    public synchronized void release(String key) {
+        final Integer count = mPinned.get(key);
+
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            mPinned.put(key, (count - 1));
+            return;
+        }
+
+        mPinned.remove(key);
+        trimToSize();
+    }
+
+    /**
+     * Copies audio into the cache, then deletes the least recently used
+     * entries that aren't pinned until the cache fits within its maximum
+     * size. The audio is copied to a temporary file without holding the
+     * lock, and then renamed.
+     *
+     * @param key The key returned by {@link #getKey}.
+     * @param audio The WAV file to copy.
+     * @return The cached copy, or {@code null} if the audio couldn't be
+     *         cached. Like the result of {@link #get}, it isn't pinned.
+     */
+    public File put(String key, File audio) {
+        return put(key, audio, false);
+    }
+
+    /**
+     * Copies audio into the cache like {@link #put(String, File)}, and pins
+     * the entry like {@link #acquire}.
+     *
+     * @return The cached copy, or {@code null} if the audio couldn't be
+     *         cached.
+     */
+    public File putAndAcquire(String key, File audio) {
+        return put(key, audio, true);
+    }
+
+    private File put(String key, File audio, boolean pin) {
+        synchronized (this) {
+            loadIfNeeded();
+
+            if (mEntries.containsKey(key)) {
+                if (pin) {
+                    pin(key);
+                }
+
+                return getFile(key);
+            }
+        }
+
+        if (audio.length() > mMaxSize) {
+            return null;
+        }
+
+        File temp = null;
+
+        try {
+            // Another thread may be caching the same key.
+            temp = File.createTempFile(key, ".tmp", mDirectory);
+            copy(audio, temp);
+        } catch (final IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to cache %s: %s", key, e.toString());
+
+            if (temp != null) {
+                temp.delete();
+            }
+
+            return null;
+        }
+
+        synchronized (this) {
+            final File file = getFile(key);
+
+            if (mEntries.containsKey(key)) {
+                temp.delete();
+            } else if (temp.renameTo(file)) {
+                final long size = file.length();
+
+                mEntries.put(key, size);
+                mSize += size;
+            } else {
+                temp.delete();
+                return null;
+            }
+
+            if (pin) {
+                pin(key);
+            }
+
+            trimToSize();
+
+            return file;
+        }
+    }
+
+    /**
+     * Deletes all entries that aren't pinned.
+     */
+    public synchronized void clear() {
+        loadIfNeeded();
+
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+
+            if (!mPinned.containsKey(entry.getKey())) {
+                getFile(entry.getKey()).delete();
+                mSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The total size of the entries, in bytes.
+     */
+    public synchronized long getSize() {
+        loadIfNeeded();
+
+        return mSize;
+    }
+
+    private void pin(String key) {
+        final Integer count = mPinned.get(key);
+
+        mPinned.put(key, (count == null) ? 1 : (count + 1));
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + EXTENSION);
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+
+            if (mPinned.containsKey(entry.getKey())) {
+                continue;
+            }
+
+            getFile(entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads the existing entries, oldest first, and deletes any left over
+     * from interrupted copies.
+     */
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtils.log(this, Log.ERROR, "Failed to create cache directory %s", mDirectory);
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, LAST_MODIFIED_COMPARATOR);
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (!name.endsWith(EXTENSION)) {
+                file.delete();
+                continue;
+            }
+
+            final String key = name.substring(0, name.length() - EXTENSION.length());
+            final long size = file.length();
+
+            mEntries.put(key, size);
+            mSize += size;
+        }
+
+        trimToSize();
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final FileInputStream in = new FileInputStream(source);
+
+        try {
+            final FileOutputStream out = new FileOutputStream(destination);
+
+            try {
+                int count;
+
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final Comparator<File> LAST_MODIFIED_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            final long lhsModified = lhs.lastModified();
+            final long rhsModified = rhs.lastModified();
+
+            return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+        }
+    };
+}
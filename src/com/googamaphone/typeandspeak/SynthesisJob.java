@@ -0,0 +1,1160 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googamaphone.compat.TextToSpeechCompatUtils;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
+import com.googamaphone.typeandspeak.audio.AudioFileWriter;
+import com.googamaphone.typeandspeak.audio.WavEncoder;
+import com.googamaphone.typeandspeak.audio.WavHeader;
+import com.googamaphone.typeandspeak.utils.LogUtils;
+import com.googamaphone.typeandspeak.utils.SegmentSource;
+import com.googamaphone.typeandspeak.utils.SsmlBuilder;
+import com.googamaphone.typeandspeak.utils.TextNormalizer;
+import com.googamaphone.typeandspeak.utils.UtteranceEventQueue;
+import com.googamaphone.typeandspeak.utils.UtteranceEventQueue.EventConsumer;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.Engine;
+import android.util.Log;
+
+/**
+ * Synthesizes text from a {@link SegmentSource} into a single audio file. Each
+ * segment is synthesized into a temporary WAV file next to the output. When
+ * more than one engine is provided, each engine works on a different segment.
+ * Completed segments are appended in order to a partial WAV file on a
+ * background thread, and their temporary files are deleted. Once every segment
+ * has been appended, the partial file is passed through an
+ * {@link AudioEncoder} to produce the output, so a file with the output's name
+ * is only ever complete.
+ * <p>
+ * If a resume key is set, each appended segment is recorded in a
+ * {@link SaveJournal}. A job that fails or is interrupted keeps its partial
+ * file and journal, and a later job with the same key and output continues
+ * after the last recorded segment.
+ * <p>
+ * If a {@link SynthesisCache} is set, segments found in the cache are appended
+ * from the cache instead of being synthesized, and newly synthesized segments
+ * are added to the cache. Cached segments stay pinned until they have been
+ * appended.
+ * <p>
+ * Segments are read from the source, normalized, and looked up in the cache
+ * on the background thread, about one segment per engine ahead of the
+ * engines.
+ * <p>
+ * All methods must be called on the main thread, and listener callbacks are
+ * delivered on the main thread.
+ */
+public class SynthesisJob {
+    /** Prefix for utterance identifiers. */
+    private static final String UTTERANCE_PREFIX = "synthesize:";
+
+    /** The most segments read by a single task on the I/O thread. */
+    private static final int MAX_READ_SEGMENTS = 16;
+
+    /** Writes output files in the order that segments complete. */
+    private static final ExecutorService IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /** Sequence number used to generate unique utterance identifiers. */
+    private static int sJobSequence = 0;
+
+    private final HashMap<String, String> mParams = new HashMap<String, String>();
+    private final Handler mHandler = new Handler();
+
+    /** Segments that have been synthesized but not yet appended. */
+    private final BitSet mCompletedSegments = new BitSet();
+
+    /** Cache keys of synthesized and cached segments that haven't been appended. */
+    private final Map<Integer, String> mSegmentKeys = new HashMap<Integer, String>();
+
+    /** Cached audio for segments that haven't been appended. */
+    private final Map<Integer, File> mCachedSegments = new HashMap<Integer, File>();
+
+    private final Worker[] mWorkers;
+    private final SegmentSource mSource;
+    private final File mOutputFile;
+    private final File mPartialFile;
+    private final String mJobId;
+
+    /**
+     * Source positions following segments that haven't been appended, or
+     * {@code -1} for pieces of a split segment, which the job can't resume
+     * after.
+     */
+    private final Map<Integer, Integer> mSegmentEnds = new HashMap<Integer, Integer>();
+
+    /** Segments read ahead that are waiting for an engine. */
+    private final LinkedList<Segment> mReadySegments = new LinkedList<Segment>();
+
+    private SynthesisJobListener mListener;
+
+    private SynthesisCache mCache;
+    private String mVoice;
+
+    /** Identifies the text and voice in the journal, or {@code null}. */
+    private String mResumeKey;
+
+    /** The journal, or {@code null} if disabled. Only accessed on the I/O thread. */
+    private SaveJournal mJournal;
+
+    private final AudioEncoder mEncoder;
+
+    /** The writer for the partial file. Only accessed on the I/O thread. */
+    private AudioFileWriter mWriter;
+
+    /** Time spent encoding, written on the I/O thread. */
+    private volatile long mEncodeTime = 0;
+
+    /** Bytes written to the partial and output files, written on the I/O thread. */
+    private volatile long mWrittenBytes = 0;
+
+    /** The normalizer applied to segments, or {@code null} if none. */
+    private TextNormalizer mNormalizer;
+
+    /** Time spent normalizing, in nanoseconds, written on the I/O thread. */
+    private volatile long mNormalizeTime = 0;
+
+    /** The most characters the engines accept in a single utterance. */
+    private int mMaxInputLength = TextToSpeechCompatUtils.getMaxSpeechInputLength();
+
+    /** Builds markup for each segment, or {@code null} to send plain text. */
+    private SsmlBuilder mSsmlBuilder;
+
+    /** Bytes per second of the output, or zero until the first append. */
+    private volatile int mByteRate = 0;
+
+    /** The number of characters in completely synthesized segments. */
+    private int mSynthesizedCharacters = 0;
+
+    /** The number of bytes of sample data in completely synthesized segments. */
+    private long mSynthesizedBytes = 0;
+
+    /** The number of completely synthesized segments. */
+    private int mSynthesizedSegments = 0;
+
+    /** The number of segments read from the cache. */
+    private int mCachedSegmentCount = 0;
+
+    /** The number of characters and bytes recovered from a previous job. */
+    private int mResumedCharacters = 0;
+    private long mResumedBytes = 0;
+
+    /** The number of segments read from the source. */
+    private int mSegmentCount = 0;
+
+    /** The next segment to append to the output. */
+    private int mNextAppendIndex = 0;
+
+    /** The index of the next segment to read. Only accessed on the I/O thread. */
+    private int mReadIndex = 0;
+
+    /** Whether segments are being read on the I/O thread. */
+    private boolean mReading = false;
+
+    /** Whether all segments have been read from the source. */
+    private boolean mSourceExhausted = false;
+
+    /** Whether the output is being closed. */
+    private boolean mFinishing = false;
+
+    /** Whether the job has completed, failed, or been canceled. */
+    private boolean mFinished = false;
+
+    private long mStartTime;
+    private long mEndTime;
+
+    /**
+     * Creates a new job that distributes segments across several engines. The
+     * engines must be configured identically, since their output is
+     * concatenated.
+     *
+     * @param engines The engines to use for synthesis.
+     * @param source The text to synthesize.
+     * @param outputFile The file to write.
+     * @param encoder The encoder for the output format.
+     */
+    public SynthesisJob(List<TextToSpeech> engines, SegmentSource source, File outputFile,
+            AudioEncoder encoder) {
+        if (engines.isEmpty()) {
+            throw new IllegalArgumentException("At least one engine is required");
+        }
+
+        mWorkers = new Worker[engines.size()];
+        mSource = source;
+        mOutputFile = outputFile;
+        mPartialFile = SaveJournal.getPartialFile(outputFile);
+        mEncoder = encoder;
+        mJobId = Integer.toString(sJobSequence++);
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(engines.get(i));
+        }
+    }
+
+    public void setListener(SynthesisJobListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the normalizer applied to each segment before it is synthesized.
+     * Must be called before the job starts.
+     *
+     * @param normalizer The normalizer, or {@code null} to synthesize
+     *            segments as written.
+     */
+    public void setNormalizer(TextNormalizer normalizer) {
+        mNormalizer = normalizer;
+    }
+
+    /**
+     * Sets the builder used to wrap each segment in SSML, so pauses after
+     * paragraphs have a fixed length in the output. Must be called before
+     * the job starts.
+     *
+     * @param builder The builder, or {@code null} to send segments as plain
+     *            text. Only set a builder for engines that parse SSML.
+     */
+    public void setSsmlBuilder(SsmlBuilder builder) {
+        mSsmlBuilder = builder;
+    }
+
+    /**
+     * Sets the most characters the engines accept in a single utterance,
+     * including any markup. Segments that are longer after normalizing are
+     * split. Must be called before the job starts.
+     *
+     * @param maxLength The maximum input length.
+     */
+    public void setMaxInputLength(int maxLength) {
+        mMaxInputLength = maxLength;
+    }
+
+    /**
+     * Sets the cache used to look up and store segments. Must be called
+     * before the job starts.
+     *
+     * @param cache The cache, or {@code null} to synthesize every segment.
+     * @param voice The voice of the engines, returned by
+     *            {@link SynthesisCache#getVoice}.
+     */
+    public void setCache(SynthesisCache cache, String voice) {
+        mCache = cache;
+        mVoice = voice;
+    }
+
+    /**
+     * Enables resuming. Must be called before the job starts.
+     *
+     * @param key Identifies the exact text and voice, returned by
+     *            {@link SaveJournal#getKey}. A journal with a different key
+     *            is discarded.
+     */
+    public void setResumeKey(String key) {
+        mResumeKey = key;
+    }
+
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    /**
+     * Fills in a snapshot of the job's progress. Progress within segments
+     * that are still being synthesized is estimated from the size of their
+     * temporary files, using the ratio of characters to audio in the
+     * segments completed so far. Throughput doesn't include segments
+     * recovered from a previous job.
+     *
+     * @param progress The object to fill in.
+     */
+    public void getProgress(SynthesisProgress progress) {
+        long partialBytes = 0;
+        int partialCharacters = 0;
+
+        for (Worker worker : mWorkers) {
+            if (worker.utteranceId == null) {
+                continue;
+            }
+
+            final long bytes = getSampleLength(getSegmentFile(worker.segmentIndex));
+
+            partialBytes += bytes;
+
+            if (mSynthesizedBytes > 0) {
+                final long estimate = ((bytes * mSynthesizedCharacters) / mSynthesizedBytes);
+
+                // Don't report a segment as complete until the engine does.
+                partialCharacters += (int) Math.min(estimate,
+                        Math.max(0, (worker.segmentLength - 1)));
+            }
+        }
+
+        final long endTime = mFinished ? mEndTime : SystemClock.uptimeMillis();
+        final long elapsed = Math.max(1, (endTime - mStartTime));
+        final int byteRate = mByteRate;
+
+        progress.totalCharacters = mSource.getLength();
+        progress.completedCharacters = (mSynthesizedCharacters + partialCharacters);
+        progress.completedSegments = mSynthesizedSegments;
+        progress.audioBytes = (mSynthesizedBytes + partialBytes);
+        progress.outputBytes = mFinished ? mOutputFile.length() : mPartialFile.length();
+        progress.elapsedMillis = elapsed;
+        progress.engineCount = mWorkers.length;
+        progress.encodeMillis = mEncodeTime;
+        progress.writtenBytes = mWrittenBytes;
+        progress.normalizeMillis = (mNormalizeTime / 1000000.0f);
+        progress.cachedSegments = mCachedSegmentCount;
+
+        final int newCharacters = (progress.completedCharacters - mResumedCharacters);
+        final long newBytes = (progress.audioBytes - mResumedBytes);
+
+        progress.charactersPerSecond = ((newCharacters * 1000.0f) / elapsed);
+
+        if (byteRate > 0) {
+            progress.audioSeconds = ((float) progress.audioBytes / byteRate);
+            progress.audioSecondsPerSecond = ((newBytes * 1000.0f) / byteRate / elapsed);
+        } else {
+            progress.audioSeconds = SynthesisProgress.UNKNOWN;
+            progress.audioSecondsPerSecond = SynthesisProgress.UNKNOWN;
+        }
+
+        if (mFinished) {
+            progress.remainingMillis = 0;
+        } else if ((progress.totalCharacters > 0) && (newCharacters > 0)) {
+            final long remaining = (progress.totalCharacters - progress.completedCharacters);
+            progress.remainingMillis = Math.max(0, ((remaining * elapsed) / newCharacters));
+        } else {
+            progress.remainingMillis = SynthesisProgress.UNKNOWN;
+        }
+    }
+
+    /**
+     * Opens the partial file, then starts synthesizing from the first segment
+     * that hasn't been recorded in the journal.
+     */
+    public void start() {
+        mStartTime = SystemClock.uptimeMillis();
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SaveJournal.Record record;
+
+                try {
+                    record = openOutput();
+
+                    if (record != null) {
+                        mSource.seek(record.position);
+                        mReadIndex = record.segmentCount;
+                    }
+                } catch (final IOException e) {
+                    postFailure(e);
+                    return;
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onOutputOpened(record);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Opens the partial file on the I/O thread, continuing it if the journal
+     * matches.
+     *
+     * @return The journal record to continue from, or {@code null} if
+     *         starting from the beginning.
+     */
+    private SaveJournal.Record openOutput() throws IOException {
+        if (mResumeKey == null) {
+            mWriter = new AudioFileWriter(mPartialFile, new WavEncoder());
+            return null;
+        }
+
+        mJournal = new SaveJournal(SaveJournal.getJournalFile(mOutputFile));
+
+        final SaveJournal.Record record = mJournal.read(mResumeKey);
+
+        if ((record != null) && mPartialFile.exists()) {
+            try {
+                mWriter = new AudioFileWriter(mPartialFile, new WavEncoder(), record.format,
+                        record.sampleLength);
+                mJournal.resume(mResumeKey, record);
+                return record;
+            } catch (final IOException e) {
+                LogUtils.log(this, Log.ERROR, "Failed to resume %s: %s", mOutputFile,
+                        e.toString());
+
+                if (mWriter != null) {
+                    mWriter.suspend();
+                    mWriter = null;
+                }
+            }
+        }
+
+        mJournal.start(mResumeKey);
+        mWriter = new AudioFileWriter(mPartialFile, new WavEncoder());
+
+        return null;
+    }
+
+    private void onOutputOpened(SaveJournal.Record record) {
+        if (mFinished) {
+            // Canceled while opening the output.
+            return;
+        }
+
+        if (record != null) {
+            mSegmentCount = record.segmentCount;
+            mNextAppendIndex = record.segmentCount;
+            mSynthesizedSegments = record.segmentCount;
+            mSynthesizedCharacters = record.position;
+            mSynthesizedBytes = record.sampleLength;
+            mResumedCharacters = record.position;
+            mResumedBytes = record.sampleLength;
+            mByteRate = record.format.getByteRate();
+
+            LogUtils.log(this, Log.INFO, "Resuming %s after %d segments", mOutputFile,
+                    record.segmentCount);
+        }
+
+        for (Worker worker : mWorkers) {
+            TextToSpeechCompatUtils.setUtteranceListener(worker.tts, worker.eventQueue);
+        }
+
+        readSegmentsIfNeeded();
+    }
+
+    /**
+     * Stops synthesis and deletes the partial file and journal. The listener
+     * is not notified.
+     */
+    public void cancel() {
+        if (mFinished) {
+            return;
+        }
+
+        mFinished = true;
+        mEndTime = SystemClock.uptimeMillis();
+
+        stopListening();
+        stopEngines();
+        cleanUp(false);
+    }
+
+    /**
+     * Stops synthesis, keeping the partial file and journal so that a later
+     * job with the same resume key can continue. Without a resume key, this
+     * is the same as {@link #cancel}. The listener is not notified.
+     */
+    public void suspend() {
+        if (mFinished) {
+            return;
+        }
+
+        mFinished = true;
+        mEndTime = SystemClock.uptimeMillis();
+
+        stopListening();
+        stopEngines();
+        cleanUp(mResumeKey != null);
+    }
+
+    /**
+     * Starts reading segments on the I/O thread unless enough segments have
+     * been read ahead of the engines.
+     */
+    private void readSegmentsIfNeeded() {
+        if (mReading || mSourceExhausted || mFinished
+                || (mReadySegments.size() >= mWorkers.length)) {
+            return;
+        }
+
+        final int count = (mWorkers.length - mReadySegments.size());
+
+        mReading = true;
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Segment> segments = new ArrayList<Segment>();
+                int uncachedCount = 0;
+                boolean exhausted = false;
+                IOException error = null;
+
+                // Cached segments don't need an engine, so keep reading past
+                // them.
+                try {
+                    while ((uncachedCount < count) && (segments.size() < MAX_READ_SEGMENTS)) {
+                        final int readCount = segments.size();
+
+                        if (!readSegment(segments)) {
+                            exhausted = true;
+                            break;
+                        }
+
+                        for (int i = readCount; i < segments.size(); i++) {
+                            if (segments.get(i).cached == null) {
+                                uncachedCount++;
+                            }
+                        }
+                    }
+                } catch (final IOException e) {
+                    error = e;
+                }
+
+                final boolean finalExhausted = exhausted;
+                final IOException finalError = error;
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSegmentsRead(segments, finalExhausted, finalError);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads the next segment on the I/O thread, and prepares its text for
+     * synthesis. Normalizing can lengthen a segment, for example by spelling
+     * out digits, so a segment that no longer fits the engine's maximum input
+     * length is split into several. If a cache is set, each segment is looked
+     * up and a cached segment is pinned.
+     *
+     * @param segments The list to add the segments to.
+     * @return {@code false} if the source is exhausted.
+     */
+    private boolean readSegment(List<Segment> segments) throws IOException {
+        final int position = mSource.getPosition();
+        final String source = mSource.nextSegment();
+
+        if (source == null) {
+            return false;
+        }
+
+        final int end = mSource.getPosition();
+
+        // Segments end with the whitespace that follows them. Find the pause
+        // from the segment as written, before normalizing.
+        final int pause = (mSsmlBuilder == null) ? 0 : mSsmlBuilder.getPauseAfter(source, 0,
+                source.length());
+
+        TextNormalizer.Result normalized = null;
+        String text = source;
+
+        if (mNormalizer != null) {
+            final long startTime = System.nanoTime();
+
+            normalized = mNormalizer.normalize(source, 0, source.length());
+            text = normalized.text;
+            mNormalizeTime += (System.nanoTime() - startTime);
+        }
+
+        final int maxLength = (mSsmlBuilder == null) ? mMaxInputLength
+                : (mMaxInputLength - SsmlBuilder.MAX_MARKUP_LENGTH);
+        int start = 0;
+        int startPosition = position;
+
+        while (true) {
+            final int split = getSplitOffset(text, start, maxLength, (mSsmlBuilder != null));
+
+            if (split >= text.length()) {
+                segments.add(prepareSegment(text.substring(start), pause, startPosition, end,
+                        true));
+                return true;
+            }
+
+            // Pieces within expanded text map to the start of that text.
+            final int splitPosition = position + ((normalized == null) ? split
+                    : normalized.getOriginalOffset(split));
+
+            segments.add(prepareSegment(text.substring(start, split), 0, startPosition,
+                    splitPosition, false));
+
+            start = split;
+            startPosition = splitPosition;
+        }
+    }
+
+    /**
+     * Builds the text sent to the engine for a segment, and looks it up in
+     * the cache.
+     *
+     * @param text The normalized text of the segment.
+     * @param pause The pause after the segment, in milliseconds.
+     * @param start The source position of the segment.
+     * @param end The source position following the segment.
+     * @param resumable Whether the job can resume at {@code end}, which
+     *            isn't true within a segment that was split.
+     */
+    private Segment prepareSegment(String text, int pause, int start, int end,
+            boolean resumable) {
+        if (mSsmlBuilder != null) {
+            text = mSsmlBuilder.build(text, pause, mMaxInputLength).text;
+        }
+
+        final String key = (mCache == null) ? null : SynthesisCache.getKey(mVoice, text);
+        final File cached = (key == null) ? null : mCache.acquire(key);
+        final long sampleLength = (cached == null) ? 0 : getSampleLength(cached);
+
+        return new Segment(mReadIndex++, (end - start), (resumable ? end : -1), text, key,
+                cached, sampleLength);
+    }
+
+    /**
+     * Finds where to end a piece of a segment that is too long for the
+     * engine, preferring to split after whitespace.
+     *
+     * @param text The text of the segment.
+     * @param start The start of the piece.
+     * @param maxLength The maximum length of a piece.
+     * @param escaped Whether the piece will be escaped as markup, which
+     *            lengthens some characters.
+     * @return The end of the piece, which is the length of the text if the
+     *         rest of the text fits.
+     */
+    private static int getSplitOffset(String text, int start, int maxLength, boolean escaped) {
+        int limit = start;
+        int length = 0;
+
+        while (limit < text.length()) {
+            length += escaped ? SsmlBuilder.getEscapedLength(text.charAt(limit)) : 1;
+
+            if (length > maxLength) {
+                break;
+            }
+
+            limit++;
+        }
+
+        if (limit >= text.length()) {
+            return text.length();
+        } else if (limit == start) {
+            // Always make progress.
+            return (start + 1);
+        }
+
+        for (int i = limit; i > (start + ((limit - start) / 2)); i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+
+        // Don't split a surrogate pair.
+        if (((limit - 1) > start) && Character.isHighSurrogate(text.charAt(limit - 1))) {
+            limit--;
+        }
+
+        return limit;
+    }
+
+    /**
+     * Completes segments that were found in the cache and hands the others
+     * to idle engines.
+     */
+    private void onSegmentsRead(List<Segment> segments, boolean exhausted, IOException error) {
+        mReading = false;
+
+        if (mFinished) {
+            for (Segment segment : segments) {
+                if (segment.cached != null) {
+                    releaseCachedSegment(segment.key);
+                }
+            }
+
+            return;
+        }
+
+        for (Segment segment : segments) {
+            mSegmentCount = (segment.index + 1);
+            mSegmentEnds.put(segment.index, segment.end);
+
+            if (segment.cached == null) {
+                mReadySegments.add(segment);
+                continue;
+            }
+
+            mSynthesizedCharacters += segment.length;
+            mSynthesizedBytes += segment.sampleLength;
+            mSynthesizedSegments++;
+            mCachedSegmentCount++;
+            mCachedSegments.put(segment.index, segment.cached);
+            mSegmentKeys.put(segment.index, segment.key);
+            mCompletedSegments.set(segment.index);
+        }
+
+        if (error != null) {
+            fail(error);
+            return;
+        }
+
+        mSourceExhausted = exhausted;
+
+        appendCompletedSegments();
+        synthesizeReadySegments();
+    }
+
+    /**
+     * Hands segments that have been read to idle engines, then reads more
+     * segments or finishes the output.
+     */
+    private void synthesizeReadySegments() {
+        for (Worker worker : mWorkers) {
+            if (mFinished || mReadySegments.isEmpty()) {
+                break;
+            }
+
+            if (worker.utteranceId == null) {
+                synthesizeSegment(worker, mReadySegments.removeFirst());
+            }
+        }
+
+        readSegmentsIfNeeded();
+        finishOutputIfComplete();
+    }
+
+    private void synthesizeSegment(Worker worker, Segment segment) {
+        final File segmentFile = getSegmentFile(segment.index);
+
+        if (segment.key != null) {
+            mSegmentKeys.put(segment.index, segment.key);
+        }
+
+        worker.segmentIndex = segment.index;
+        worker.segmentLength = segment.length;
+        worker.utteranceId = UTTERANCE_PREFIX + mJobId + ":" + segment.index;
+
+        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, worker.utteranceId);
+
+        final int result = worker.tts.synthesizeToFile(segment.text, mParams,
+                segmentFile.getAbsolutePath());
+
+        if (result != TextToSpeech.SUCCESS) {
+            fail(null);
+        }
+    }
+
+    /**
+     * Releases a cache entry on the I/O thread, since releasing may delete
+     * entries.
+     */
+    private void releaseCachedSegment(final String key) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.release(key);
+            }
+        });
+    }
+
+    private void onUtteranceEvent(Worker worker, int type, String utteranceId, int errorCode) {
+        if (mFinished || (worker.utteranceId == null) || !worker.utteranceId.equals(utteranceId)) {
+            // Event for a previous job or segment.
+            return;
+        }
+
+        switch (type) {
+            case UtteranceEventQueue.EVENT_DONE:
+                worker.utteranceId = null;
+                mSynthesizedCharacters += worker.segmentLength;
+                mSynthesizedBytes += getSampleLength(getSegmentFile(worker.segmentIndex));
+                mSynthesizedSegments++;
+                mCompletedSegments.set(worker.segmentIndex);
+                appendCompletedSegments();
+                synthesizeReadySegments();
+                break;
+            case UtteranceEventQueue.EVENT_ERROR:
+                LogUtils.log(this, Log.ERROR, "Failed to synthesize %s, error %d", utteranceId,
+                        errorCode);
+                fail(null);
+                break;
+        }
+    }
+
+    /**
+     * Appends completed segments to the output, stopping at the first segment
+     * that hasn't completed so that the output stays in order.
+     */
+    private void appendCompletedSegments() {
+        while (mCompletedSegments.get(mNextAppendIndex)) {
+            final File cached = mCachedSegments.remove(mNextAppendIndex);
+
+            mCompletedSegments.clear(mNextAppendIndex);
+
+            final int end = mSegmentEnds.remove(mNextAppendIndex);
+            final String key = mSegmentKeys.remove(mNextAppendIndex);
+
+            if (cached != null) {
+                appendSegment(cached, false, key, mNextAppendIndex, end);
+            } else {
+                appendSegment(getSegmentFile(mNextAppendIndex), true, key, mNextAppendIndex,
+                        end);
+            }
+
+            mNextAppendIndex++;
+        }
+    }
+
+    /**
+     * Appends a segment to the output on the I/O thread.
+     *
+     * @param segmentFile The audio to append.
+     * @param temporary Whether the file is a temporary file to delete after
+     *            appending, rather than an entry in the cache.
+     * @param key The key to cache a temporary file under, or the key of the
+     *            pinned cache entry to release. May be {@code null} for a
+     *            temporary file.
+     * @param index The index of the segment.
+     * @param end The source position following the segment, or {@code -1}
+     *            if the segment shouldn't be recorded in the journal.
+     */
+    private void appendSegment(final File segmentFile, final boolean temporary,
+            final String key, final int index, final int end) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long startTime = SystemClock.uptimeMillis();
+
+                try {
+                    if (mWriter == null) {
+                        // Failed to open the output.
+                        return;
+                    }
+
+                    final long inputLength = mWriter.getInputLength();
+
+                    mWriter.append(segmentFile);
+                    mWrittenBytes += (mWriter.getInputLength() - inputLength);
+                    mByteRate = mWriter.getFormat().getByteRate();
+
+                    if ((mJournal != null) && (end >= 0)) {
+                        mWriter.sync();
+                        mJournal.append((index + 1), end, mWriter.getInputLength(),
+                                mWriter.getFormat());
+                    }
+
+                    mEncodeTime += (SystemClock.uptimeMillis() - startTime);
+
+                    if (temporary && (key != null)) {
+                        mCache.put(key, segmentFile);
+                    }
+                } catch (final IOException e) {
+                    postFailure(e);
+                } finally {
+                    if (temporary) {
+                        segmentFile.delete();
+                    } else {
+                        mCache.release(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private void finishOutputIfComplete() {
+        if (mFinishing || mFinished || !mSourceExhausted || (mNextAppendIndex < mSegmentCount)) {
+            return;
+        }
+
+        mFinishing = true;
+
+        stopListening();
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The source is only read on this thread.
+                mSource.close();
+
+                if (mWriter == null) {
+                    // Failed to open the output.
+                    return;
+                }
+
+                final long startTime = SystemClock.uptimeMillis();
+
+                try {
+                    mWriter.close();
+                    encodeOutput();
+                } catch (final IOException e) {
+                    postFailure(e);
+                    return;
+                }
+
+                if (mJournal != null) {
+                    mJournal.delete();
+                }
+
+                mEncodeTime += (SystemClock.uptimeMillis() - startTime);
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onOutputFinished();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Produces the output from the completed partial file on the I/O thread.
+     * WAV output is renamed rather than copied.
+     */
+    private void encodeOutput() throws IOException {
+        if (mEncoder instanceof WavEncoder) {
+            if (!mPartialFile.renameTo(mOutputFile)) {
+                throw new IOException("Failed to rename " + mPartialFile);
+            }
+
+            return;
+        }
+
+        final AudioFileWriter writer = new AudioFileWriter(mOutputFile, mEncoder);
+
+        try {
+            writer.append(mPartialFile);
+            writer.close();
+        } catch (final IOException e) {
+            writer.abort();
+            throw e;
+        }
+
+        mWrittenBytes += mOutputFile.length();
+        mPartialFile.delete();
+    }
+
+    private void onOutputFinished() {
+        if (mFinished) {
+            // Canceled, suspended, or failed while closing the output, so
+            // the clean up deletes it.
+            return;
+        }
+
+        mFinished = true;
+        mEndTime = SystemClock.uptimeMillis();
+
+        if (mListener != null) {
+            mListener.onJobCompleted(this);
+        }
+    }
+
+    private void postFailure(final IOException e) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                fail(e);
+            }
+        });
+    }
+
+    private void fail(Exception e) {
+        if (mFinished) {
+            return;
+        }
+
+        mFinished = true;
+        mEndTime = SystemClock.uptimeMillis();
+
+        if (e != null) {
+            LogUtils.log(this, Log.ERROR, "Failed to write %s: %s", mOutputFile, e.toString());
+        }
+
+        stopListening();
+        stopEngines();
+        cleanUp(mResumeKey != null);
+
+        if (mListener != null) {
+            mListener.onJobFailed(this);
+        }
+    }
+
+    private void stopListening() {
+        for (Worker worker : mWorkers) {
+            worker.utteranceId = null;
+
+            TextToSpeechCompatUtils.setUtteranceListener(worker.tts, null);
+            worker.eventQueue.clear();
+        }
+    }
+
+    private void stopEngines() {
+        for (Worker worker : mWorkers) {
+            worker.tts.stop();
+        }
+    }
+
+    /**
+     * Deletes temporary files, and the partial file and journal unless they
+     * are kept for resuming. Once the output is being closed, the partial
+     * file can't be resumed, so the partial file, journal, and any output
+     * are always deleted.
+     *
+     * @param keepPartial Whether to keep the partial file and journal.
+     */
+    private void cleanUp(final boolean keepPartial) {
+        final int segmentCount = mSegmentCount;
+        final boolean finishing = mFinishing;
+
+        // Release cached segments that won't be appended.
+        for (int index : mCachedSegments.keySet()) {
+            releaseCachedSegment(mSegmentKeys.get(index));
+        }
+
+        mCachedSegments.clear();
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSource.close();
+
+                if (finishing) {
+                    // The closing task ran first, and may have renamed or
+                    // encoded the partial file into the output.
+                    mPartialFile.delete();
+                    mOutputFile.delete();
+
+                    if (mJournal != null) {
+                        mJournal.delete();
+                    } else {
+                        SaveJournal.getJournalFile(mOutputFile).delete();
+                    }
+                } else if (keepPartial) {
+                    if (mWriter != null) {
+                        mWriter.suspend();
+                    }
+
+                    if (mJournal != null) {
+                        mJournal.close();
+                    }
+                } else {
+                    if (mWriter != null) {
+                        mWriter.abort();
+                    } else {
+                        mPartialFile.delete();
+                    }
+
+                    if (mJournal != null) {
+                        mJournal.delete();
+                    } else {
+                        SaveJournal.getJournalFile(mOutputFile).delete();
+                    }
+                }
+
+                for (int i = 0; i < segmentCount; i++) {
+                    getSegmentFile(i).delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the approximate number of bytes of sample data in a WAV file
+     * that may still be growing.
+     */
+    private static long getSampleLength(File segmentFile) {
+        return Math.max(0, (segmentFile.length() - WavHeader.HEADER_SIZE));
+    }
+
+    /**
+     * Returns the temporary file for a segment. Temporary files are written
+     * to the same directory as the output, since the engine may not be able
+     * to write to this application's private directories.
+     */
+    private File getSegmentFile(int index) {
+        return new File(mOutputFile.getParentFile(), "." + mOutputFile.getName() + "."
+                + index + ".tmp");
+    }
+
+    /**
+     * A segment read from the source, with the text to synthesize.
+     */
+    private static class Segment {
+        public final int index;
+
+        /** The number of source characters in the segment. */
+        public final int length;
+
+        /**
+         * The source position following the segment, or {@code -1} if the
+         * job can't resume after it.
+         */
+        public final int end;
+
+        public final String text;
+
+        /** The cache key, or {@code null} if there's no cache. */
+        public final String key;
+
+        /** The pinned cache entry, or {@code null} if not cached. */
+        public final File cached;
+
+        /** The number of bytes of sample data in the cache entry. */
+        public final long sampleLength;
+
+        public Segment(int index, int length, int end, String text, String key, File cached,
+                long sampleLength) {
+            this.index = index;
+            this.length = length;
+            this.end = end;
+            this.text = text;
+            this.key = key;
+            this.cached = cached;
+            this.sampleLength = sampleLength;
+        }
+    }
+
+    /**
+     * Tracks the segment being synthesized by a single engine. Each engine
+     * has its own event queue, since queues support a single producer.
+     */
+    private class Worker implements EventConsumer {
+        public final TextToSpeech tts;
+        public final UtteranceEventQueue eventQueue;
+
+        /** The segment being synthesized, or {@code null} if idle. */
+        public String utteranceId;
+        public int segmentIndex;
+
+        /** The number of source characters in the segment. */
+        public int segmentLength;
+
+        public Worker(TextToSpeech tts) {
+            this.tts = tts;
+            this.eventQueue = new UtteranceEventQueue(mHandler, this);
+        }
+
+        @Override
+        public void onUtteranceEvent(int type, String utteranceId, int arg1, int arg2) {
+            SynthesisJob.this.onUtteranceEvent(this, type, utteranceId, arg1);
+        }
+
+        @Override
+        public void onEventsDropped() {
+            // A job produces at most a few events per segment.
+        }
+    }
+
+    public interface SynthesisJobListener {
+        public void onJobCompleted(SynthesisJob job);
+
+        public void onJobFailed(SynthesisJob job);
+    }
+}
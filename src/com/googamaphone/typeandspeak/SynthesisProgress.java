@@ -0,0 +1,93 @@
+
+package com.googamaphone.typeandspeak;
+
+/**
+ * A snapshot of the progress of a {@link SynthesisJob}, filled in by
+ * {@link SynthesisJob#getProgress}. Throughput is averaged over the time since
+ * the job started, and doesn't include segments recovered from an interrupted
+ * job.
+ * <p>
+ * Characters are only known to be complete at segment boundaries, so progress
+ * within the segments being synthesized is estimated from the amount of audio
+ * the engines have written so far.
+ */
+public class SynthesisProgress {
+    /** Value used for quantities that aren't known yet. */
+    public static final int UNKNOWN = -1;
+
+    /** The length of the text, or {@link #UNKNOWN}. */
+    public int totalCharacters = UNKNOWN;
+
+    /** The estimated number of characters synthesized. */
+    public int completedCharacters;
+
+    /** The number of segments synthesized completely. */
+    public int completedSegments;
+
+    /** The number of bytes of sample data written by the engines. */
+    public long audioBytes;
+
+    /** The duration of the audio written by the engines, or {@link #UNKNOWN}. */
+    public float audioSeconds = UNKNOWN;
+
+    /** The size of the partial file, or the output file once finished. */
+    public long outputBytes;
+
+    /** The time since the job started. */
+    public long elapsedMillis;
+
+    public float charactersPerSecond;
+
+    /** Seconds of audio produced per second, or {@link #UNKNOWN}. */
+    public float audioSecondsPerSecond = UNKNOWN;
+
+    /** The estimated time until synthesis completes, or {@link #UNKNOWN}. */
+    public long remainingMillis = UNKNOWN;
+
+    /** The number of engine instances synthesizing segments in parallel. */
+    public int engineCount;
+
+    /** The time spent appending segments and encoding the output. */
+    public long encodeMillis;
+
+    /**
+     * The number of bytes written to the partial and output files, which
+     * doesn't include the segment files written by engines. Together with
+     * {@link #outputBytes} and {@link #encodeMillis}, this compares the cost
+     * of output formats.
+     */
+    public long writtenBytes;
+
+    /**
+     * The time spent normalizing text, which can be compared with
+     * {@link #elapsedMillis} to show the cost of normalization.
+     */
+    public float normalizeMillis;
+
+    /** The number of segments appended from the cache instead of synthesized. */
+    public int cachedSegments;
+
+    /**
+     * @return The percentage of characters completed, or {@link #UNKNOWN} if
+     *         the length of the text isn't known.
+     */
+    public int getPercent() {
+        if (totalCharacters <= 0) {
+            return UNKNOWN;
+        }
+
+        return (int) ((100L * completedCharacters) / totalCharacters);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d chars, %d segments, %.1f s audio, %d bytes output, "
+                + "%d ms elapsed, %.1f chars/s, %.2f audio s/s, %d ms remaining, %d engines, "
+                + "%d ms encoding, %d bytes written, %.2f ms normalizing, "
+                + "%d cached segments",
+                completedCharacters, totalCharacters, completedSegments, audioSeconds,
+                outputBytes, elapsedMillis, charactersPerSecond, audioSecondsPerSecond,
+                remainingMillis, engineCount, encodeMillis, writtenBytes,
+                normalizeMillis, cachedSegments);
+    }
+}
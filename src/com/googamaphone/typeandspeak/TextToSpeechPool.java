@@ -0,0 +1,201 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.googamaphone.typeandspeak.utils.LogUtils;
+
+import android.content.Context;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.OnInitListener;
+import android.util.Log;
+
+/**
+ * Maintains a set of text-to-speech instances for synthesizing several
+ * segments at once. The pool shares a primary instance with its owner and
+ * creates the remaining instances itself. Instances that fail to initialize
+ * are left out of the pool.
+ * <p>
+ * Whether instances actually synthesize concurrently depends on the engine,
+ * since some engines process requests from all clients on a single thread.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class TextToSpeechPool {
+    private final ArrayList<TextToSpeech> mReadyEngines = new ArrayList<TextToSpeech>();
+    private final ArrayList<TextToSpeech> mCreatedEngines = new ArrayList<TextToSpeech>();
+    private final ArrayList<Runnable> mReadyCallbacks = new ArrayList<Runnable>();
+
+    private final Context mContext;
+    private final TextToSpeech mPrimary;
+
+    /** The number of created engines that haven't finished initializing. */
+    private int mPendingCount = 0;
+
+    private boolean mShutdown = false;
+
+    /**
+     * Creates a pool containing only the primary engine.
+     *
+     * @param context The parent context.
+     * @param primary An initialized engine owned by the caller.
+     */
+    public TextToSpeechPool(Context context, TextToSpeech primary) {
+        mContext = context;
+        mPrimary = primary;
+        mReadyEngines.add(primary);
+    }
+
+    /**
+     * Sets the number of engines in the pool, including the primary engine.
+     * Additional engines are created as needed and initialize asynchronously.
+     * Reducing the size shuts down engines created by the pool.
+     *
+     * @param size The number of engines, which must be at least one.
+     */
+    public void setSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least one");
+        }
+
+        if (mShutdown) {
+            return;
+        }
+
+        while ((mCreatedEngines.size() + 1) > size) {
+            final TextToSpeech tts = mCreatedEngines.remove(mCreatedEngines.size() - 1);
+
+            if (!mReadyEngines.remove(tts)) {
+                // Still initializing.
+                mPendingCount--;
+            }
+
+            tts.shutdown();
+        }
+
+        while ((mCreatedEngines.size() + 1) < size) {
+            final EngineInitListener listener = new EngineInitListener();
+            final TextToSpeech tts = new TextToSpeech(mContext, listener);
+
+            mPendingCount++;
+            mCreatedEngines.add(tts);
+            listener.attach(tts);
+        }
+
+        dispatchReadyIfNeeded();
+    }
+
+    /**
+     * Runs a callback once all engines have finished initializing. If the
+     * pool is ready, the callback runs immediately.
+     *
+     * @param callback The callback to run.
+     */
+    public void whenReady(Runnable callback) {
+        mReadyCallbacks.add(callback);
+        dispatchReadyIfNeeded();
+    }
+
+    /**
+     * @return The initialized engines, starting with the primary engine.
+     */
+    public List<TextToSpeech> getEngines() {
+        return new ArrayList<TextToSpeech>(mReadyEngines);
+    }
+
+    /**
+     * Applies the same voice settings to a set of engines.
+     *
+     * @param engines The engines to configure.
+     * @param locale The language, or {@code null} to leave it unchanged.
+     * @param pitch The pitch, where {@code 1.0} is normal.
+     * @param rate The speech rate, where {@code 1.0} is normal.
+     */
+    public static void configure(List<TextToSpeech> engines, Locale locale, float pitch,
+            float rate) {
+        for (TextToSpeech tts : engines) {
+            if (locale != null) {
+                tts.setLanguage(locale);
+            }
+
+            tts.setPitch(pitch);
+            tts.setSpeechRate(rate);
+        }
+    }
+
+    /**
+     * Shuts down engines created by the pool. The primary engine is left to
+     * its owner.
+     */
+    public void shutdown() {
+        mShutdown = true;
+
+        for (TextToSpeech tts : mCreatedEngines) {
+            tts.shutdown();
+        }
+
+        mCreatedEngines.clear();
+        mReadyEngines.clear();
+        mReadyEngines.add(mPrimary);
+        mReadyCallbacks.clear();
+        mPendingCount = 0;
+    }
+
+    private void onEngineInit(TextToSpeech tts, int status) {
+        if (mShutdown || !mCreatedEngines.contains(tts)) {
+            // Removed before initialization completed.
+            return;
+        }
+
+        mPendingCount--;
+
+        if (status == TextToSpeech.SUCCESS) {
+            mReadyEngines.add(tts);
+        } else {
+            LogUtils.log(this, Log.ERROR, "Failed to initialize pooled engine, status %d", status);
+            mCreatedEngines.remove(tts);
+            tts.shutdown();
+        }
+
+        dispatchReadyIfNeeded();
+    }
+
+    private void dispatchReadyIfNeeded() {
+        if (mPendingCount > 0) {
+            return;
+        }
+
+        while (!mReadyCallbacks.isEmpty()) {
+            mReadyCallbacks.remove(0).run();
+        }
+    }
+
+    /**
+     * Initialization callbacks are delivered on the main thread, but may be
+     * delivered from within the constructor when the engine can't be bound.
+     * Callbacks are held until the engine reference is attached.
+     */
+    private class EngineInitListener implements OnInitListener {
+        private TextToSpeech mTts;
+        private Integer mStatus;
+
+        public void attach(TextToSpeech tts) {
+            mTts = tts;
+
+            if (mStatus != null) {
+                onEngineInit(mTts, mStatus);
+            }
+        }
+
+        @Override
+        public void onInit(int status) {
+            if (mTts == null) {
+                mStatus = status;
+            } else {
+                onEngineInit(mTts, status);
+            }
+        }
+    }
+}
@@ -6,13 +6,17 @@ import com.googamaphone.PinnedDialog;
 import com.googamaphone.PinnedDialogManager;
 import com.googamaphone.compat.AudioManagerCompatUtils;
 import com.googamaphone.typeandspeak.FileSynthesizer.FileSynthesizerListener;
-import com.googamaphone.typeandspeak.utils.CharSequenceIterator;
+import com.googamaphone.typeandspeak.audio.AudioEncoder;
+import com.googamaphone.typeandspeak.utils.CharArrayIterator;
+import com.googamaphone.typeandspeak.utils.DocumentSplitter;
 import com.googamaphone.typeandspeak.utils.GranularTextToSpeech;
 import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.SingAlongListener;
 import com.googamaphone.typeandspeak.utils.ReferencedHandler;
+import com.googamaphone.typeandspeak.utils.SsmlBuilder;
+import com.googamaphone.typeandspeak.utils.PageExtractor.ParagraphListener;
+import com.googamaphone.typeandspeak.utils.TextNormalizer;
 
-import de.l3s.boilerpipe.extractors.ArticleExtractor;
-
+import android.app.ActivityManager;
 import android.app.AlertDialog.Builder;
 import android.app.Dialog;
 import android.app.ProgressDialog;
@@ -31,6 +35,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Message;
 import android.provider.MediaStore.MediaColumns;
 import android.provider.Settings;
@@ -51,13 +56,15 @@ import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.RadioGroup;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.text.BreakIterator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -76,6 +83,36 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private static final String PREF_SPEED = "PREF_SPEED";
     private static final String PREF_SPEAK_WHILE_TYPING = "PREF_SPEAK_WHILE_TYPING";
     private static final String PREF_USE_LARGER_FONT = "PREF_USE_LARGER_FONT";
+    private static final String PREF_SYNTHESIS_ENGINES = "PREF_SYNTHESIS_ENGINES";
+    private static final String PREF_SAVE_FORMAT = "PREF_SAVE_FORMAT";
+    private static final String PREF_CACHE_SPEECH = "PREF_CACHE_SPEECH";
+    private static final String PREF_NORMALIZE_TEXT = "PREF_NORMALIZE_TEXT";
+    private static final String PREF_EXPORT_PATH = "PREF_EXPORT_PATH";
+    private static final String PREF_EXPORT_SPLIT = "PREF_EXPORT_SPLIT";
+
+    /** The directory used to cache spoken units, in the cache directory. */
+    private static final String SPEECH_CACHE_DIRECTORY = "speech";
+
+    /** The maximum size of the spoken unit cache, in bytes. */
+    private static final long SPEECH_CACHE_SIZE = (8 * 1024 * 1024);
+
+    /** The directory used to cache extracted articles, in the cache directory. */
+    private static final String ARTICLE_CACHE_DIRECTORY = "articles";
+
+    /** The maximum compressed size of the article cache, in bytes. */
+    private static final long ARTICLE_CACHE_SIZE = (2 * 1024 * 1024);
+
+    /**
+     * The heap size, in megabytes, below which articles are extracted with
+     * the lightweight extractor.
+     */
+    private static final int LOW_MEMORY_CLASS = 32;
+
+    /** The length of document text kept ahead of the cursor. */
+    private static final int DOCUMENT_READ_AHEAD = 4096;
+
+    /** The length of spoken document text kept before the current unit. */
+    private static final int DOCUMENT_KEEP_BEHIND = 4096;
 
     // Dialog identifiers.
     private static final int DIALOG_INSTALL_DATA = 1;
@@ -88,6 +125,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private static final int PINNED_LANGUAGES = 3;
     private static final int PINNED_NO_TEXT = 4;
     private static final int PINNED_CONFIRM_CLEAR = 5;
+    private static final int PINNED_EXPORT = 6;
 
     // Activity request identifiers.
     private static final int REQUEST_CHECK_DATA = 1;
@@ -111,9 +149,18 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     /** Audio manager used to gain audio focus. */
     private AudioManager mAudioManager;
 
+    /** Renders and caches units when speech caching is enabled. */
+    private RenderedTextToSpeech mRenderedTts;
+
     /** Sing-along manager used to iterate through the edit text. */
     private GranularTextToSpeech mTtsWrapper;
 
+    /** Cleans up text before it's spoken, when normalization is enabled. */
+    private final TextNormalizer mNormalizer = new TextNormalizer(TextNormalizer.RULES_ALL);
+
+    /** Adds prosody and pauses to spoken text on engines that parse SSML. */
+    private final SsmlBuilder mSsmlBuilder = new SsmlBuilder();
+
     /** Synthesizer for writing speech to file. Lazily initialized. */
     private FileSynthesizer mSynth;
 
@@ -134,10 +181,30 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private int mSpeed;
     private boolean mSpeakWhileTyping;
     private boolean mUseLargerFont;
+    private boolean mCacheSpeech;
+    private boolean mNormalizeText;
+
+    /** The number of engine instances used when saving to file. */
+    private int mSynthesisEngines;
+
+    /** The audio format used when saving to file. */
+    private int mSaveFormat;
+
+    /** The document or directory most recently exported. */
+    private String mExportPath;
+
+    /** The {@link DocumentSplitter} mode used when exporting. */
+    private int mExportSplit;
 
     // Extraction task.
     private ExtractionTask mExtractionTask;
 
+    /** Loads shared URLs through the article cache. */
+    private ArticleLoader mArticleLoader;
+
+    /** Reads the shared document as it's spoken, or {@code null} if none. */
+    private DocumentReader mDocumentReader;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -166,9 +233,19 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         mInputText.setText(prefs.getString(PREF_TEXT, ""));
         mInputText.addTextChangedListener(mTextWatcher);
 
-        mTtsWrapper = new GranularTextToSpeech(this, mTts, mLocale);
+        final SynthesisCache speechCache = new SynthesisCache(new File(getCacheDir(),
+                SPEECH_CACHE_DIRECTORY), SPEECH_CACHE_SIZE);
+        final File renderDirectory = new File(Environment.getExternalStorageDirectory(),
+                "typeandspeak");
+
+        mRenderedTts = new RenderedTextToSpeech(mTts, speechCache, renderDirectory);
+        mTtsWrapper = new GranularTextToSpeech(this, mRenderedTts, mLocale);
         mTtsWrapper.setListener(mSingAlongListener);
 
+        mArticleLoader = new ArticleLoader(new ArticleCache(new File(getCacheDir(),
+                ARTICLE_CACHE_DIRECTORY), ARTICLE_CACHE_SIZE));
+        mArticleLoader.setLightweight(isLowMemory());
+
         // Load text from intent.
         onNewIntent(getIntent());
     }
@@ -179,8 +256,19 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         setIntent(intent);
 
-        if (Intent.ACTION_SEND.equals(intent.getAction())) {
-            restoreState(intent.getExtras(), true);
+        final String action = intent.getAction();
+
+        if (Intent.ACTION_SEND.equals(action)) {
+            final Bundle extras = intent.getExtras();
+            final Object stream = ((extras == null) ? null : extras.get(Intent.EXTRA_STREAM));
+
+            if ((stream instanceof Uri) && !extras.containsKey(Intent.EXTRA_TEXT)) {
+                openDocument((Uri) stream, intent.getType());
+            } else {
+                restoreState(extras, true);
+            }
+        } else if (Intent.ACTION_VIEW.equals(action) && (intent.getData() != null)) {
+            openDocument(intent.getData(), intent.getType());
         }
     }
 
@@ -196,6 +284,13 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         mSpeed = prefs.getInt(PREF_SPEED, 50);
         mSpeakWhileTyping = prefs.getBoolean(PREF_SPEAK_WHILE_TYPING, false);
         mUseLargerFont = prefs.getBoolean(PREF_USE_LARGER_FONT, false);
+        mCacheSpeech = prefs.getBoolean(PREF_CACHE_SPEECH, false);
+        mNormalizeText = prefs.getBoolean(PREF_NORMALIZE_TEXT, true);
+        mSynthesisEngines = Math.max(1, prefs.getInt(PREF_SYNTHESIS_ENGINES, 1));
+        mSaveFormat = prefs.getInt(PREF_SAVE_FORMAT, AudioEncoder.FORMAT_WAV);
+        mExportPath = prefs.getString(PREF_EXPORT_PATH, Environment
+                .getExternalStorageDirectory().getPath());
+        mExportSplit = prefs.getInt(PREF_EXPORT_SPLIT, DocumentSplitter.SPLIT_NONE);
 
         // Never load the ADD_MORE locale as the default!
         if (LanguageAdapter.LOCALE_ADD_MORE.equals(mLocale)) {
@@ -203,6 +298,8 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         }
 
         mInputText.setTextSize(mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
+        mRenderedTts.setEnabled(mCacheSpeech);
+        updateNormalizer();
     }
 
     @Override
@@ -216,6 +313,12 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         editor.putInt(PREF_SPEED, mSpeed);
         editor.putBoolean(PREF_SPEAK_WHILE_TYPING, mSpeakWhileTyping);
         editor.putBoolean(PREF_USE_LARGER_FONT, mUseLargerFont);
+        editor.putBoolean(PREF_CACHE_SPEECH, mCacheSpeech);
+        editor.putBoolean(PREF_NORMALIZE_TEXT, mNormalizeText);
+        editor.putInt(PREF_SYNTHESIS_ENGINES, mSynthesisEngines);
+        editor.putInt(PREF_SAVE_FORMAT, mSaveFormat);
+        editor.putString(PREF_EXPORT_PATH, mExportPath);
+        editor.putInt(PREF_EXPORT_SPLIT, mExportSplit);
         editor.putString(PREF_LOCALE, mLocale.toString());
         editor.putString(PREF_TEXT, mInputText.getText().toString());
         editor.commit();
@@ -225,6 +328,11 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     protected void onDestroy() {
         super.onDestroy();
 
+        if (mSynth != null) {
+            mSynth.release();
+        }
+
+        closeDocument();
         mTts.shutdown();
     }
 
@@ -286,6 +394,8 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                         if (mExtractionTask != null) {
                             mExtractionTask.cancel(true);
                         }
+
+                        closeDocument();
                     }
                 });
                 return progressDialog;
@@ -368,6 +478,10 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                             .setOnCheckedChangeListener(mCheckBoxListener);
                     ((CheckBox) dialog.findViewById(R.id.use_larger_font))
                             .setOnCheckedChangeListener(mCheckBoxListener);
+                    ((CheckBox) dialog.findViewById(R.id.cache_speech))
+                            .setOnCheckedChangeListener(mCheckBoxListener);
+                    ((CheckBox) dialog.findViewById(R.id.normalize_text))
+                            .setOnCheckedChangeListener(mCheckBoxListener);
 
                     return dialog;
                 }
@@ -375,8 +489,12 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     final PinnedDialog dialog = new PinnedDialog(TypeAndSpeak.this)
                             .setContentView(R.layout.pinned_save);
                     final EditText editText = (EditText) dialog.findViewById(R.id.input);
+                    final RadioGroup format = (RadioGroup) dialog.findViewById(R.id.format);
                     final View confirmSave = dialog.findViewById(R.id.confirm_save);
 
+                    dialog.findViewById(R.id.format_aac).setEnabled(
+                            AudioEncoder.isSupported(AudioEncoder.FORMAT_AAC));
+
                     final LayoutParams params = dialog.getParams();
                     params.flags = ~(~params.flags | LayoutParams.FLAG_ALT_FOCUSABLE_IM);
                     params.softInputMode = LayoutParams.SOFT_INPUT_STATE_UNCHANGED;
@@ -401,9 +519,16 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                                 case R.id.confirm_save:
                                     final String filename = editText.getText().toString();
                                     final String text = mInputText.getText().toString();
-                                    mSynth.writeInput(text, mLocale, mPitch, mSpeed, filename);
+                                    mSaveFormat = getFormatForButton(format
+                                            .getCheckedRadioButtonId());
+                                    mSynth.writeInput(text, mLocale, mPitch, mSpeed, filename,
+                                            mSaveFormat);
                                     dialog.dismiss();
                                     break;
+                                case R.id.export_documents:
+                                    dialog.dismiss();
+                                    export();
+                                    return;
                             }
                             dialog.dismiss();
                         }
@@ -411,6 +536,45 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
                     confirmSave.setOnClickListener(clickListener);
                     dialog.findViewById(R.id.cancel_save).setOnClickListener(clickListener);
+                    dialog.findViewById(R.id.export_documents).setOnClickListener(clickListener);
+
+                    return dialog;
+                }
+                case PINNED_EXPORT: {
+                    final PinnedDialog dialog = new PinnedDialog(TypeAndSpeak.this)
+                            .setContentView(R.layout.pinned_export);
+                    final EditText editText = (EditText) dialog.findViewById(R.id.export_path);
+                    final RadioGroup split = (RadioGroup) dialog.findViewById(R.id.split);
+                    final RadioGroup format = (RadioGroup) dialog.findViewById(R.id.format);
+
+                    dialog.findViewById(R.id.format_aac).setEnabled(
+                            AudioEncoder.isSupported(AudioEncoder.FORMAT_AAC));
+
+                    final LayoutParams params = dialog.getParams();
+                    params.flags = ~(~params.flags | LayoutParams.FLAG_ALT_FOCUSABLE_IM);
+                    params.softInputMode = LayoutParams.SOFT_INPUT_STATE_UNCHANGED;
+                    dialog.setParams(params);
+
+                    final View.OnClickListener clickListener = new View.OnClickListener() {
+                        @Override
+                        public void onClick(View v) {
+                            switch (v.getId()) {
+                                case R.id.confirm_export:
+                                    mExportPath = editText.getText().toString().trim();
+                                    mExportSplit = getSplitForButton(split
+                                            .getCheckedRadioButtonId());
+                                    mSaveFormat = getFormatForButton(format
+                                            .getCheckedRadioButtonId());
+                                    getSynthesizer().writeDocuments(new File(mExportPath),
+                                            mExportSplit, mLocale, mPitch, mSpeed, mSaveFormat);
+                                    break;
+                            }
+                            dialog.dismiss();
+                        }
+                    };
+
+                    dialog.findViewById(R.id.confirm_export).setOnClickListener(clickListener);
+                    dialog.findViewById(R.id.cancel_export).setOnClickListener(clickListener);
 
                     return dialog;
                 }
@@ -433,12 +597,75 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     ((SeekBar) dialog.findViewById(R.id.seekSpeed)).setProgress(mSpeed);
                     ((CheckBox) dialog.findViewById(R.id.speak_while_typing)).setChecked(mSpeakWhileTyping);
                     ((CheckBox) dialog.findViewById(R.id.use_larger_font)).setChecked(mUseLargerFont);
+                    ((CheckBox) dialog.findViewById(R.id.cache_speech)).setChecked(mCacheSpeech);
+                    ((CheckBox) dialog.findViewById(R.id.normalize_text)).setChecked(mNormalizeText);
+                    break;
+                }
+                case PINNED_SAVE: {
+                    final int format = AudioEncoder.isSupported(mSaveFormat) ? mSaveFormat
+                            : AudioEncoder.FORMAT_WAV;
+                    ((RadioGroup) dialog.findViewById(R.id.format))
+                            .check(getButtonForFormat(format));
+                    break;
+                }
+                case PINNED_EXPORT: {
+                    final int format = AudioEncoder.isSupported(mSaveFormat) ? mSaveFormat
+                            : AudioEncoder.FORMAT_WAV;
+                    ((EditText) dialog.findViewById(R.id.export_path)).setText(mExportPath);
+                    ((RadioGroup) dialog.findViewById(R.id.split))
+                            .check(getButtonForSplit(mExportSplit));
+                    ((RadioGroup) dialog.findViewById(R.id.format))
+                            .check(getButtonForFormat(format));
                     break;
                 }
             }
         }
     };
 
+    private static int getSplitForButton(int id) {
+        switch (id) {
+            case R.id.split_headings:
+                return DocumentSplitter.SPLIT_HEADINGS;
+            case R.id.split_paragraphs:
+                return DocumentSplitter.SPLIT_PARAGRAPHS;
+            default:
+                return DocumentSplitter.SPLIT_NONE;
+        }
+    }
+
+    private static int getButtonForSplit(int split) {
+        switch (split) {
+            case DocumentSplitter.SPLIT_HEADINGS:
+                return R.id.split_headings;
+            case DocumentSplitter.SPLIT_PARAGRAPHS:
+                return R.id.split_paragraphs;
+            default:
+                return R.id.split_none;
+        }
+    }
+
+    private static int getFormatForButton(int id) {
+        switch (id) {
+            case R.id.format_aac:
+                return AudioEncoder.FORMAT_AAC;
+            case R.id.format_flac:
+                return AudioEncoder.FORMAT_FLAC;
+            default:
+                return AudioEncoder.FORMAT_WAV;
+        }
+    }
+
+    private static int getButtonForFormat(int format) {
+        switch (format) {
+            case AudioEncoder.FORMAT_AAC:
+                return R.id.format_aac;
+            case AudioEncoder.FORMAT_FLAC:
+                return R.id.format_flac;
+            default:
+                return R.id.format_wav;
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
@@ -490,6 +717,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         mSaveButton = findViewById(R.id.write);
         mSaveButton.setOnClickListener(mOnClickListener);
+        mSaveButton.setOnLongClickListener(mOnLongClickListener);
 
         findViewById(R.id.clear).setOnClickListener(mOnClickListener);
         findViewById(R.id.prefs).setOnClickListener(mOnClickListener);
@@ -512,55 +740,224 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             return;
         }
 
-        // The extraction library depends on java.lang.String.getBytes(Charset),
-        // which is only available in SDK 9 and above.
-        if ((Build.VERSION.SDK_INT >= 9) && fromIntent
-                && (text.startsWith("http://") || text.startsWith("https://"))) {
-            mExtractionTask = new ExtractionTask() {
+        closeDocument();
+
+        final String[] urls = getUrls(text);
+
+        if (fromIntent && (urls != null)) {
+            mExtractionTask = new ExtractionTask(mArticleLoader) {
+                /** Whether any text has been extracted yet. */
+                private boolean mExtracted = false;
+
                 @Override
                 @SuppressWarnings("deprecation")
                 protected void onPreExecute() {
                     showDialog(DIALOG_EXTRACTING_TEXT);
                 }
 
-                @SuppressWarnings("deprecation")
                 @Override
-                protected void onPostExecute(CharSequence result) {
-                    try {
-                        dismissDialog(DIALOG_EXTRACTING_TEXT);
-                    } catch (IllegalArgumentException e) {
-                        // Do nothing.
+                protected void onProgressUpdate(String... paragraphs) {
+                    if (!mExtracted) {
+                        // Let the user start speaking the first paragraph
+                        // while the rest of the page is extracted.
+                        mExtracted = true;
+                        dismissExtractingDialog();
+                        mInputText.setText("");
+                    }
+
+                    for (String paragraph : paragraphs) {
+                        mInputText.append(paragraph);
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Void result) {
+                    if (!mExtracted) {
+                        dismissExtractingDialog();
+                        mInputText.setText("");
                     }
-                    mInputText.setText(result);
                 }
             };
-            mExtractionTask.execute(text);
+            mExtractionTask.execute(urls);
         } else {
             mInputText.setText(text);
         }
     }
 
-    private static class ExtractionTask extends AsyncTask<String, Void, CharSequence> {
-        @Override
-        protected CharSequence doInBackground(String... params) {
-            final StringBuilder output = new StringBuilder();
-            final ArticleExtractor extractor = ArticleExtractor.getInstance();
+    /**
+     * @return Whether articles should be extracted with the lightweight
+     *         extractor, either because the heap is small or because the
+     *         extraction library isn't supported.
+     */
+    private boolean isLowMemory() {
+        // The extraction library depends on java.lang.String.getBytes(Charset),
+        // which is only available in SDK 9 and above.
+        if (Build.VERSION.SDK_INT < 9) {
+            return true;
+        }
 
-            try {
-                for (String param : params) {
-                    final URL url = new URL(param);
-                    final String extracted = extractor.getText(url);
+        final ActivityManager activityManager = (ActivityManager) getSystemService(
+                ACTIVITY_SERVICE);
 
-                    if (!TextUtils.isEmpty(extracted)) {
-                        output.append(extracted);
-                        output.append('\n');
-                    }
+        return (activityManager.getMemoryClass() < LOW_MEMORY_CLASS);
+    }
+
+    /**
+     * Splits shared text into URLs, such as a reading list with one URL on
+     * each line.
+     *
+     * @return The URLs, or {@code null} if the text contains anything else.
+     */
+    private static String[] getUrls(String text) {
+        final String[] urls = text.trim().split("\\s+");
+
+        for (String url : urls) {
+            if (!url.startsWith("http://") && !url.startsWith("https://")) {
+                return null;
+            }
+        }
+
+        return urls;
+    }
+
+    /**
+     * Starts reading a shared document. Its text is added to the edit text a
+     * few paragraphs at a time, as it's needed for speaking.
+     *
+     * @param uri The document.
+     * @param type The MIME type from the intent, used if the content provider
+     *            doesn't know the type.
+     */
+    @SuppressWarnings("deprecation")
+    private void openDocument(Uri uri, String type) {
+        closeDocument();
+
+        final ContentResolver resolver = getContentResolver();
+        final String resolvedType = resolver.getType(uri);
+
+        mInputText.setText("");
+        mDocumentReader = new DocumentReader(resolver, uri, (resolvedType != null) ? resolvedType
+                : type);
+        mDocumentReader.start(mHandler, TypeAndSpeakHandler.DOCUMENT_UPDATED);
+
+        showDialog(DIALOG_EXTRACTING_TEXT);
+    }
+
+    /**
+     * Stops reading the shared document, if any, leaving the text that was
+     * already added.
+     */
+    private void closeDocument() {
+        if (mDocumentReader != null) {
+            mDocumentReader.close();
+            mDocumentReader = null;
+        }
+    }
+
+    /**
+     * Called when paragraphs of the shared document are available or it has
+     * been read completely.
+     */
+    private void onDocumentUpdated() {
+        dismissExtractingDialog();
+
+        if (mDocumentReader.isFailed() && (mInputText.length() == 0)) {
+            Toast.makeText(this, R.string.document_failed, Toast.LENGTH_LONG).show();
+            closeDocument();
+            return;
+        }
+
+        updateDocumentWindow();
+    }
+
+    /**
+     * Removes document text that has already been spoken, then adds
+     * paragraphs until enough text follows the cursor. Both edits are passed
+     * to the speech wrapper by the text watcher, so speaking continues into
+     * the new text.
+     */
+    private void updateDocumentWindow() {
+        final Editable text = mInputText.getText();
+
+        if (mTtsWrapper.isSpeaking()) {
+            final int position = mInputText.getSelectionStart();
+
+            if (position > DOCUMENT_KEEP_BEHIND) {
+                // Only remove whole paragraphs.
+                final int end = (TextUtils.lastIndexOf(text, '\n', position
+                        - DOCUMENT_KEEP_BEHIND) + 1);
+
+                if (end > 0) {
+                    text.delete(0, end);
+                }
+            }
+        }
+
+        // Appending at the cursor moves it, so restore it afterward.
+        final int selectionStart = Math.max(0, mInputText.getSelectionStart());
+        final int selectionEnd = Math.max(0, mInputText.getSelectionEnd());
+        String paragraph;
+
+        while (((text.length() - selectionEnd) < DOCUMENT_READ_AHEAD)
+                && ((paragraph = mDocumentReader.poll()) != null)) {
+            // Append each paragraph in one edit, which isn't mistaken for
+            // typing.
+            text.append(paragraph + '\n');
+        }
+
+        mInputText.setSelection(selectionStart, selectionEnd);
+
+        if (mDocumentReader.isFinished()) {
+            closeDocument();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void dismissExtractingDialog() {
+        try {
+            dismissDialog(DIALOG_EXTRACTING_TEXT);
+        } catch (IllegalArgumentException e) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Extracts article text from URLs, publishing each paragraph as soon as
+     * it has been classified or read from the cache. Several URLs are loaded
+     * at once, but their text is published in order. Canceling the task
+     * interrupts the batch and stops its workers.
+     */
+    private static class ExtractionTask extends AsyncTask<String, String, Void> {
+        private final ArticleLoader mLoader;
+
+        private final ParagraphListener mParagraphListener = new ParagraphListener() {
+            @Override
+            public boolean onParagraphExtracted(String paragraph) {
+                if (isCancelled()) {
+                    return false;
                 }
-            } catch (final Exception e) {
-                e.printStackTrace();
+
+                publishProgress(paragraph + '\n');
+                return true;
+            }
+        };
+
+        public ExtractionTask(ArticleLoader loader) {
+            mLoader = loader;
+        }
+
+        @Override
+        protected Void doInBackground(String... params) {
+            final BatchArticleLoader batch = new BatchArticleLoader(mLoader,
+                    BatchArticleLoader.DEFAULT_CONCURRENCY);
+
+            try {
+                batch.load(Arrays.asList(params), mParagraphListener);
+            } catch (final InterruptedException e) {
+                // Canceled.
             }
 
-            return output;
+            return null;
         }
     }
 
@@ -600,9 +997,19 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             mTts.setLanguage(mLocale);
         }
 
-        mTts.setPitch(mPitch / 50.0f);
-        mTts.setSpeechRate(mSpeed / 50.0f);
+        if (SsmlBuilder.isSupported(mTtsEngine)) {
+            // The markup carries the prosody, so leave the engine at normal.
+            mSsmlBuilder.setProsody(mPitch / 50.0f, mSpeed / 50.0f);
+            mTts.setPitch(1.0f);
+            mTts.setSpeechRate(1.0f);
+            mTtsWrapper.setSsmlBuilder(mSsmlBuilder);
+        } else {
+            mTts.setPitch(mPitch / 50.0f);
+            mTts.setSpeechRate(mSpeed / 50.0f);
+            mTtsWrapper.setSsmlBuilder(null);
+        }
 
+        mRenderedTts.setVoice(mTtsEngine, mLocale, mPitch, mSpeed);
         mTtsWrapper.setText(text);
         mTtsWrapper.setSegmentFromCursor(mInputText.getSelectionStart());
         mTtsWrapper.speak();
@@ -629,9 +1036,28 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             return;
         }
 
+        getSynthesizer();
+
+        mPinnedDialogManager.showPinnedDialog(PINNED_SAVE, pinnedView);
+    }
+
+    /**
+     * Shows the dialog for exporting text documents, which doesn't need any
+     * entered text.
+     */
+    private void export() {
+        mPinnedDialogManager.showPinnedDialog(PINNED_EXPORT, mSaveButton);
+    }
+
+    private FileSynthesizer getSynthesizer() {
         if (mSynth == null) {
-            mSynth = new FileSynthesizer(this, mTts);
+            mSynth = new FileSynthesizer(this);
             mSynth.setListener(new FileSynthesizerListener() {
+                @Override
+                public void onSynthesisProgress(SynthesisProgress progress) {
+                    // Progress is shown by the synthesizer's dialog.
+                }
+
                 @Override
                 public void onFileSynthesized(ContentValues contentValues) {
                     showPlaybackDialog(contentValues);
@@ -639,13 +1065,24 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             });
         }
 
-        mPinnedDialogManager.showPinnedDialog(PINNED_SAVE, pinnedView);
+        mSynth.setEngineCount(mSynthesisEngines);
+        mSynth.setNormalizerRules(mNormalizeText ? TextNormalizer.RULES_ALL : 0);
+
+        return mSynth;
+    }
+
+    /**
+     * Applies the text normalization preference to spoken text.
+     */
+    private void updateNormalizer() {
+        mTtsWrapper.setNormalizer(mNormalizeText ? mNormalizer : null);
     }
 
     /**
      * Clears the text input area.
      */
     private void clear() {
+        closeDocument();
         mInputText.setText("");
     }
 
@@ -748,6 +1185,14 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     mUseLargerFont = buttonView.isChecked();
                     mInputText.setTextSize(mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
                     break;
+                case R.id.cache_speech:
+                    mCacheSpeech = buttonView.isChecked();
+                    mRenderedTts.setEnabled(mCacheSpeech);
+                    break;
+                case R.id.normalize_text:
+                    mNormalizeText = buttonView.isChecked();
+                    updateNormalizer();
+                    break;
             }
         }
     };
@@ -783,6 +1228,17 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         }
     };
 
+    /**
+     * Opens the export dialog when the save button is held.
+     */
+    private final View.OnLongClickListener mOnLongClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View view) {
+            export();
+            return true;
+        }
+    };
+
     /**
      * Listens for clicks.
      */
@@ -846,13 +1302,27 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         @Override
         public void onUnitSelected(int start, int end) {
             if ((start < 0) || (end > mInputText.length())) {
-                // The text changed while we were speaking.
-                // TODO: We should be able to handle this.
+                // The unit offsets are out of sync with the text.
                 mTtsWrapper.stop();
                 return;
             }
 
             mInputText.setSelection(start, end);
+
+            if (mDocumentReader != null) {
+                // Don't edit the text while the wrapper is selecting a unit.
+                mHandler.transferDocumentUpdated(mDocumentReader);
+            }
+        }
+
+        @Override
+        public void onWordSelected(int start, int end) {
+            if ((start < 0) || (end > mInputText.length())) {
+                // The word offsets are out of sync with the text.
+                return;
+            }
+
+            mInputText.setSelection(start, end);
         }
 
         @Override
@@ -866,26 +1336,35 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     };
 
     private final TextWatcher mTextWatcher = new TextWatcher() {
+        /** The maximum number of characters to search for a word start. */
+        private static final int MAX_WORD_LENGTH = 64;
+
         private final BreakIterator mWordIterator = BreakIterator.getWordInstance();
-        private final CharSequenceIterator mCharSequence = new CharSequenceIterator("");
+        private final CharArrayIterator mCharArrayIterator = new CharArrayIterator();
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (mTtsWrapper.isSpeaking()) {
+                mTtsWrapper.updateText(s, start, before, count);
+            }
+
             if (!mSpeakWhileTyping || (before > 0) || (count != 1)) {
                 return;
             }
 
-            mCharSequence.setCharSequence(s);
-            mWordIterator.setText(mCharSequence);
+            // Only segment the text around the new character.
+            final int windowStart = Math.max(0, start - MAX_WORD_LENGTH);
+            mCharArrayIterator.setText(s, windowStart, start + count);
+            mWordIterator.setText(mCharArrayIterator);
 
-            if (mWordIterator.isBoundary(start)) {
+            if (mWordIterator.isBoundary(start - windowStart)) {
                 final int unitEnd = start;
-                final int unitStart = mWordIterator.preceding(unitEnd);
+                final int unitStart = mWordIterator.preceding(unitEnd - windowStart);
                 if (unitStart == BreakIterator.DONE) {
                     return;
                 }
 
-                final CharSequence unit = TextUtils.substring(s, unitStart, unitEnd);
+                final CharSequence unit = TextUtils.substring(s, windowStart + unitStart, unitEnd);
                 if (TextUtils.getTrimmedLength(unit) == 0)  {
                     return;
                 }
@@ -901,9 +1380,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         @Override
         public void afterTextChanged(Editable s) {
-            if (mTtsWrapper.isSpeaking()) {
-                mTtsWrapper.setText(s);
-            }
+            // Do nothing.
         }
     };
 
@@ -913,6 +1390,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private static class TypeAndSpeakHandler extends ReferencedHandler<TypeAndSpeak> {
         private static final int TTS_INITIALIZED = 1;
         private static final int DISMISS_DIALOG = 2;
+        private static final int DOCUMENT_UPDATED = 3;
 
         public TypeAndSpeakHandler(TypeAndSpeak parent) {
             super(parent);
@@ -927,6 +1405,12 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                 case DISMISS_DIALOG:
                     parent.mPinnedDialogManager.dismissPinnedDialog(msg.arg1);
                     break;
+                case DOCUMENT_UPDATED:
+                    // Ignore messages about a previous document.
+                    if ((msg.obj != null) && (msg.obj == parent.mDocumentReader)) {
+                        parent.onDocumentUpdated();
+                    }
+                    break;
             }
         }
 
@@ -937,5 +1421,9 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         public void dismissDialogDelayed(int id, long delay) {
             sendMessageDelayed(obtainMessage(DISMISS_DIALOG, id, 0), delay);
         }
+
+        public void transferDocumentUpdated(DocumentReader reader) {
+            obtainMessage(DOCUMENT_UPDATED, reader).sendToTarget();
+        }
     }
 }
@@ -0,0 +1,211 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaFormat;
+
+/**
+ * Encodes 16-bit sample data as AAC-LC using the platform encoder, and writes
+ * each encoded frame with an ADTS header so the output can be played without
+ * a container.
+ */
+@TargetApi(16)
+public class AacEncoder extends AudioEncoder {
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+
+    /** Bit rate per channel, which is transparent for synthesized speech. */
+    private static final int BIT_RATE_PER_CHANNEL = 32000;
+
+    private static final long TIMEOUT_US = 10000;
+    private static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int[] ADTS_SAMPLE_RATES = new int[] {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000,
+            7350
+    };
+
+    private final BufferInfo mBufferInfo = new BufferInfo();
+
+    private RandomAccessFile mOutput;
+    private MediaCodec mCodec;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private byte[] mFrame = new byte[4096];
+
+    private int mSampleRate;
+    private int mChannels;
+    private int mBlockAlign;
+    private int mSampleRateIndex;
+
+    /** The number of frames of sample data queued to the encoder. */
+    private long mInputFrames = 0;
+
+    @Override
+    public void start(WavHeader format, RandomAccessFile output) throws IOException {
+        if (format.bitsPerSample != 16) {
+            throw new IOException("Unsupported sample size " + format.bitsPerSample);
+        }
+
+        if ((format.channels < 1) || (format.channels > 2)) {
+            throw new IOException("Unsupported channel count " + format.channels);
+        }
+
+        mSampleRateIndex = -1;
+
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == format.sampleRate) {
+                mSampleRateIndex = i;
+                break;
+            }
+        }
+
+        if (mSampleRateIndex < 0) {
+            throw new IOException("Unsupported sample rate " + format.sampleRate);
+        }
+
+        mOutput = output;
+        mSampleRate = format.sampleRate;
+        mChannels = format.channels;
+        mBlockAlign = format.getBlockAlign();
+
+        final MediaFormat mediaFormat = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate,
+                mChannels);
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, CodecProfileLevel.AACObjectLC);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, (BIT_RATE_PER_CHANNEL * mChannels));
+
+        try {
+            mCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+            mCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (final RuntimeException e) {
+            release();
+            throw new IOException("Failed to start AAC encoder: " + e);
+        }
+
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+
+            if (index >= 0) {
+                final ByteBuffer input = mInputBuffers[index];
+                input.clear();
+
+                final int length = Math.min(count, (input.remaining() - (input.remaining()
+                        % mBlockAlign)));
+
+                input.put(buffer, offset, length);
+                mCodec.queueInputBuffer(index, 0, length, getPresentationTimeUs(), 0);
+
+                mInputFrames += (length / mBlockAlign);
+                offset += length;
+                count -= length;
+            }
+
+            drainOutput(false);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        int index;
+
+        do {
+            drainOutput(false);
+            index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        } while (index < 0);
+
+        mCodec.queueInputBuffer(index, 0, 0, getPresentationTimeUs(),
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+
+        drainOutput(true);
+    }
+
+    @Override
+    public void release() {
+        if (mCodec == null) {
+            return;
+        }
+
+        try {
+            mCodec.stop();
+        } catch (final IllegalStateException e) {
+            // The codec was never started.
+        }
+
+        mCodec.release();
+        mCodec = null;
+    }
+
+    private long getPresentationTimeUs() {
+        return ((mInputFrames * 1000000L) / mSampleRate);
+    }
+
+    /**
+     * Writes encoded frames to the output.
+     *
+     * @param endOfStream Whether to wait for the end of the stream, rather
+     *            than returning when no output is available.
+     */
+    private void drainOutput(boolean endOfStream) throws IOException {
+        while (true) {
+            final int index = mCodec.dequeueOutputBuffer(mBufferInfo, (endOfStream ? TIMEOUT_US
+                    : 0));
+
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (index >= 0) {
+                final int flags = mBufferInfo.flags;
+
+                if (((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)
+                        && (mBufferInfo.size > 0)) {
+                    writeFrame(mOutputBuffers[index], mBufferInfo.offset, mBufferInfo.size);
+                }
+
+                mCodec.releaseOutputBuffer(index, false);
+
+                if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeFrame(ByteBuffer buffer, int offset, int size) throws IOException {
+        final int length = (ADTS_HEADER_SIZE + size);
+
+        if (mFrame.length < length) {
+            mFrame = new byte[length];
+        }
+
+        // MPEG-4, no CRC, AAC-LC.
+        mFrame[0] = (byte) 0xFF;
+        mFrame[1] = (byte) 0xF1;
+        mFrame[2] = (byte) (0x40 | (mSampleRateIndex << 2) | (mChannels >> 2));
+        mFrame[3] = (byte) (((mChannels & 3) << 6) | (length >> 11));
+        mFrame[4] = (byte) ((length >> 3) & 0xFF);
+        mFrame[5] = (byte) (((length & 7) << 5) | 0x1F);
+        mFrame[6] = (byte) 0xFC;
+
+        buffer.position(offset);
+        buffer.limit(offset + size);
+        buffer.get(mFrame, ADTS_HEADER_SIZE, size);
+
+        mOutput.write(mFrame, 0, length);
+    }
+}
@@ -0,0 +1,148 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.os.Build;
+
+/**
+ * Encodes PCM sample data into an audio file. Saves append synthesized audio
+ * to a partial WAV file, which can be resumed, and encode it into the output
+ * format once synthesis completes.
+ * <p>
+ * An encoder instance writes a single file. Sample data must be passed in
+ * whole frames, using the little-endian byte order of WAV files.
+ */
+public abstract class AudioEncoder {
+    public static final int FORMAT_WAV = 0;
+    public static final int FORMAT_AAC = 1;
+    public static final int FORMAT_FLAC = 2;
+
+    private static final String[] EXTENSIONS = new String[] {
+            "wav", "aac", "flac"
+    };
+
+    private static final String[] MIME_TYPES = new String[] {
+            "audio/wav", "audio/aac", "audio/flac"
+    };
+
+    /**
+     * Returns a new encoder for the specified format.
+     *
+     * @param format One of the {@code FORMAT} constants.
+     * @return A new encoder, or {@code null} if the format is not supported
+     *         on this platform.
+     */
+    public static AudioEncoder createEncoder(int format) {
+        if (!isSupported(format)) {
+            return null;
+        }
+
+        switch (format) {
+            case FORMAT_AAC:
+                return new AacEncoder();
+            case FORMAT_FLAC:
+                return new FlacEncoder();
+            default:
+                return new WavEncoder();
+        }
+    }
+
+    /**
+     * @return Whether the specified format can be encoded on this platform.
+     */
+    public static boolean isSupported(int format) {
+        switch (format) {
+            case FORMAT_WAV:
+            case FORMAT_FLAC:
+                return true;
+            case FORMAT_AAC:
+                return (Build.VERSION.SDK_INT >= 16);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The file extension for the specified format, without a leading
+     *         period.
+     */
+    public static String getExtension(int format) {
+        return EXTENSIONS[format];
+    }
+
+    /**
+     * @return The MIME type for the specified format.
+     */
+    public static String getMimeType(int format) {
+        return MIME_TYPES[format];
+    }
+
+    /**
+     * Returns the MIME type for an audio file based on its extension. Files
+     * with unknown extensions are assumed to be WAV files.
+     *
+     * @param path The path of the file.
+     * @return The MIME type of the file.
+     */
+    public static String getMimeTypeForPath(String path) {
+        final String lowerPath = path.toLowerCase();
+
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            if (lowerPath.endsWith("." + EXTENSIONS[i])) {
+                return MIME_TYPES[i];
+            }
+        }
+
+        return MIME_TYPES[FORMAT_WAV];
+    }
+
+    /**
+     * Starts encoding. Called once, before any sample data is written.
+     *
+     * @param format The format of the sample data.
+     * @param output The file to write, which is empty.
+     * @throws IOException If the format is not supported by the encoder or
+     *             the output can't be written.
+     */
+    public abstract void start(WavHeader format, RandomAccessFile output) throws IOException;
+
+    /**
+     * Continues encoding into a file that was partially written by this type
+     * of encoder. Called instead of {@link #start}.
+     *
+     * @param format The format of the sample data.
+     * @param output The file to write.
+     * @param inputLength The number of bytes of sample data already encoded.
+     * @throws IOException If the encoder can't continue a partial file.
+     */
+    public void resume(WavHeader format, RandomAccessFile output, long inputLength)
+            throws IOException {
+        throw new IOException(getClass().getSimpleName() + " can't resume encoding");
+    }
+
+    /**
+     * Encodes sample data.
+     *
+     * @param buffer The buffer containing sample data.
+     * @param offset The offset of the first byte to encode.
+     * @param count The number of bytes to encode, which must be a whole number
+     *            of frames.
+     */
+    public abstract void write(byte[] buffer, int offset, int count) throws IOException;
+
+    /**
+     * Encodes any buffered sample data and completes the file. The output is
+     * closed by the caller.
+     */
+    public abstract void finish() throws IOException;
+
+    /**
+     * Releases any resources held by the encoder. Called after
+     * {@link #finish()}, or instead of it if encoding is aborted.
+     */
+    public void release() {
+        // Most encoders don't hold resources.
+    }
+}
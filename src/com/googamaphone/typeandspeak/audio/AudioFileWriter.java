@@ -0,0 +1,199 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes an audio file by passing the sample data from WAV files through an
+ * encoder. Memory use doesn't depend on the length of the output.
+ */
+public class AudioFileWriter {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final File mFile;
+    private final RandomAccessFile mOutput;
+    private final AudioEncoder mEncoder;
+
+    /** The format of the output, or {@code null} until the first append. */
+    private WavHeader mFormat;
+
+    /** The number of bytes of sample data passed to the encoder. */
+    private long mInputLength = 0;
+
+    public AudioFileWriter(File file, AudioEncoder encoder) throws IOException {
+        mFile = file;
+        mEncoder = encoder;
+        mOutput = new RandomAccessFile(file, "rw");
+        mOutput.setLength(0);
+    }
+
+    /**
+     * Continues writing a file that was partially written with the same type
+     * of encoder.
+     *
+     * @param file The partial file.
+     * @param encoder The encoder, which must support
+     *            {@link AudioEncoder#resume}.
+     * @param format The format of the sample data already written.
+     * @param inputLength The number of bytes of sample data already written.
+     */
+    public AudioFileWriter(File file, AudioEncoder encoder, WavHeader format, long inputLength)
+            throws IOException {
+        mFile = file;
+        mEncoder = encoder;
+        mOutput = new RandomAccessFile(file, "rw");
+        mFormat = new WavHeader(format.channels, format.sampleRate, format.bitsPerSample);
+        mInputLength = inputLength;
+
+        try {
+            mEncoder.resume(mFormat, mOutput, inputLength);
+        } catch (final IOException e) {
+            mOutput.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the sample data from a WAV file. All appended files must have
+     * the same format.
+     *
+     * @param segment The file to append.
+     * @throws IOException If the file can't be read or has a different format
+     *             from previously appended files.
+     */
+    public void append(File segment) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(segment, "r");
+
+        try {
+            final WavHeader header = WavHeader.read(input);
+
+            if (mFormat == null) {
+                startEncoder(header);
+            } else if (!mFormat.isCompatibleWith(header)) {
+                throw new IOException("Segment format doesn't match output format");
+            }
+
+            // Only pass whole frames to the encoder.
+            final int blockAlign = mFormat.getBlockAlign();
+            final int bufferSize = (BUFFER_SIZE - (BUFFER_SIZE % blockAlign));
+            long remaining = (header.dataLength - (header.dataLength % blockAlign));
+
+            while (remaining > 0) {
+                final int count = input.read(mBuffer, 0, (int) Math.min(remaining, bufferSize));
+
+                if (count < 0) {
+                    break;
+                }
+
+                final int frameBytes = readWholeFrames(input, count, blockAlign);
+
+                mEncoder.write(mBuffer, 0, frameBytes);
+                mInputLength += frameBytes;
+                remaining -= frameBytes;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return The format of the output, or {@code null} if nothing has been
+     *         appended.
+     */
+    public WavHeader getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return The number of bytes of sample data written so far.
+     */
+    public long getInputLength() {
+        return mInputLength;
+    }
+
+    /**
+     * Flushes everything written so far to disk.
+     */
+    public void sync() throws IOException {
+        mOutput.getFD().sync();
+    }
+
+    /**
+     * Completes the file and closes it.
+     */
+    public void close() throws IOException {
+        try {
+            if (mFormat == null) {
+                startEncoder(new WavHeader());
+            }
+
+            mEncoder.finish();
+        } finally {
+            mEncoder.release();
+            mOutput.close();
+        }
+    }
+
+    /**
+     * Closes the file without completing it, so that it can be continued
+     * later.
+     */
+    public void suspend() {
+        mEncoder.release();
+
+        try {
+            mOutput.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    public void abort() {
+        mEncoder.release();
+
+        try {
+            mOutput.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        mFile.delete();
+    }
+
+    private void startEncoder(WavHeader header) throws IOException {
+        if ((header.getBlockAlign() <= 0) || (header.getBlockAlign() > BUFFER_SIZE)) {
+            throw new IOException("Unsupported sample format");
+        }
+
+        mFormat = new WavHeader(header.channels, header.sampleRate, header.bitsPerSample);
+        mEncoder.start(mFormat, mOutput);
+    }
+
+    /**
+     * Completes a partial frame at the end of a read, since reads may return
+     * fewer bytes than requested.
+     *
+     * @return The number of bytes in the buffer, which is a whole number of
+     *         frames.
+     */
+    private int readWholeFrames(RandomAccessFile input, int count, int blockAlign)
+            throws IOException {
+        final int partial = (count % blockAlign);
+
+        if (partial == 0) {
+            return count;
+        }
+
+        final int missing = (blockAlign - partial);
+
+        input.readFully(mBuffer, count, missing);
+
+        return (count + missing);
+    }
+}
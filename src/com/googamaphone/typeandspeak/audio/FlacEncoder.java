@@ -0,0 +1,609 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encodes sample data as a FLAC file. Each channel is encoded independently
+ * using the fixed linear predictors and Rice-coded residuals, which compresses
+ * synthesized speech to roughly half its size without any native code.
+ * <p>
+ * Supports 8, 16, and 24-bit samples with up to eight channels.
+ */
+public class FlacEncoder extends AudioEncoder {
+    /** The number of samples per channel in each frame. */
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+
+    /** The largest 4-bit Rice parameter. The next value is an escape code. */
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    /** The size of the STREAMINFO block, excluding its header. */
+    private static final int STREAMINFO_LENGTH = 34;
+
+    /** The offset of STREAMINFO, after the marker and block header. */
+    private static final int STREAMINFO_OFFSET = 8;
+
+    private static final int[] SAMPLE_RATES = new int[] {
+            0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000
+    };
+
+    private final BitWriter mBits = new BitWriter();
+    private final int[] mResidual = new int[BLOCK_SIZE];
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+
+    private RandomAccessFile mOutput;
+    private MessageDigest mDigest;
+
+    private int mChannels;
+    private int mSampleRate;
+    private int mBitsPerSample;
+    private int mSampleRateCode;
+    private int mSampleSizeCode;
+
+    /** Buffered samples for the next frame, indexed by channel. */
+    private int[][] mSamples;
+    private int mSampleCount = 0;
+
+    private long mTotalSamples = 0;
+    private long mFrameNumber = 0;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize = 0;
+
+    /** Scratch buffer for converting unsigned 8-bit samples. */
+    private byte[] mSignedBytes;
+
+    @Override
+    public void start(WavHeader format, RandomAccessFile output) throws IOException {
+        if ((format.channels < 1) || (format.channels > 8)) {
+            throw new IOException("Unsupported channel count " + format.channels);
+        }
+
+        if ((format.sampleRate <= 0) || (format.sampleRate >= (1 << 20))) {
+            throw new IOException("Unsupported sample rate " + format.sampleRate);
+        }
+
+        switch (format.bitsPerSample) {
+            case 8:
+                mSampleSizeCode = 1;
+                break;
+            case 16:
+                mSampleSizeCode = 4;
+                break;
+            case 24:
+                mSampleSizeCode = 6;
+                break;
+            default:
+                throw new IOException("Unsupported sample size " + format.bitsPerSample);
+        }
+
+        try {
+            mDigest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            // An empty signature tells decoders not to check.
+            mDigest = null;
+        }
+
+        mOutput = output;
+        mChannels = format.channels;
+        mSampleRate = format.sampleRate;
+        mBitsPerSample = format.bitsPerSample;
+        mSampleRateCode = 0;
+        mSamples = new int[mChannels][BLOCK_SIZE];
+
+        for (int i = 1; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == mSampleRate) {
+                mSampleRateCode = i;
+                break;
+            }
+        }
+
+        // Write the stream marker and reserve space for STREAMINFO, which is
+        // the only metadata block.
+        mBits.reset();
+        mBits.writeBits(0x664C6143, 32); // fLaC
+        mBits.writeBits(0x80, 8);
+        mBits.writeBits(STREAMINFO_LENGTH, 24);
+
+        mOutput.write(mBits.getBytes(), 0, mBits.getLength());
+        mOutput.write(new byte[STREAMINFO_LENGTH]);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        updateDigest(buffer, offset, count);
+
+        final int bytesPerSample = (mBitsPerSample / 8);
+        final int end = (offset + count);
+        int position = offset;
+
+        while (position < end) {
+            for (int channel = 0; channel < mChannels; channel++) {
+                mSamples[channel][mSampleCount] = readSample(buffer, position);
+                position += bytesPerSample;
+            }
+
+            mSampleCount++;
+            mTotalSamples++;
+
+            if (mSampleCount == BLOCK_SIZE) {
+                writeFrame(BLOCK_SIZE);
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mSampleCount > 0) {
+            writeFrame(mSampleCount);
+        }
+
+        final BitWriter bits = mBits;
+
+        bits.reset();
+        bits.writeBits(BLOCK_SIZE, 16);
+        bits.writeBits(BLOCK_SIZE, 16);
+        bits.writeBits((mFrameNumber > 0) ? mMinFrameSize : 0, 24);
+        bits.writeBits(mMaxFrameSize, 24);
+        bits.writeBits(mSampleRate, 20);
+        bits.writeBits(mChannels - 1, 3);
+        bits.writeBits(mBitsPerSample - 1, 5);
+        bits.writeBits(mTotalSamples >>> 32, 4);
+        bits.writeBits(mTotalSamples, 32);
+
+        final byte[] signature = (mDigest != null) ? mDigest.digest() : new byte[16];
+
+        mOutput.seek(STREAMINFO_OFFSET);
+        mOutput.write(bits.getBytes(), 0, bits.getLength());
+        mOutput.write(signature);
+    }
+
+    private int readSample(byte[] buffer, int position) {
+        switch (mBitsPerSample) {
+            case 8:
+                return ((buffer[position] & 0xFF) - 128);
+            case 16:
+                return ((buffer[position + 1] << 8) | (buffer[position] & 0xFF));
+            default:
+                return ((buffer[position + 2] << 16) | ((buffer[position + 1] & 0xFF) << 8)
+                        | (buffer[position] & 0xFF));
+        }
+    }
+
+    /**
+     * Adds sample data to the signature, which is computed over signed
+     * samples in little-endian order.
+     */
+    private void updateDigest(byte[] buffer, int offset, int count) {
+        if (mDigest == null) {
+            return;
+        }
+
+        if (mBitsPerSample != 8) {
+            mDigest.update(buffer, offset, count);
+            return;
+        }
+
+        if ((mSignedBytes == null) || (mSignedBytes.length < count)) {
+            mSignedBytes = new byte[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            mSignedBytes[i] = (byte) (buffer[offset + i] ^ 0x80);
+        }
+
+        mDigest.update(mSignedBytes, 0, count);
+    }
+
+    private void writeFrame(int blockSize) throws IOException {
+        final BitWriter bits = mBits;
+
+        bits.reset();
+        bits.writeBits(0xFFF8, 16);
+        bits.writeBits((blockSize == BLOCK_SIZE) ? 12 : 7, 4);
+        bits.writeBits(mSampleRateCode, 4);
+        bits.writeBits(mChannels - 1, 4);
+        bits.writeBits(mSampleSizeCode, 3);
+        bits.writeBits(0, 1);
+        writeFrameNumber(bits, mFrameNumber);
+
+        if (blockSize != BLOCK_SIZE) {
+            bits.writeBits(blockSize - 1, 16);
+        }
+
+        bits.writeBits(crc8(bits.getBytes(), bits.getLength()), 8);
+
+        for (int channel = 0; channel < mChannels; channel++) {
+            writeSubframe(mSamples[channel], blockSize);
+        }
+
+        bits.alignToByte();
+        bits.writeBits(crc16(bits.getBytes(), bits.getLength()), 16);
+
+        final int frameSize = bits.getLength();
+
+        mOutput.write(bits.getBytes(), 0, frameSize);
+        mMinFrameSize = Math.min(mMinFrameSize, frameSize);
+        mMaxFrameSize = Math.max(mMaxFrameSize, frameSize);
+        mFrameNumber++;
+        mSampleCount = 0;
+    }
+
+    private void writeSubframe(int[] samples, int blockSize) {
+        final BitWriter bits = mBits;
+        final int bitsPerSample = mBitsPerSample;
+
+        if (isConstant(samples, blockSize)) {
+            bits.writeBits(0x00, 8);
+            bits.writeBits(samples[0], bitsPerSample);
+            return;
+        }
+
+        final long verbatimBits = ((long) blockSize * bitsPerSample);
+
+        if (blockSize > MAX_FIXED_ORDER) {
+            final int order = selectFixedOrder(samples, blockSize);
+            final int residualCount = computeResidual(samples, blockSize, order);
+            final int partitionOrder = selectPartitions(blockSize, order, residualCount);
+            final long residualBits = estimatePartitionedBits(blockSize, order, partitionOrder);
+
+            if (((order * bitsPerSample) + residualBits) < verbatimBits) {
+                bits.writeBits(0x10 | (order << 1), 8);
+
+                for (int i = 0; i < order; i++) {
+                    bits.writeBits(samples[i], bitsPerSample);
+                }
+
+                writeResidual(blockSize, order, partitionOrder);
+                return;
+            }
+        }
+
+        bits.writeBits(0x02, 8);
+
+        for (int i = 0; i < blockSize; i++) {
+            bits.writeBits(samples[i], bitsPerSample);
+        }
+    }
+
+    private static boolean isConstant(int[] samples, int blockSize) {
+        final int first = samples[0];
+
+        for (int i = 1; i < blockSize; i++) {
+            if (samples[i] != first) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the fixed predictor order with the smallest total absolute
+     * residual, which closely tracks the encoded size.
+     */
+    private static int selectFixedOrder(int[] samples, int blockSize) {
+        final long[] sums = new long[MAX_FIXED_ORDER + 1];
+
+        int last0 = samples[MAX_FIXED_ORDER - 1];
+        int last1 = (last0 - samples[MAX_FIXED_ORDER - 2]);
+        int last2 = (last1 - (samples[MAX_FIXED_ORDER - 2] - samples[MAX_FIXED_ORDER - 3]));
+        int last3 = (last2 - ((samples[MAX_FIXED_ORDER - 2] - samples[MAX_FIXED_ORDER - 3])
+                - (samples[MAX_FIXED_ORDER - 3] - samples[MAX_FIXED_ORDER - 4])));
+
+        for (int i = MAX_FIXED_ORDER; i < blockSize; i++) {
+            final int error0 = samples[i];
+            final int error1 = (error0 - last0);
+            final int error2 = (error1 - last1);
+            final int error3 = (error2 - last2);
+            final int error4 = (error3 - last3);
+
+            sums[0] += Math.abs(error0);
+            sums[1] += Math.abs(error1);
+            sums[2] += Math.abs(error2);
+            sums[3] += Math.abs(error3);
+            sums[4] += Math.abs(error4);
+
+            last0 = error0;
+            last1 = error1;
+            last2 = error2;
+            last3 = error3;
+        }
+
+        int order = 0;
+
+        for (int i = 1; i <= MAX_FIXED_ORDER; i++) {
+            if (sums[i] < sums[order]) {
+                order = i;
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Writes the zigzag-encoded prediction residual to {@link #mResidual}.
+     *
+     * @return The number of residual values.
+     */
+    private int computeResidual(int[] x, int blockSize, int order) {
+        final int[] residual = mResidual;
+        int j = 0;
+
+        for (int i = order; i < blockSize; i++) {
+            final int error;
+
+            switch (order) {
+                case 0:
+                    error = x[i];
+                    break;
+                case 1:
+                    error = (x[i] - x[i - 1]);
+                    break;
+                case 2:
+                    error = (x[i] - (2 * x[i - 1]) + x[i - 2]);
+                    break;
+                case 3:
+                    error = (x[i] - (3 * x[i - 1]) + (3 * x[i - 2]) - x[i - 3]);
+                    break;
+                default:
+                    error = (x[i] - (4 * x[i - 1]) + (6 * x[i - 2]) - (4 * x[i - 3]) + x[i - 4]);
+                    break;
+            }
+
+            residual[j++] = ((error << 1) ^ (error >> 31));
+        }
+
+        return j;
+    }
+
+    /**
+     * Selects the partition order with the smallest estimated size, starting
+     * from the finest partitioning and merging adjacent partitions. Leaves
+     * the Rice parameters for the selected order in {@link #mRiceParameters}
+     * and the partition sums in {@link #mPartitionSums}.
+     */
+    private int selectPartitions(int blockSize, int order, int residualCount) {
+        int maxPartitionOrder = 0;
+
+        while ((maxPartitionOrder < MAX_PARTITION_ORDER)
+                && ((blockSize % (2 << maxPartitionOrder)) == 0)
+                && ((blockSize >> (maxPartitionOrder + 1)) > order)) {
+            maxPartitionOrder++;
+        }
+
+        final long[] sums = new long[1 << maxPartitionOrder];
+        final int partitionSize = (blockSize >> maxPartitionOrder);
+
+        for (int p = 0, i = 0; p < sums.length; p++) {
+            final int end = (((p + 1) * partitionSize) - order);
+
+            for (; i < end; i++) {
+                sums[p] += mResidual[i];
+            }
+        }
+
+        int bestOrder = maxPartitionOrder;
+        long bestBits = Long.MAX_VALUE;
+
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            final int count = (1 << partitionOrder);
+
+            if (partitionOrder < maxPartitionOrder) {
+                for (int p = 0; p < count; p++) {
+                    sums[p] = (sums[2 * p] + sums[(2 * p) + 1]);
+                }
+            }
+
+            final long bits = estimateBits(sums, count, blockSize, order, partitionOrder);
+
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = partitionOrder;
+                System.arraycopy(sums, 0, mPartitionSums, 0, count);
+            }
+        }
+
+        return bestOrder;
+    }
+
+    private static long estimateBits(long[] sums, int count, int blockSize, int order,
+            int partitionOrder) {
+        long bits = 0;
+
+        for (int p = 0; p < count; p++) {
+            final int samples = getPartitionSamples(blockSize, order, partitionOrder, p);
+            final int parameter = getRiceParameter(sums[p], samples);
+
+            bits += (4 + ((long) samples * (parameter + 1)) + (sums[p] >>> parameter));
+        }
+
+        return bits;
+    }
+
+    private long estimatePartitionedBits(int blockSize, int order, int partitionOrder) {
+        final int count = (1 << partitionOrder);
+
+        for (int p = 0; p < count; p++) {
+            final int samples = getPartitionSamples(blockSize, order, partitionOrder, p);
+            mRiceParameters[p] = getRiceParameter(mPartitionSums[p], samples);
+        }
+
+        return (6 + estimateBits(mPartitionSums, count, blockSize, order, partitionOrder));
+    }
+
+    private void writeResidual(int blockSize, int order, int partitionOrder) {
+        final BitWriter bits = mBits;
+        final int count = (1 << partitionOrder);
+
+        // Coding method zero uses 4-bit Rice parameters.
+        bits.writeBits(0, 2);
+        bits.writeBits(partitionOrder, 4);
+
+        for (int p = 0, i = 0; p < count; p++) {
+            final int parameter = mRiceParameters[p];
+            final int end = (i + getPartitionSamples(blockSize, order, partitionOrder, p));
+
+            bits.writeBits(parameter, 4);
+
+            for (; i < end; i++) {
+                bits.writeRice(mResidual[i], parameter);
+            }
+        }
+    }
+
+    private static int getPartitionSamples(int blockSize, int order, int partitionOrder,
+            int partition) {
+        final int samples = (blockSize >> partitionOrder);
+
+        // The warm-up samples are taken from the first partition.
+        return (partition == 0) ? (samples - order) : samples;
+    }
+
+    /**
+     * Returns the Rice parameter that is closest to optimal for values with
+     * the specified mean.
+     */
+    private static int getRiceParameter(long sum, int count) {
+        int parameter = 0;
+
+        while ((parameter < MAX_RICE_PARAMETER) && (((long) count << (parameter + 1)) <= sum)) {
+            parameter++;
+        }
+
+        return parameter;
+    }
+
+    /**
+     * Writes a frame number using the extended UTF-8 coding required by FLAC.
+     */
+    private static void writeFrameNumber(BitWriter bits, long value) {
+        if (value < 0x80) {
+            bits.writeBits(value, 8);
+            return;
+        }
+
+        int extraBytes = 1;
+
+        while ((extraBytes < 5) && (value >= (1L << ((5 * extraBytes) + 6)))) {
+            extraBytes++;
+        }
+
+        final int prefix = (0xFF00 >> (extraBytes + 1)) & 0xFF;
+
+        bits.writeBits(prefix | (value >>> (6 * extraBytes)), 8);
+
+        for (int i = extraBytes - 1; i >= 0; i--) {
+            bits.writeBits(0x80 | ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF);
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) : (crc << 1);
+            }
+        }
+
+        return (crc & 0xFF);
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+
+        for (int i = 0; i < length; i++) {
+            crc ^= ((data[i] & 0xFF) << 8);
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x8005) : (crc << 1);
+            }
+        }
+
+        return (crc & 0xFFFF);
+    }
+
+    /**
+     * Accumulates a big-endian bit stream in a growable buffer.
+     */
+    private static class BitWriter {
+        private byte[] mBytes = new byte[16384];
+        private int mLength;
+        private long mAccumulator;
+        private int mBitCount;
+
+        public void reset() {
+            mLength = 0;
+            mAccumulator = 0;
+            mBitCount = 0;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return The number of complete bytes written.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Writes the low bits of a value.
+         *
+         * @param value The value to write.
+         * @param count The number of bits to write, at most 32.
+         */
+        public void writeBits(long value, int count) {
+            mAccumulator = ((mAccumulator << count) | (value & ((1L << count) - 1)));
+            mBitCount += count;
+
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+
+                if (mLength == mBytes.length) {
+                    final byte[] bytes = new byte[mBytes.length * 2];
+                    System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                    mBytes = bytes;
+                }
+
+                mBytes[mLength++] = (byte) (mAccumulator >>> mBitCount);
+            }
+        }
+
+        /**
+         * Writes an unsigned value using a Rice code.
+         */
+        public void writeRice(int value, int parameter) {
+            int quotient = (value >>> parameter);
+
+            while (quotient >= 32) {
+                writeBits(0, 32);
+                quotient -= 32;
+            }
+
+            // The quotient in unary, followed by the remainder.
+            writeBits(1, quotient + 1);
+
+            if (parameter > 0) {
+                writeBits(value, parameter);
+            }
+        }
+
+        public void alignToByte() {
+            if (mBitCount > 0) {
+                writeBits(0, 8 - mBitCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes sample data to a WAV file without compression. The header is
+ * written when the file is finished, once the total length is known.
+ */
+public class WavEncoder extends AudioEncoder {
+    private RandomAccessFile mOutput;
+    private WavHeader mHeader;
+
+    @Override
+    public void start(WavHeader format, RandomAccessFile output) throws IOException {
+        mOutput = output;
+        mHeader = new WavHeader(format.channels, format.sampleRate, format.bitsPerSample);
+
+        // Reserve space for the header.
+        mOutput.seek(WavHeader.HEADER_SIZE);
+    }
+
+    @Override
+    public void resume(WavHeader format, RandomAccessFile output, long inputLength)
+            throws IOException {
+        final long length = (WavHeader.HEADER_SIZE + inputLength);
+
+        if (output.length() < length) {
+            throw new IOException("Partial file is shorter than expected");
+        }
+
+        mOutput = output;
+        mHeader = new WavHeader(format.channels, format.sampleRate, format.bitsPerSample);
+        mHeader.dataLength = inputLength;
+
+        // Discard anything written after the last complete segment.
+        mOutput.setLength(length);
+        mOutput.seek(length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        mOutput.write(buffer, offset, count);
+        mHeader.dataLength += count;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mOutput.seek(0);
+        mHeader.write(mOutput);
+    }
+}
@@ -0,0 +1,171 @@
+
+package com.googamaphone.typeandspeak.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads and writes the header of a PCM WAV file.
+ */
+public class WavHeader {
+    /** The size of the header written by {@link #write}. */
+    public static final int HEADER_SIZE = 44;
+
+    private static final int FORMAT_PCM = 1;
+
+    public int channels;
+    public int sampleRate;
+    public int bitsPerSample;
+
+    /** The offset of the first byte of sample data. */
+    public long dataOffset;
+
+    /** The number of bytes of sample data. */
+    public long dataLength;
+
+    public WavHeader() {
+        // Default to the output format of most embedded engines.
+        this(1, 16000, 16);
+    }
+
+    public WavHeader(int channels, int sampleRate, int bitsPerSample) {
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+    }
+
+    /**
+     * @return The number of bytes per second of sample data.
+     */
+    public int getByteRate() {
+        return (sampleRate * getBlockAlign());
+    }
+
+    /**
+     * @return The number of bytes per frame of sample data.
+     */
+    public int getBlockAlign() {
+        return (channels * (bitsPerSample / 8));
+    }
+
+    /**
+     * Returns whether the sample data described by this header can be
+     * concatenated with the sample data described by another header.
+     */
+    public boolean isCompatibleWith(WavHeader other) {
+        return (channels == other.channels) && (sampleRate == other.sampleRate)
+                && (bitsPerSample == other.bitsPerSample);
+    }
+
+    /**
+     * Reads the header of a WAV file, skipping any chunks other than the
+     * format and data chunks. Leaves the file positioned at the start of the
+     * sample data.
+     *
+     * @param file The file to read.
+     * @return The header.
+     * @throws IOException If the file is not a PCM WAV file.
+     */
+    public static WavHeader read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+
+        if ((file.readInt() != 0x52494646) /* RIFF */) {
+            throw new IOException("Missing RIFF chunk");
+        }
+
+        file.skipBytes(4);
+
+        if (file.readInt() != 0x57415645 /* WAVE */) {
+            throw new IOException("Missing WAVE format");
+        }
+
+        WavHeader header = null;
+
+        while (file.getFilePointer() < file.length()) {
+            final int chunkId = file.readInt();
+            final long chunkSize = (readIntLE(file) & 0xFFFFFFFFL);
+            final long chunkStart = file.getFilePointer();
+
+            if (chunkId == 0x666d7420 /* fmt */) {
+                if (readShortLE(file) != FORMAT_PCM) {
+                    throw new IOException("Unsupported audio format");
+                }
+
+                final int channels = readShortLE(file);
+                final int sampleRate = readIntLE(file);
+
+                file.skipBytes(6);
+
+                final int bitsPerSample = readShortLE(file);
+
+                header = new WavHeader(channels, sampleRate, bitsPerSample);
+            } else if (chunkId == 0x64617461 /* data */) {
+                if (header == null) {
+                    throw new IOException("Missing format chunk");
+                }
+
+                final long remaining = (file.length() - chunkStart);
+
+                // Engines that stream to the file may not patch the size.
+                header.dataOffset = chunkStart;
+                header.dataLength = ((chunkSize == 0) || (chunkSize > remaining)) ? remaining
+                        : chunkSize;
+
+                file.seek(chunkStart);
+
+                return header;
+            }
+
+            // Chunks are padded to an even number of bytes.
+            file.seek(chunkStart + chunkSize + (chunkSize & 1));
+        }
+
+        throw new IOException("Missing data chunk");
+    }
+
+    /**
+     * Writes a canonical header of {@link #HEADER_SIZE} bytes at the current
+     * position of a file.
+     *
+     * @param file The file to write.
+     */
+    public void write(RandomAccessFile file) throws IOException {
+        final byte[] buffer = new byte[HEADER_SIZE];
+
+        putInt(buffer, 0, 0x46464952); // RIFF
+        putInt(buffer, 4, (int) (36 + dataLength));
+        putInt(buffer, 8, 0x45564157); // WAVE
+        putInt(buffer, 12, 0x20746d66); // fmt
+        putInt(buffer, 16, 16);
+        putShort(buffer, 20, FORMAT_PCM);
+        putShort(buffer, 22, channels);
+        putInt(buffer, 24, sampleRate);
+        putInt(buffer, 28, getByteRate());
+        putShort(buffer, 32, getBlockAlign());
+        putShort(buffer, 34, bitsPerSample);
+        putInt(buffer, 36, 0x61746164); // data
+        putInt(buffer, 40, (int) dataLength);
+
+        file.write(buffer);
+    }
+
+    private static int readIntLE(RandomAccessFile file) throws IOException {
+        return Integer.reverseBytes(file.readInt());
+    }
+
+    private static int readShortLE(RandomAccessFile file) throws IOException {
+        return (Short.reverseBytes(file.readShort()) & 0xFFFF);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,268 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.text.BreakIterator;
+import java.util.Locale;
+
+/**
+ * Segments text into units that stay within a target length. Consecutive
+ * short sentences are merged until they reach the minimum length, and
+ * sentences longer than the maximum length are split at the last clause
+ * boundary, or failing that the last word boundary, that fits.
+ * <p>
+ * By default, units never span a line break. Each paragraph is segmented
+ * separately, so segmentation may restart at the start of any paragraph.
+ * <p>
+ * Longer units need fewer round trips through the synthesizer, while shorter
+ * units make highlighting and navigation more responsive.
+ */
+public class AdaptiveSegmenter extends Segmenter {
+    /** The default minimum unit length, in characters. */
+    public static final int DEFAULT_MIN_LENGTH = 40;
+
+    /** The default maximum unit length, in characters. */
+    public static final int DEFAULT_MAX_LENGTH = 240;
+
+    private final Segmenter mSentences;
+
+    private int mMinLength = DEFAULT_MIN_LENGTH;
+    private int mMaxLength = DEFAULT_MAX_LENGTH;
+    private boolean mMergeParagraphs = false;
+
+    private CharSequence mText;
+    private int mStart;
+    private int mEnd;
+
+    /** The most recently returned boundary. */
+    private int mPosition;
+
+    /** The first sentence boundary after {@link #mPosition}. */
+    private int mSentenceEnd;
+
+    /** The end of the paragraph that contains {@link #mPosition}. */
+    private int mParagraphEnd;
+
+    public AdaptiveSegmenter(Locale locale) {
+        this(new BreakIteratorSegmenter(BreakIterator.getSentenceInstance(locale)));
+    }
+
+    private AdaptiveSegmenter(Segmenter sentences) {
+        mSentences = sentences;
+    }
+
+    /**
+     * Sets the target range for unit lengths. A unit may be shorter than the
+     * minimum if it is followed by a sentence that would push it past the
+     * maximum, or if it is the last unit in the text.
+     *
+     * @param minLength The minimum unit length, in characters.
+     * @param maxLength The maximum unit length, in characters.
+     */
+    public void setTargetLength(int minLength, int maxLength) {
+        if ((minLength < 0) || (maxLength < 1) || (minLength > maxLength)) {
+            throw new IllegalArgumentException("Invalid target length: " + minLength + " to "
+                    + maxLength);
+        }
+
+        mMinLength = minLength;
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Sets whether short sentences may be merged across line breaks. This
+     * keeps units closer to the target length in text with many short lines,
+     * but segmentation can then only restart at the start of the text.
+     *
+     * @param mergeParagraphs {@code true} to merge sentences across line
+     *            breaks.
+     */
+    public void setMergeParagraphs(boolean mergeParagraphs) {
+        mMergeParagraphs = mergeParagraphs;
+    }
+
+    @Override
+    public void setText(CharSequence text, int start, int end) {
+        mText = text;
+        mStart = start;
+        mEnd = end;
+
+        first();
+    }
+
+    @Override
+    public int first() {
+        mPosition = mStart;
+        startParagraph();
+
+        return mStart;
+    }
+
+    @Override
+    public int next() {
+        if (mPosition >= mEnd) {
+            return DONE;
+        }
+
+        int end = mSentenceEnd;
+
+        if ((end - mPosition) > mMaxLength) {
+            end = findSplit(mPosition, mPosition + mMaxLength);
+        } else {
+            while (((end - mPosition) < mMinLength) && (end < mParagraphEnd)) {
+                final int following = nextSentence();
+
+                if ((following - mPosition) > mMaxLength) {
+                    // Start the next unit with the sentence that didn't fit.
+                    mSentenceEnd = following;
+                    break;
+                }
+
+                end = following;
+            }
+        }
+
+        mPosition = end;
+
+        if (mPosition >= mParagraphEnd) {
+            startParagraph();
+        } else if (mSentenceEnd <= mPosition) {
+            mSentenceEnd = nextSentence();
+        }
+
+        return end;
+    }
+
+    @Override
+    public boolean isStableBoundary(CharSequence text, int offset) {
+        if (mMergeParagraphs) {
+            return (offset == 0);
+        }
+
+        // Paragraphs start after a line break and any whitespace after it.
+        for (int i = (offset - 1); i >= 0; i--) {
+            final char c = text.charAt(i);
+
+            if (c == '\n') {
+                return true;
+            } else if (!Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public Segmenter copy() {
+        final AdaptiveSegmenter copy = new AdaptiveSegmenter(mSentences.copy());
+
+        copy.setTargetLength(mMinLength, mMaxLength);
+        copy.setMergeParagraphs(mMergeParagraphs);
+
+        return copy;
+    }
+
+    /**
+     * Finds the end of the paragraph at the current position, which includes
+     * the line break and whitespace that follow it, and starts finding
+     * sentences within it. When merging paragraphs, the rest of the text is
+     * treated as a single paragraph.
+     */
+    private void startParagraph() {
+        int offset = (mMergeParagraphs ? mEnd : mPosition);
+
+        while ((offset < mEnd) && (mText.charAt(offset) != '\n')) {
+            offset++;
+        }
+
+        while ((offset < mEnd) && Character.isWhitespace(mText.charAt(offset))) {
+            offset++;
+        }
+
+        mParagraphEnd = offset;
+
+        mSentences.setText(mText, mPosition, mParagraphEnd);
+        mSentences.first();
+        mSentenceEnd = nextSentence();
+    }
+
+    private int nextSentence() {
+        final int boundary = mSentences.next();
+
+        if (boundary == DONE) {
+            return mParagraphEnd;
+        }
+
+        return boundary;
+    }
+
+    /**
+     * Finds the best place to split an oversized sentence.
+     *
+     * @param start The start of the unit.
+     * @param limit The furthest allowed split, which must be less than the end
+     *            of the text.
+     * @return The split offset.
+     */
+    private int findSplit(int start, int limit) {
+        int wordBoundary = -1;
+
+        for (int i = limit; i > start; i--) {
+            if (!Character.isWhitespace(mText.charAt(i - 1))
+                    || Character.isWhitespace(mText.charAt(i))) {
+                continue;
+            }
+
+            if (wordBoundary < 0) {
+                wordBoundary = i;
+            }
+
+            // Avoid splitting off clauses that are shorter than the minimum.
+            if ((i - start) < mMinLength) {
+                break;
+            }
+
+            if (isClauseEnd(start, i - 1)) {
+                return i;
+            }
+        }
+
+        if (wordBoundary > 0) {
+            return wordBoundary;
+        }
+
+        // No word boundaries, so split anywhere other than inside a surrogate
+        // pair.
+        if (Character.isLowSurrogate(mText.charAt(limit)) && ((limit - 1) > start)) {
+            return (limit - 1);
+        }
+
+        return limit;
+    }
+
+    /**
+     * Returns whether the whitespace before the specified offset follows
+     * clause punctuation.
+     */
+    private boolean isClauseEnd(int start, int offset) {
+        while ((offset > start) && Character.isWhitespace(mText.charAt(offset))) {
+            offset--;
+        }
+
+        switch (mText.charAt(offset)) {
+            case ',':
+            case ';':
+            case ':':
+            case ')':
+            case '\u2013': // En dash
+            case '\u2014': // Em dash
+            case '\u3001': // Ideographic comma
+            case '\uFF0C': // Fullwidth comma
+            case '\uFF1B': // Fullwidth semicolon
+            case '\uFF1A': // Fullwidth colon
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,252 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Process;
+import android.text.TextUtils;
+
+/**
+ * Segments text on a background thread and delivers the units to a handler in
+ * chunks, in text order. The first chunk contains a single unit so that the
+ * caller can act on it as soon as possible. Later chunks grow up to
+ * {@link #MAX_CHUNK_UNITS} units.
+ * <p>
+ * Each call to {@link #start} cancels any previous work. Chunks from canceled
+ * work may still arrive at the handler, so callers must pass every chunk to
+ * {@link #accept(Chunk)} before using it. Edits before the text that is being
+ * segmented don't require restarting, since {@link #shift(int)} moves the
+ * units that haven't been accepted yet.
+ */
+public class BackgroundSegmenter {
+    /** The maximum number of units delivered in a single chunk. */
+    public static final int MAX_CHUNK_UNITS = 512;
+
+    private static final ExecutorService EXECUTOR = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "BackgroundSegmenter");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+
+    private final Handler mHandler;
+    private final int mWhat;
+
+    private SegmentationTask mTask;
+    private Future<?> mFuture;
+
+    /** Incremented whenever work is started or canceled. */
+    private int mGeneration = 0;
+
+    /** The amount added to the offsets of accepted units. */
+    private int mShift = 0;
+
+    /**
+     * Creates a new background segmenter.
+     *
+     * @param handler The handler that will receive chunks. Each chunk is sent
+     *            as the {@code obj} of a message.
+     * @param what The {@code what} value for chunk messages.
+     */
+    public BackgroundSegmenter(Handler handler, int what) {
+        mHandler = handler;
+        mWhat = what;
+    }
+
+    /**
+     * Starts segmenting text from the specified offset to the end, canceling
+     * any previous work. Must be called on the handler's thread.
+     *
+     * @param text The text to segment. A snapshot is taken before returning,
+     *            so the text may be modified afterward.
+     * @param offset The offset at which to start segmenting. This must be a
+     *            unit boundary.
+     * @param segmenter A segmenter to copy for use on the background thread.
+     */
+    public void start(CharSequence text, int offset, Segmenter segmenter) {
+        cancel();
+
+        final String snapshot = TextUtils.substring(text, offset, text.length());
+
+        mTask = new SegmentationTask(snapshot, offset, segmenter.copy(), mGeneration);
+        mFuture = EXECUTOR.submit(mTask);
+    }
+
+    /**
+     * Cancels any work in progress. Chunks that were already sent will be
+     * rejected by {@link #accept(Chunk)}.
+     */
+    public void cancel() {
+        mGeneration++;
+        mShift = 0;
+
+        if (mTask != null) {
+            mTask.mCanceled = true;
+            mTask = null;
+        }
+
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    /**
+     * @return {@code true} if units are still being produced.
+     */
+    public boolean isRunning() {
+        return (mTask != null);
+    }
+
+    /**
+     * Moves units that haven't been accepted yet after the length of the text
+     * before them has changed. The segmented text itself must not have been
+     * modified. Must be called on the handler's thread.
+     *
+     * @param delta The number of characters added before the text that is
+     *            being segmented, or a negative number if characters were
+     *            removed.
+     */
+    public void shift(int delta) {
+        mShift += delta;
+    }
+
+    /**
+     * Checks whether a chunk belongs to the current work and, if it is the
+     * last chunk, marks the work as finished. The offsets in an accepted chunk
+     * are updated to account for any calls to {@link #shift(int)}.
+     *
+     * @param chunk A chunk received by the handler.
+     * @return {@code true} if the chunk should be used.
+     */
+    public boolean accept(Chunk chunk) {
+        if ((mTask == null) || (chunk.generation != mGeneration)) {
+            return false;
+        }
+
+        if (mShift != 0) {
+            for (int i = 0; i < chunk.count; i++) {
+                chunk.starts[i] += mShift;
+                chunk.ends[i] += mShift;
+            }
+
+            chunk.frontier += mShift;
+        }
+
+        if (chunk.complete) {
+            mTask = null;
+            mFuture = null;
+        }
+
+        return true;
+    }
+
+    /**
+     * A block of consecutive units.
+     */
+    public static class Chunk {
+        private final int generation;
+
+        /** The start offsets of the units. */
+        public final int[] starts;
+
+        /** The end offsets of the units. */
+        public final int[] ends;
+
+        /** The number of units in this chunk. */
+        public final int count;
+
+        /** The offset up to which the text has been segmented. */
+        public int frontier;
+
+        /** Whether this is the last chunk for the text. */
+        public final boolean complete;
+
+        private Chunk(int generation, int[] starts, int[] ends, int count, int frontier,
+                boolean complete) {
+            this.generation = generation;
+            this.starts = starts;
+            this.ends = ends;
+            this.count = count;
+            this.frontier = frontier;
+            this.complete = complete;
+        }
+    }
+
+    private class SegmentationTask implements Runnable {
+        private final String mText;
+        private final int mOffset;
+        private final Segmenter mSegmenter;
+        private final int mTaskGeneration;
+
+        private volatile boolean mCanceled;
+
+        public SegmentationTask(String text, int offset, Segmenter segmenter, int generation) {
+            mText = text;
+            mOffset = offset;
+            mSegmenter = segmenter;
+            mTaskGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            mSegmenter.setText(mText, 0, mText.length());
+
+            int chunkSize = 1;
+            int[] starts = new int[chunkSize];
+            int[] ends = new int[chunkSize];
+            int count = 0;
+
+            int start = mSegmenter.first();
+            int end = mSegmenter.next();
+
+            while (end != Segmenter.DONE) {
+                if (mCanceled) {
+                    return;
+                }
+
+                if (!SegmentIndex.isWhitespace(mText, start, end)) {
+                    starts[count] = (mOffset + start);
+                    ends[count] = (mOffset + end);
+                    count++;
+                }
+
+                start = end;
+                end = mSegmenter.next();
+
+                if ((count == chunkSize) && (end != Segmenter.DONE)) {
+                    send(starts, ends, count, (mOffset + start), false);
+
+                    chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_UNITS);
+                    starts = new int[chunkSize];
+                    ends = new int[chunkSize];
+                    count = 0;
+                }
+            }
+
+            send(starts, ends, count, (mOffset + mText.length()), true);
+        }
+
+        private void send(int[] starts, int[] ends, int count, int frontier, boolean complete) {
+            final Chunk chunk = new Chunk(mTaskGeneration, starts, ends, count, frontier,
+                    complete);
+
+            mHandler.obtainMessage(mWhat, chunk).sendToTarget();
+        }
+    }
+}
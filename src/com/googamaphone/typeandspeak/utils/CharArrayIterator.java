@@ -0,0 +1,142 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.text.CharacterIterator;
+
+import android.text.TextUtils;
+
+/**
+ * A {@link CharacterIterator} over a snapshot of a range of text. The text is
+ * copied once into a reusable array with a bulk copy, so iterating never goes
+ * through {@link CharSequence#charAt(int)}. This matters for text backed by a
+ * {@link android.text.SpannableStringBuilder}, where each {@code charAt} call
+ * has to account for the gap buffer.
+ * <p>
+ * Clones share the snapshot. Setting new text on an iterator whose snapshot is
+ * shared allocates a new array, so existing clones are unaffected.
+ */
+public final class CharArrayIterator implements CharacterIterator, Cloneable {
+    private char[] mChars;
+
+    /** The number of characters in the snapshot. */
+    private int mLength;
+
+    /** The current position. */
+    private int mCursor;
+
+    /** Whether {@link #mChars} is shared with a clone. */
+    private boolean mShared;
+
+    public CharArrayIterator() {
+        mChars = new char[0];
+    }
+
+    private CharArrayIterator(CharArrayIterator other) {
+        mChars = other.mChars;
+        mLength = other.mLength;
+        mCursor = other.mCursor;
+        mShared = true;
+    }
+
+    /**
+     * Sets the iterator to a snapshot of a range within a character sequence.
+     * Indices reported by the iterator are relative to {@code start}.
+     *
+     * @param text The character sequence.
+     * @param start The start of the range, inclusive.
+     * @param end The end of the range, exclusive.
+     */
+    public void setText(CharSequence text, int start, int end) {
+        final int length = (end - start);
+
+        if (mShared || (mChars.length < length)) {
+            // Grow geometrically so that repeated calls don't allocate.
+            mChars = new char[Math.max(length, mShared ? 0 : (mChars.length * 2))];
+            mShared = false;
+        }
+
+        if (text instanceof String) {
+            ((String) text).getChars(start, end, mChars, 0);
+        } else {
+            TextUtils.getChars(text, start, end, mChars, 0);
+        }
+
+        mLength = length;
+        mCursor = 0;
+    }
+
+    @Override
+    public Object clone() {
+        mShared = true;
+
+        return new CharArrayIterator(this);
+    }
+
+    @Override
+    public int getBeginIndex() {
+        return 0;
+    }
+
+    @Override
+    public int getEndIndex() {
+        return mLength;
+    }
+
+    @Override
+    public int getIndex() {
+        return mCursor;
+    }
+
+    @Override
+    public char setIndex(int location) {
+        if ((location < 0) || (location > mLength)) {
+            throw new IllegalArgumentException("Index out of bounds");
+        }
+
+        mCursor = location;
+
+        return (location < mLength) ? mChars[location] : DONE;
+    }
+
+    @Override
+    public char next() {
+        if (mCursor < mLength) {
+            mCursor++;
+        }
+
+        return (mCursor < mLength) ? mChars[mCursor] : DONE;
+    }
+
+    @Override
+    public char previous() {
+        if (mCursor == 0) {
+            return DONE;
+        }
+
+        return mChars[--mCursor];
+    }
+
+    @Override
+    public char current() {
+        return (mCursor < mLength) ? mChars[mCursor] : DONE;
+    }
+
+    @Override
+    public char first() {
+        mCursor = 0;
+
+        return (mLength > 0) ? mChars[0] : DONE;
+    }
+
+    @Override
+    public char last() {
+        if (mLength == 0) {
+            mCursor = 0;
+            return DONE;
+        }
+
+        mCursor = (mLength - 1);
+
+        return mChars[mCursor];
+    }
+}
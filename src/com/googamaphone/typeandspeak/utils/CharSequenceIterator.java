@@ -3,29 +3,63 @@ package com.googamaphone.typeandspeak.utils;
 
 import java.text.CharacterIterator;
 
+/**
+ * A {@link CharacterIterator} over a window of a character sequence. Unlike
+ * {@link CharArrayIterator}, the text isn't copied, and each character is read
+ * with {@link CharSequence#charAt(int)}. This is the fallback for text that
+ * is cheap to read in place or too long to copy.
+ */
 public final class CharSequenceIterator implements CharacterIterator, Cloneable {
     private CharSequence mCharSequence;
 
+    /** The offset within the sequence that corresponds to index zero. */
+    private int mOffset;
+
+    /** The number of characters visible to the iterator. */
+    private int mLength;
+
     /** The current position. */
     private int mCursor;
 
     private CharSequenceIterator(CharSequenceIterator other) {
         mCharSequence = other.mCharSequence;
+        mOffset = other.mOffset;
+        mLength = other.mLength;
         mCursor = other.mCursor;
     }
 
     public CharSequenceIterator(CharSequence charSequence) {
-        mCharSequence = charSequence;
+        setCharSequence(charSequence);
         mCursor = 0;
     }
     
     public void setCharSequence(CharSequence charSequence) {
+        if (charSequence == null) {
+            setCharSequence(null, 0, 0);
+        } else {
+            setCharSequence(charSequence, 0, charSequence.length());
+        }
+    }
+
+    /**
+     * Sets the iterator to a window within a character sequence. Indices
+     * reported by the iterator are relative to {@code start}, so the window
+     * appears to the caller as a complete sequence.
+     *
+     * @param charSequence The character sequence.
+     * @param start The start of the window, inclusive.
+     * @param end The end of the window, exclusive.
+     */
+    public void setCharSequence(CharSequence charSequence, int start, int end) {
         mCharSequence = charSequence;
-        
+        mOffset = start;
+        mLength = (end - start);
+
         if (mCharSequence == null) {
+            mLength = 0;
             mCursor = 0;
-        } else if (mCursor > mCharSequence.length()) {
-            mCursor = mCharSequence.length();
+        } else if (mCursor > mLength) {
+            mCursor = mLength;
         }
     }
 
@@ -41,11 +75,7 @@ public final class CharSequenceIterator implements CharacterIterator, Cloneable
 
     @Override
     public int getEndIndex() {
-        if (mCharSequence == null) {
-            return 0;
-        }
-
-        return mCharSequence.length();
+        return mLength;
     }
 
     @Override
@@ -55,7 +85,7 @@ public final class CharSequenceIterator implements CharacterIterator, Cloneable
 
     @Override
     public char setIndex(int location) {
-        if ((mCursor < getBeginIndex()) || (mCursor > getEndIndex())) {
+        if ((location < 0) || (location > mLength)) {
             throw new IllegalArgumentException("Index out of bounds");
         }
 
@@ -66,50 +96,49 @@ public final class CharSequenceIterator implements CharacterIterator, Cloneable
 
     @Override
     public char next() {
-        final int nextIndex = (getIndex() + 1);
-        
-        if (nextIndex > getEndIndex()) {
-            return CharacterIterator.DONE;
+        if (mCursor < mLength) {
+            mCursor++;
         }
 
-        return setIndex(nextIndex);
+        return current();
     }
 
     @Override
     public char previous() {
-        final int previousIndex = (getIndex() - 1);
-        
-        if (previousIndex < getBeginIndex()) {
+        if (mCursor == 0) {
             return CharacterIterator.DONE;
         }
 
-        return setIndex(previousIndex);
+        mCursor--;
+
+        return mCharSequence.charAt(mOffset + mCursor);
     }
 
     @Override
     public char current() {
-        final int index = getIndex();
-        
-        if ((index < getBeginIndex()) || (index >= getEndIndex())) {
+        if (mCursor >= mLength) {
             return CharacterIterator.DONE;
         }
 
-        return mCharSequence.charAt(getIndex());
+        return mCharSequence.charAt(mOffset + mCursor);
     }
 
     @Override
     public char first() {
-        return setIndex(getBeginIndex());
+        mCursor = 0;
+
+        return current();
     }
 
     @Override
     public char last() {
-        final int lastIndex = (getEndIndex() - 1);
-        
-        if (lastIndex < getBeginIndex()) {
+        if (mLength == 0) {
+            mCursor = 0;
             return CharacterIterator.DONE;
         }
 
-        return setIndex(lastIndex);
+        mCursor = (mLength - 1);
+
+        return mCharSequence.charAt(mOffset + mCursor);
     }
 }
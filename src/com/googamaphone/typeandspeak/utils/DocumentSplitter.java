@@ -0,0 +1,190 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Divides a UTF-8 text document into parts, each of which can be saved to its
+ * own file. The document is read once, one line at a time, and only the
+ * character ranges and titles of the parts are kept.
+ * <p>
+ * A heading is a line starting with {@code #}, or a short line without
+ * closing punctuation that has blank lines on both sides.
+ */
+public class DocumentSplitter {
+    /** Keeps the document as a single part. */
+    public static final int SPLIT_NONE = 0;
+
+    /** Starts a new part at each heading. */
+    public static final int SPLIT_HEADINGS = 1;
+
+    /** Starts a new part after each blank line. */
+    public static final int SPLIT_PARAGRAPHS = 2;
+
+    private static final String CHARSET = "UTF-8";
+
+    /** The maximum length of a heading, and of the title of a part. */
+    private static final int MAX_TITLE_LENGTH = 80;
+
+    private final ArrayList<Part> mParts = new ArrayList<Part>();
+    private final int mMode;
+
+    /** The prefix of the current line, up to the maximum title length. */
+    private final StringBuilder mLine = new StringBuilder();
+
+    /** The offset and length of the current line. */
+    private int mLineStart = 0;
+    private int mLineLength = 0;
+
+    /** Whether the previous line was blank. */
+    private boolean mPreviousBlank = true;
+
+    /** A possible heading waiting for a blank line, or {@code null}. */
+    private String mCandidate;
+    private int mCandidateStart;
+    private int mCandidateEnd;
+
+    /** The part being read, or {@code null} before the first text. */
+    private Part mPart;
+
+    private DocumentSplitter(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Reads a document and divides it into parts.
+     *
+     * @param file The document to read.
+     * @param mode One of {@link #SPLIT_NONE}, {@link #SPLIT_HEADINGS} or
+     *            {@link #SPLIT_PARAGRAPHS}.
+     * @return The parts of the document that contain text, in order.
+     */
+    public static List<Part> split(File file, int mode) throws IOException {
+        final DocumentSplitter splitter = new DocumentSplitter(mode);
+        final Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), CHARSET));
+
+        try {
+            splitter.read(reader);
+        } finally {
+            reader.close();
+        }
+
+        return splitter.mParts;
+    }
+
+    private void read(Reader reader) throws IOException {
+        int c;
+
+        while ((c = reader.read()) >= 0) {
+            mLineLength++;
+
+            if (c == '\n') {
+                endLine();
+            } else if (mLine.length() <= MAX_TITLE_LENGTH) {
+                mLine.append((char) c);
+            }
+        }
+
+        endLine();
+    }
+
+    private void endLine() {
+        final String line = mLine.toString().trim();
+        final boolean blank = (line.length() == 0) && (mLineLength <= MAX_TITLE_LENGTH);
+        final int end = (mLineStart + mLineLength);
+
+        if (mCandidate != null) {
+            if (blank) {
+                startPart(mCandidateStart, mCandidate);
+                mPart.end = mCandidateEnd;
+            }
+
+            mCandidate = null;
+        }
+
+        if (!blank) {
+            if ((mMode == SPLIT_HEADINGS) && line.startsWith("#")) {
+                startPart(mLineStart, line.replaceFirst("^#+", ""));
+            } else if ((mMode == SPLIT_HEADINGS) && mPreviousBlank && isHeading(line)) {
+                // Only a heading if the next line is blank.
+                mCandidate = line;
+                mCandidateStart = mLineStart;
+                mCandidateEnd = end;
+            } else if ((mMode == SPLIT_PARAGRAPHS) && mPreviousBlank) {
+                startPart(mLineStart, line);
+            }
+
+            if (mPart == null) {
+                startPart(mLineStart, line);
+            }
+
+            mPart.end = end;
+        }
+
+        mPreviousBlank = blank;
+        mLineStart = end;
+        mLineLength = 0;
+        mLine.setLength(0);
+    }
+
+    private boolean isHeading(String line) {
+        if ((mLineLength > MAX_TITLE_LENGTH) || (line.length() == 0)) {
+            return false;
+        }
+
+        switch (line.charAt(line.length() - 1)) {
+            case '.':
+            case ',':
+            case ';':
+            case ':':
+            case '!':
+            case '?':
+                return false;
+        }
+
+        return true;
+    }
+
+    private void startPart(int start, String title) {
+        if (mPart != null) {
+            // A confirmed heading may already have been added to this part,
+            // and may have been all of it.
+            mPart.end = Math.min(mPart.end, start);
+
+            if (mPart.end <= mPart.start) {
+                mParts.remove(mPart);
+            }
+        }
+
+        mPart = new Part(start, title.trim());
+        mParts.add(mPart);
+    }
+
+    /**
+     * A range of characters in a document.
+     */
+    public static class Part {
+        /** The offset of the first character. */
+        public final int start;
+
+        /** The title, which is the heading or the start of the first line. */
+        public final String title;
+
+        /** The offset following the last character. */
+        public int end;
+
+        public Part(int start, String title) {
+            this.start = start;
+            this.end = start;
+            this.title = title;
+        }
+    }
+}
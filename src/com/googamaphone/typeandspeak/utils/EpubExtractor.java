@@ -0,0 +1,200 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.util.Log;
+
+/**
+ * Extracts the text of an EPUB book as it is read. The archive is read once,
+ * so chapters are extracted in the order they're stored, which is the
+ * reading order in books written by common tools. Once the package document
+ * has been read, only the chapters in its spine are extracted.
+ * <p>
+ * Each chapter is extracted with {@link LightweightArticleExtractor}, keeping
+ * all of its text.
+ */
+public class EpubExtractor extends PageExtractor {
+    private static final String CONTAINER_PATH = "META-INF/container.xml";
+
+    /** The charset of the package and content documents. */
+    private static final String CHARSET = "UTF-8";
+
+    /** The longest container or package document that is read. */
+    private static final int MAX_PACKAGE_LENGTH = (1024 * 1024);
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final Pattern ROOTFILE_PATTERN = Pattern.compile(
+            "<(?:\\w+:)?rootfile\\s[^>]*full-path\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern ITEM_PATTERN = Pattern.compile("<(?:\\w+:)?item\\s[^>]*>");
+    private static final Pattern ITEMREF_PATTERN = Pattern.compile(
+            "<(?:\\w+:)?itemref\\s[^>]*idref\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern ID_PATTERN = Pattern.compile(
+            "\\sid\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern HREF_PATTERN = Pattern.compile(
+            "\\shref\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    /** The path of the package document, once known. */
+    private String mPackagePath;
+
+    /** The paths of the chapters in the spine, or {@code null} if unknown. */
+    private HashSet<String> mSpine;
+
+    public EpubExtractor(ParagraphListener listener) {
+        super(listener);
+    }
+
+    @Override
+    public boolean extract(InputStream in, String charset) throws IOException {
+        final ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+
+        while ((entry = zip.getNextEntry()) != null) {
+            final String name = entry.getName();
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (name.equals(CONTAINER_PATH)) {
+                readContainer(zip);
+            } else if ((mSpine == null) && isPackage(name)) {
+                readPackage(zip, name);
+            } else if (isChapter(name)) {
+                final LightweightArticleExtractor extractor = new LightweightArticleExtractor(
+                        mListener);
+
+                extractor.setKeepAll(true);
+
+                if (!extractor.extract(zip, CHARSET)) {
+                    return false;
+                }
+            }
+        }
+
+        if (mSpine == null) {
+            LogUtils.log(this, Log.WARN, "Book has no package document");
+        }
+
+        return true;
+    }
+
+    private boolean isPackage(String name) {
+        if (mPackagePath != null) {
+            return name.equals(mPackagePath);
+        }
+
+        return name.endsWith(".opf");
+    }
+
+    private boolean isChapter(String name) {
+        if (mSpine != null) {
+            return mSpine.contains(name);
+        }
+
+        // Until the spine is known, extract anything that looks like a
+        // content document.
+        return name.endsWith(".xhtml") || name.endsWith(".html") || name.endsWith(".htm");
+    }
+
+    private void readContainer(InputStream in) throws IOException {
+        final Matcher matcher = ROOTFILE_PATTERN.matcher(readEntry(in));
+
+        if (matcher.find()) {
+            mPackagePath = matcher.group(1);
+        }
+    }
+
+    /**
+     * Reads the manifest and spine of the package document to find the
+     * paths of the chapters.
+     */
+    private void readPackage(InputStream in, String path) throws IOException {
+        final String text = readEntry(in);
+        final String directory = path.substring(0, path.lastIndexOf('/') + 1);
+        final HashMap<String, String> items = new HashMap<String, String>();
+        final Matcher itemMatcher = ITEM_PATTERN.matcher(text);
+
+        while (itemMatcher.find()) {
+            final String item = itemMatcher.group();
+            final Matcher idMatcher = ID_PATTERN.matcher(item);
+            final Matcher hrefMatcher = HREF_PATTERN.matcher(item);
+
+            if (idMatcher.find() && hrefMatcher.find()) {
+                items.put(idMatcher.group(1), resolve(directory, hrefMatcher.group(1)));
+            }
+        }
+
+        final HashSet<String> spine = new HashSet<String>();
+        final Matcher itemrefMatcher = ITEMREF_PATTERN.matcher(text);
+
+        while (itemrefMatcher.find()) {
+            final String chapter = items.get(itemrefMatcher.group(1));
+
+            if (chapter != null) {
+                spine.add(chapter);
+            }
+        }
+
+        if (!spine.isEmpty()) {
+            mPackagePath = path;
+            mSpine = spine;
+        }
+    }
+
+    /**
+     * @return The path within the archive of a link from the package
+     *         document.
+     */
+    private static String resolve(String directory, String href) {
+        final int fragment = href.indexOf('#');
+        String path = ((fragment < 0) ? href : href.substring(0, fragment));
+
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), CHARSET);
+        } catch (final IllegalArgumentException e) {
+            // Use the link as written.
+        } catch (final IOException e) {
+            // Use the link as written.
+        }
+
+        path = (directory + path);
+
+        // Remove "dir/.." pairs, which some books use for shared chapters.
+        int parent;
+
+        while ((parent = path.indexOf("/../")) > 0) {
+            final int start = path.lastIndexOf('/', parent - 1) + 1;
+
+            path = path.substring(0, start) + path.substring(parent + 4);
+        }
+
+        return path;
+    }
+
+    /**
+     * @return The text of the current entry, up to
+     *         {@link #MAX_PACKAGE_LENGTH} bytes.
+     */
+    private static String readEntry(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+
+        while ((out.size() < MAX_PACKAGE_LENGTH) && ((count = in.read(buffer)) >= 0)) {
+            out.write(buffer, 0, count);
+        }
+
+        return out.toString(CHARSET);
+    }
+}
@@ -0,0 +1,163 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+import android.text.TextUtils;
+
+/**
+ * Splits a range of a UTF-8 text file into segments no longer than a maximum
+ * length. Segments end at sentence boundaries where possible and contain as
+ * many whole sentences as will fit. The file is read as segments are
+ * requested, and only a window of a few segments is held in memory.
+ * <p>
+ * Positions are relative to the start of the range.
+ */
+public class FileSegmentSource implements SegmentSource {
+    private static final String CHARSET = "UTF-8";
+
+    private final AdaptiveSegmenter mSegmenter;
+    private final File mFile;
+    private final int mStart;
+    private final int mLength;
+    private final int mMaxLength;
+
+    /** Text read from the file that hasn't been returned yet. */
+    private final StringBuilder mWindow = new StringBuilder();
+    private final char[] mBuffer = new char[4096];
+
+    private Reader mReader;
+
+    /** The position of the start of the window. */
+    private int mPosition;
+
+    /** The number of characters read from the range. */
+    private int mRead;
+
+    /**
+     * @param file The file to read.
+     * @param start The offset of the first character of the range.
+     * @param end The offset following the last character of the range.
+     * @param locale The locale of the text.
+     * @param maxLength The maximum length of a segment, in characters.
+     */
+    public FileSegmentSource(File file, int start, int end, Locale locale, int maxLength) {
+        mFile = file;
+        mStart = start;
+        mLength = (end - start);
+        mMaxLength = maxLength;
+        mSegmenter = new AdaptiveSegmenter(locale);
+        mSegmenter.setTargetLength(maxLength / 2, maxLength);
+        mSegmenter.setMergeParagraphs(true);
+    }
+
+    @Override
+    public String nextSegment() throws IOException {
+        if (mReader == null) {
+            seek(mPosition);
+        }
+
+        while (true) {
+            // Keep at least two segments of lookahead, so the segmenter can
+            // find the sentence boundary that ends the first one.
+            fillWindow(2 * mMaxLength);
+
+            if (mWindow.length() == 0) {
+                return null;
+            }
+
+            mSegmenter.setText(mWindow, 0, mWindow.length());
+            mSegmenter.first();
+
+            int end = mSegmenter.next();
+
+            if (end == Segmenter.DONE) {
+                end = mWindow.length();
+            }
+
+            final boolean whitespace = SegmentIndex.isWhitespace(mWindow, 0, end);
+            final String segment = TextUtils.substring(mWindow, 0, end);
+
+            mWindow.delete(0, end);
+            mPosition += end;
+
+            if (!whitespace) {
+                return segment;
+            }
+        }
+    }
+
+    @Override
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public void seek(int position) throws IOException {
+        close();
+
+        mReader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET));
+        mWindow.setLength(0);
+        mPosition = position;
+        mRead = position;
+
+        skipFully(mStart + position);
+    }
+
+    @Override
+    public void close() {
+        if (mReader == null) {
+            return;
+        }
+
+        try {
+            mReader.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        mReader = null;
+    }
+
+    /**
+     * Reads until the window holds at least {@code length} characters or the
+     * range has been read.
+     */
+    private void fillWindow(int length) throws IOException {
+        while ((mWindow.length() < length) && (mRead < mLength)) {
+            final int count = mReader.read(mBuffer, 0, Math.min(mBuffer.length, mLength - mRead));
+
+            if (count < 0) {
+                // The file is shorter than expected.
+                mRead = mLength;
+                break;
+            }
+
+            mWindow.append(mBuffer, 0, count);
+            mRead += count;
+        }
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            final long skipped = mReader.skip(count);
+
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+
+            count -= skipped;
+        }
+    }
+}
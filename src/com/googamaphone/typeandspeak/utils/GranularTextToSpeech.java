@@ -1,44 +1,135 @@
 
 package com.googamaphone.typeandspeak.utils;
 
-import java.text.BreakIterator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Locale;
 
+import com.googamaphone.compat.TextToSpeechCompatUtils;
+import com.googamaphone.compat.TextToSpeechCompatUtils.UtteranceListener;
+import com.googamaphone.typeandspeak.utils.UtteranceEventQueue.EventConsumer;
+
 import android.content.Context;
 import android.os.Message;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.Engine;
-import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
-import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * A wrapper class for {@link TextToSpeech} that adds support for reading at a
- * given granularity level using a {@link BreakIterator}.
+ * given granularity level using a {@link Segmenter}. Unit boundaries are
+ * computed once per call to {@link #setText(CharSequence)} and stored in a
+ * {@link SegmentIndex}. Long text is segmented in the background, and speaking
+ * starts as soon as the first unit is known.
+ * <p>
+ * Progress within the current unit is reported one word at a time. Engines
+ * that report word ranges are followed directly, while progress on other
+ * engines is estimated from the measured speaking rate.
  */
 public class GranularTextToSpeech {
-    private static final int UTTERANCE_COMPLETED = 1;
-    private static final int RESUME_SPEAKING = 2;
+    private static final int SEGMENTS_AVAILABLE = 3;
+    private static final int UPDATE_PROGRESS = 6;
+
+    /** Prefix for utterance identifiers, followed by a sequence number. */
+    private static final String UTTERANCE_PREFIX = "SingAlongTTS:";
+
+    /** The default number of units kept in the synthesizer's queue. */
+    public static final int DEFAULT_LOOK_AHEAD = 3;
+
+    /** Text longer than this is segmented on a background thread. */
+    private static final int BACKGROUND_SEGMENTATION_THRESHOLD = 8192;
+
+    /** The minimum interval between word progress updates. */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    /** The initial estimate of speaking time per character. */
+    private static final float DEFAULT_MILLIS_PER_CHAR = (1000 / 15f);
+
+    /** The weight given to each new sample of the speaking rate. */
+    private static final float RATE_SMOOTHING = 0.3f;
 
-    private final CharSequenceIterator mCharSequenceIterator = new CharSequenceIterator(null);
     private final TextToSpeechStub mTts;
     private final HashMap<String, String> mParams;
-
-    private BreakIterator mBreakIterator;
+    private final BackgroundSegmenter mBackgroundSegmenter;
+    private final UtteranceEventQueue mEventQueue;
+
+    /** Units that have been sent to the synthesizer, in speaking order. */
+    private final LinkedList<QueuedUnit> mQueuedUnits = new LinkedList<QueuedUnit>();
+
+    private Segmenter mSegmenter;
+    private Segmenter mWordSegmenter;
+    private Locale mLocale;
+    private int mGranularity = Segmenter.GRANULARITY_SENTENCE;
+    private int mMinUnitLength = AdaptiveSegmenter.DEFAULT_MIN_LENGTH;
+    private int mMaxUnitLength = AdaptiveSegmenter.DEFAULT_MAX_LENGTH;
+    private SegmentIndex mSegmentIndex = new SegmentIndex();
     private SingAlongListener mListener = null;
     private CharSequence mCurrentSequence = null;
 
+    /** The normalizer applied to units, or {@code null} if none. */
+    private TextNormalizer mNormalizer;
+
+    /** Builds markup for each unit, or {@code null} to send plain text. */
+    private SsmlBuilder mSsmlBuilder;
+
+    /** The most characters the engine accepts in a single utterance. */
+    private final int mMaxInputLength = TextToSpeechCompatUtils.getMaxSpeechInputLength();
+
     private int mUnitEnd = 0;
     private int mUnitStart = 0;
 
+    /** The index of the current unit, or {@code -1} if none is selected. */
+    private int mUnitIndex = -1;
+
+    /** The maximum number of units to keep in the synthesizer's queue. */
+    private int mLookAhead = DEFAULT_LOOK_AHEAD;
+
+    /** Sequence number used to generate unique utterance identifiers. */
+    private int mUtteranceSequence = 0;
+
     private boolean mIsPaused = false;
 
     /**
-     * Flag that lets the utterance completion listener know whether to advance
-     * automatically. Automatically resets after each completed utterance.
+     * Flag that lets {@link #resume()} know whether to advance before
+     * speaking. Automatically resets after each resume.
      */
     private boolean mBypassAdvance = false;
 
+    /**
+     * Cursor position to select once the unit under it has been segmented,
+     * or {@code -1} if none.
+     */
+    private int mPendingCursor = -1;
+
+    /**
+     * Flag that lets {@link #onSegmentsAvailable} know whether to resume
+     * speaking once more units have been segmented.
+     */
+    private boolean mWaitingForUnits = false;
+
+    /** Whether the engine has reported word ranges. */
+    private boolean mReportsRanges = false;
+
+    /** The estimated speaking time per character. */
+    private float mMillisPerChar = DEFAULT_MILLIS_PER_CHAR;
+
+    /** The time at which the current unit started, or {@code -1} if unknown. */
+    private long mUnitStartTime = -1;
+
+    /** Word boundaries within the current unit, used for estimating progress. */
+    private int[] mWordBoundaries = new int[16];
+    private int mWordBoundaryCount = -1;
+
+    private int mWordStart = -1;
+    private int mWordEnd = -1;
+    private int mPublishedWordStart = -1;
+    private int mPublishedWordEnd = -1;
+
+    private long mLastProgressTime = 0;
+    private boolean mProgressScheduled = false;
+
     public GranularTextToSpeech(Context context, TextToSpeech tts, Locale defaultLocale) {
         this(context, new TextToSpeechWrapper(tts), defaultLocale);
     }
@@ -47,30 +138,127 @@ public class GranularTextToSpeech {
         mTts = tts;
 
         mParams = new HashMap<String, String>();
-        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, "SingAlongTTS");
+        mBackgroundSegmenter = new BackgroundSegmenter(mHandler, SEGMENTS_AVAILABLE);
+        mEventQueue = new UtteranceEventQueue(mHandler, mEventConsumer);
 
         if (defaultLocale != null) {
-            mBreakIterator = BreakIterator.getSentenceInstance(defaultLocale);
+            mLocale = defaultLocale;
         } else {
-            mBreakIterator = BreakIterator.getSentenceInstance(Locale.US);
+            mLocale = Locale.US;
         }
+
+        mSegmenter = createSegmenter();
+        mWordSegmenter = Segmenter.getInstance(Segmenter.GRANULARITY_WORD, mLocale);
     }
 
     public void setListener(SingAlongListener listener) {
         mListener = listener;
     }
 
+    /**
+     * Sets the normalizer applied to each unit before it is spoken. Units are
+     * still selected by their offsets in the original text, and word ranges
+     * reported by the engine are mapped back to the original text.
+     *
+     * @param normalizer The normalizer, or {@code null} to speak units as
+     *            written.
+     */
+    public void setNormalizer(TextNormalizer normalizer) {
+        mNormalizer = normalizer;
+    }
+
+    /**
+     * Sets the builder used to wrap each unit in SSML, with an explicit pause
+     * after units that end a line or paragraph. The pause is excluded when
+     * measuring the speaking rate, so estimated word progress isn't slowed by
+     * paragraph breaks.
+     *
+     * @param builder The builder, or {@code null} to send units as plain
+     *            text. Only set a builder for engines that parse SSML.
+     */
+    public void setSsmlBuilder(SsmlBuilder builder) {
+        mSsmlBuilder = builder;
+    }
+
+    /**
+     * Sets the number of units to keep queued in the synthesizer. Upcoming
+     * units are added with {@link TextToSpeech#QUEUE_ADD} so that the engine
+     * can move between units without waiting for a round trip through the
+     * main thread. A value of {@code 1} speaks one unit at a time.
+     *
+     * @param lookAhead The number of units to queue, including the unit that
+     *            is currently being spoken.
+     */
+    public void setLookAhead(int lookAhead) {
+        if (lookAhead < 1) {
+            throw new IllegalArgumentException("Look-ahead must be at least one unit");
+        }
+
+        mLookAhead = lookAhead;
+    }
+
     public void setLocale(Locale locale) {
-        mBreakIterator = BreakIterator.getSentenceInstance(locale);
+        mLocale = locale;
+        mSegmenter = createSegmenter();
+        mWordSegmenter = Segmenter.getInstance(Segmenter.GRANULARITY_WORD, mLocale);
 
-        // Reset the text since we had to recreate the break iterator.
+        // Reset the text since we had to recreate the segmenter.
         setText(mCurrentSequence);
     }
 
+    /**
+     * Sets the size of the units to read. The default granularity is
+     * {@link Segmenter#GRANULARITY_SENTENCE}.
+     *
+     * @param granularity One of the {@code GRANULARITY} constants in
+     *            {@link Segmenter}.
+     */
+    public void setGranularity(int granularity) {
+        mGranularity = granularity;
+        mSegmenter = createSegmenter();
+
+        // Reset the text since we had to recreate the segmenter.
+        setText(mCurrentSequence);
+    }
+
+    /**
+     * Sets the target unit length for {@link Segmenter#GRANULARITY_ADAPTIVE}.
+     * Longer units reduce the overhead of moving between units, while shorter
+     * units make highlighting and navigation more responsive.
+     *
+     * @param minLength The minimum unit length, in characters.
+     * @param maxLength The maximum unit length, in characters.
+     * @see AdaptiveSegmenter#setTargetLength(int, int)
+     */
+    public void setTargetLength(int minLength, int maxLength) {
+        if ((minLength < 0) || (maxLength < 1) || (minLength > maxLength)) {
+            throw new IllegalArgumentException("Invalid target length: " + minLength + " to "
+                    + maxLength);
+        }
+
+        mMinUnitLength = minLength;
+        mMaxUnitLength = maxLength;
+
+        if (mGranularity == Segmenter.GRANULARITY_ADAPTIVE) {
+            mSegmenter = createSegmenter();
+            setText(mCurrentSequence);
+        }
+    }
+
+    private Segmenter createSegmenter() {
+        final Segmenter segmenter = Segmenter.getInstance(mGranularity, mLocale);
+
+        if (segmenter instanceof AdaptiveSegmenter) {
+            ((AdaptiveSegmenter) segmenter).setTargetLength(mMinUnitLength, mMaxUnitLength);
+        }
+
+        return segmenter;
+    }
+
     public void speak() {
         pause();
 
-        mTts.setOnUtteranceCompletedListener(mOnUtteranceCompletedListener);
+        mTts.setUtteranceListener(mEventQueue);
 
         if (mListener != null) {
             mListener.onSequenceStarted();
@@ -80,33 +268,172 @@ public class GranularTextToSpeech {
     }
 
     public void setText(CharSequence text) {
+        // Queued units refer to offsets in the previous text.
+        mQueuedUnits.clear();
+        mBackgroundSegmenter.cancel();
+
         mCurrentSequence = text;
         mUnitStart = 0;
         mUnitEnd = 0;
-        mCharSequenceIterator.setCharSequence(mCurrentSequence);
-        mBreakIterator.setText(mCharSequenceIterator);
+        mUnitIndex = -1;
+        mPendingCursor = -1;
+        mWaitingForUnits = false;
+        resetProgress();
+
+        if ((text != null) && (text.length() > BACKGROUND_SEGMENTATION_THRESHOLD)) {
+            mSegmentIndex = new SegmentIndex();
+            mBackgroundSegmenter.start(text, 0, mSegmenter);
+        } else {
+            mSegmentIndex = SegmentIndex.build(mCurrentSequence, mSegmenter);
+        }
+    }
+
+    /**
+     * Updates the current text after an edit, keeping the current unit and
+     * any queued units in place. Only the units around the edit are
+     * re-segmented. Units that were already sent to the synthesizer are spoken
+     * as they were when queued.
+     *
+     * @param text The text after the edit, see
+     *            {@link android.text.TextWatcher#onTextChanged}.
+     * @param start The offset at which the edit started.
+     * @param before The number of characters that were replaced.
+     * @param count The number of characters that replaced them.
+     */
+    public void updateText(CharSequence text, int start, int before, int count) {
+        if (mCurrentSequence == null) {
+            // Not speaking, so there's nothing to update.
+            return;
+        }
+
+        // Map the tracked units through the edit before updating the index.
+        final int unitOffset = (mUnitIndex < 0) ? -1 : mapOffset(mUnitStart, start, before,
+                count);
+        final int[] queuedOffsets = new int[mQueuedUnits.size()];
+
+        for (int i = 0; i < queuedOffsets.length; i++) {
+            final int index = mQueuedUnits.get(i).index;
+            queuedOffsets[i] = mapOffset(mSegmentIndex.getStart(index), start, before, count);
+        }
+
+        if (mPendingCursor >= 0) {
+            mPendingCursor = mapOffset(mPendingCursor, start, before, count);
+        }
+
+        mCurrentSequence = text;
+
+        if (mBackgroundSegmenter.isRunning()) {
+            updatePartialIndex(text, start, before, count);
+        } else {
+            mSegmentIndex.applyEdit(text, start, before, count, mSegmenter);
+        }
+
+        // Don't notify the listener, since moving the selection would
+        // interfere with editing.
+        if (unitOffset < 0) {
+            mUnitStart = 0;
+            mUnitEnd = 0;
+        } else {
+            mUnitIndex = findUnitAt(unitOffset);
+
+            if (mUnitIndex < 0) {
+                mUnitStart = 0;
+                mUnitEnd = 0;
+            } else {
+                mUnitStart = mSegmentIndex.getStart(mUnitIndex);
+                mUnitEnd = mSegmentIndex.getEnd(mUnitIndex);
+            }
+        }
+
+        final int queuedCount = queuedOffsets.length;
+
+        for (int i = 0; i < queuedCount; i++) {
+            final QueuedUnit unit = mQueuedUnits.removeFirst();
+            final int index = findUnitAt(queuedOffsets[i]);
+
+            if (index >= 0) {
+                mQueuedUnits.addLast(new QueuedUnit(unit.utteranceId, index));
+            }
+        }
+    }
+
+    /**
+     * Updates an index that is still being built in the background. Edits
+     * within the indexed text only shift the units that are still being
+     * segmented, so the cost depends on the size of the edit. Edits that reach
+     * the text past the end of the index restart segmentation from there,
+     * since units already segmented past that point refer to the text before
+     * the edit.
+     */
+    private void updatePartialIndex(CharSequence text, int start, int before, int count) {
+        final int indexedLength = mSegmentIndex.getTextLength();
+
+        if ((start + before) <= indexedLength) {
+            mSegmentIndex.applyEdit(text, start, before, count, mSegmenter);
+            mBackgroundSegmenter.shift(count - before);
+            return;
+        }
+
+        if (start < indexedLength) {
+            // The edit overlaps the end of the indexed text, so remove the
+            // units that it touches.
+            final int index = mSegmentIndex.indexAtOrAfter(start);
+            final int length = (index > 0) ? mSegmentIndex.getEnd(index - 1) : 0;
+
+            mSegmentIndex.truncate(index, length);
+        }
+
+        mBackgroundSegmenter.start(text, mSegmentIndex.getTextLength(), mSegmenter);
     }
 
     public void pause() {
         mIsPaused = true;
+        mWaitingForUnits = false;
+        mQueuedUnits.clear();
+        resetProgress();
         mTts.stop();
     }
 
     public void resume() {
         mIsPaused = false;
-        onUtteranceCompleted(null);
+
+        if (mCurrentSequence == null) {
+            // Shouldn't be speaking now.
+            return;
+        }
+
+        if (mPendingCursor >= 0) {
+            // The unit under the cursor hasn't been segmented yet.
+            mWaitingForUnits = true;
+            return;
+        }
+
+        if (mBypassAdvance) {
+            mBypassAdvance = false;
+        } else if (!nextInternal()) {
+            if (!waitForUnits()) {
+                stop();
+            }
+            return;
+        }
+
+        speakFromCurrentUnit();
     }
 
     public void next() {
         nextInternal();
-        mBypassAdvance = !mIsPaused;
-        mTts.stop();
+
+        if (!mIsPaused) {
+            speakFromCurrentUnit();
+        }
     }
 
     public void previous() {
         previousInternal();
-        mBypassAdvance = !mIsPaused;
-        mTts.stop();
+
+        if (!mIsPaused) {
+            speakFromCurrentUnit();
+        }
     }
 
     public boolean isSpeaking() {
@@ -118,93 +445,121 @@ public class GranularTextToSpeech {
             cursor = 0;
         }
 
-        if (safeIsBoundary(mBreakIterator, cursor)) {
-            mUnitStart = mBreakIterator.current();
-            safeFollowing(mBreakIterator, cursor);
-            mUnitEnd = mBreakIterator.current();
-        } else {
-            mUnitEnd = mBreakIterator.current();
-            safePreceding(mBreakIterator, cursor);
-            mUnitStart = mBreakIterator.current();
+        if (mBackgroundSegmenter.isRunning()
+                && (mSegmentIndex.indexAtOrAfter(cursor) >= mSegmentIndex.size())) {
+            // Select the unit once it has been segmented.
+            mPendingCursor = cursor;
+            return;
         }
 
-        mBypassAdvance = true;
+        final int index = findUnitAt(cursor);
 
-        if (mListener != null) {
-            mListener.onUnitSelected(mUnitStart, mUnitEnd);
+        if (index < 0) {
+            return;
         }
+
+        selectUnit(index);
+
+        mBypassAdvance = true;
     }
 
     public void stop() {
         mIsPaused = true;
+        mQueuedUnits.clear();
 
         mTts.stop();
-        mTts.setOnUtteranceCompletedListener(null);
+        mTts.setUtteranceListener(null);
+        mEventQueue.clear();
 
         if (mListener != null) {
             mListener.onSequenceCompleted();
         }
 
         setText(null);
-
-        mUnitStart = 0;
-        mUnitEnd = 0;
     }
 
     /**
-     * Move the break iterator forward by one unit. If the cursor is in the
-     * middle of a unit, it will move to the next unit.
+     * Move forward by one unit.
      *
-     * @return {@code true} if the iterator moved forward or {@code false} if it
-     *         already at the last unit.
+     * @return {@code true} if the current unit moved forward or {@code false}
+     *         if it was already at the last unit.
      */
     private boolean nextInternal() {
-        do {
-            final int result = safeFollowing(mBreakIterator, mUnitEnd);
+        final int index = (mUnitIndex + 1);
 
-            if (result == BreakIterator.DONE) {
-                return false;
-            }
+        if (index >= mSegmentIndex.size()) {
+            return false;
+        }
 
-            mUnitStart = mUnitEnd;
-            mUnitEnd = mBreakIterator.current();
-        } while (isWhitespace(mCurrentSequence.subSequence(mUnitStart, mUnitEnd)));
+        selectUnit(index);
 
-        if (mListener != null) {
-            mListener.onUnitSelected(mUnitStart, mUnitEnd);
+        return true;
+    }
+
+    /**
+     * Move backward by one unit.
+     *
+     * @return {@code true} if the current unit moved backward or {@code false}
+     *         if it was already at the first unit.
+     */
+    private boolean previousInternal() {
+        final int index = (mUnitIndex - 1);
+
+        if (index < 0) {
+            return false;
         }
 
+        selectUnit(index);
+
         return true;
     }
 
     /**
-     * Move the break iterator backward by one unit. If the cursor is in the
-     * middle of a unit, it will move to the beginning of the unit.
+     * Returns the index of the unit containing the specified offset, the
+     * following unit if the offset falls between units, or the last unit if
+     * the offset is past the end of the last unit.
      *
-     * @return {@code true} if the iterator moved backward or {@code false} if
-     *         it already at the first unit.
+     * @param offset An offset within the current text.
+     * @return A unit index, or {@code -1} if there are no units.
      */
-    private boolean previousInternal() {
-        do {
-            final int result = safePreceding(mBreakIterator, mUnitStart);
+    private int findUnitAt(int offset) {
+        final int count = mSegmentIndex.size();
 
-            if (result == BreakIterator.DONE) {
-                return false;
-            }
+        if (count == 0) {
+            return -1;
+        }
 
-            mUnitEnd = mUnitStart;
-            mUnitStart = mBreakIterator.current();
-        } while (isWhitespace(mCurrentSequence.subSequence(mUnitStart, mUnitEnd)));
+        return Math.min(mSegmentIndex.indexAtOrAfter(offset), count - 1);
+    }
 
-        if (mListener != null) {
-            mListener.onUnitSelected(mUnitStart, mUnitEnd);
+    /**
+     * Maps an offset in the text before an edit to the corresponding offset
+     * after the edit. Offsets within replaced text map to the start of the
+     * edit.
+     */
+    private static int mapOffset(int offset, int start, int before, int count) {
+        if (offset <= start) {
+            return offset;
+        } else if (offset >= (start + before)) {
+            return offset + (count - before);
         }
 
-        return true;
+        return start;
     }
 
-    private static boolean isWhitespace(CharSequence text) {
-        return TextUtils.getTrimmedLength(text) == 0;
+    /**
+     * Sets the current unit and notifies the listener.
+     *
+     * @param index The index of the unit within {@link #mSegmentIndex}.
+     */
+    private void selectUnit(int index) {
+        mUnitIndex = index;
+        mUnitStart = mSegmentIndex.getStart(index);
+        mUnitEnd = mSegmentIndex.getEnd(index);
+
+        if (mListener != null) {
+            mListener.onUnitSelected(mUnitStart, mUnitEnd);
+        }
     }
 
     private void onUtteranceCompleted(String utteranceId) {
@@ -218,69 +573,440 @@ public class GranularTextToSpeech {
             return;
         }
 
-        if (mBypassAdvance) {
-            mBypassAdvance = false;
-        } else if (!nextInternal()) {
-            stop();
+        if (mQueuedUnits.isEmpty()) {
+            // The queue was discarded, so continue from the current unit.
+            if (!nextInternal()) {
+                if (!waitForUnits()) {
+                    stop();
+                }
+                return;
+            }
+
+            speakFromCurrentUnit();
+            return;
+        }
+
+        final QueuedUnit current = mQueuedUnits.peek();
+
+        if (!removeCompletedUnits(utteranceId)) {
+            // Completion for a unit that was already flushed.
+            return;
+        }
+
+        if (current.utteranceId.equals(utteranceId)) {
+            updateRateEstimate(current);
+        }
+
+        final QueuedUnit unit = mQueuedUnits.peek();
+
+        if (unit == null) {
+            if (!waitForUnits()) {
+                stop();
+            }
             return;
         }
 
-        speakCurrentUnit();
+        selectUnit(unit.index);
+        startProgress();
+        fillQueue();
     }
 
-    private void speakCurrentUnit() {
-        if (mCurrentSequence.length() == 0) {
+    /**
+     * Stops the sequence when a queued unit fails. The engine won't report a
+     * completion for the unit, so waiting for one would stall the sequence.
+     */
+    private void onUtteranceError(String utteranceId, int errorCode) {
+        if ((mCurrentSequence == null) || mIsPaused || !isQueued(utteranceId)) {
+            // Error for a unit that was already flushed.
             return;
         }
 
-        sanityCheck();
+        LogUtils.log(this, Log.ERROR, "Failed to speak utterance %s, error %d", utteranceId,
+                errorCode);
 
-        final CharSequence text = mCurrentSequence.subSequence(mUnitStart, mUnitEnd);
-        mTts.speak(text.toString(), TextToSpeech.QUEUE_FLUSH, mParams);
+        stop();
     }
 
-    private void sanityCheck() {
-        final int length = mCurrentSequence.length();
+    private boolean isQueued(String utteranceId) {
+        for (QueuedUnit unit : mQueuedUnits) {
+            if (unit.utteranceId.equals(utteranceId)) {
+                return true;
+            }
+        }
 
-        if ((mUnitStart < 0) || (mUnitStart >= mCurrentSequence.length())) {
-            throw new IndexOutOfBoundsException("Unit start (" + mUnitStart
-                    + ") is invalid for string with length " + length);
-        } else if ((mUnitEnd < 0) || (mUnitEnd > mCurrentSequence.length())) {
-            throw new IndexOutOfBoundsException("Unit end (" + mUnitEnd
-                    + ") is invalid for string with length" + length);
+        return false;
+    }
+
+    private void onUtteranceStarted(String utteranceId) {
+        final QueuedUnit unit = mQueuedUnits.peek();
+
+        if (mIsPaused || (unit == null) || !unit.utteranceId.equals(utteranceId)) {
+            return;
+        }
+
+        // More accurate than the time at which the unit was selected.
+        mUnitStartTime = SystemClock.uptimeMillis();
+    }
+
+    private void onRangeStarted(String utteranceId, int start, int end) {
+        final QueuedUnit unit = mQueuedUnits.peek();
+
+        if (mIsPaused || (unit == null) || !unit.utteranceId.equals(utteranceId)) {
+            return;
+        }
+
+        if (unit.ssml != null) {
+            start = unit.ssml.getOriginalOffset(start);
+            end = unit.ssml.getOriginalOffset(end);
+        }
+
+        if (unit.normalized != null) {
+            start = unit.normalized.getOriginalOffset(start);
+            end = unit.normalized.getOriginalOffset(end);
+        }
+
+        mReportsRanges = true;
+        mWordStart = Math.min(mUnitStart + start, mUnitEnd);
+        mWordEnd = Math.min(mUnitStart + end, mUnitEnd);
+
+        scheduleProgress();
+    }
+
+    /**
+     * Starts tracking word progress for the current unit.
+     */
+    private void startProgress() {
+        mUnitStartTime = SystemClock.uptimeMillis();
+        mWordBoundaryCount = -1;
+
+        if (!mReportsRanges) {
+            scheduleProgress();
+        }
+    }
+
+    /**
+     * Stops tracking word progress and cancels any pending update.
+     */
+    private void resetProgress() {
+        mHandler.removeMessages(UPDATE_PROGRESS);
+        mProgressScheduled = false;
+        mUnitStartTime = -1;
+        mWordBoundaryCount = -1;
+        mWordStart = -1;
+        mWordEnd = -1;
+        mPublishedWordStart = -1;
+        mPublishedWordEnd = -1;
+    }
+
+    /**
+     * Schedules a progress update for the next frame. Ranges that arrive
+     * before then are coalesced, so only the latest word is published.
+     */
+    private void scheduleProgress() {
+        if (mProgressScheduled) {
+            return;
+        }
+
+        final long updateTime = Math.max(SystemClock.uptimeMillis(), mLastProgressTime
+                + FRAME_INTERVAL_MS);
+
+        mProgressScheduled = true;
+        mHandler.sendEmptyMessageAtTime(UPDATE_PROGRESS, updateTime);
+    }
+
+    private void onUpdateProgress() {
+        mProgressScheduled = false;
+        mLastProgressTime = SystemClock.uptimeMillis();
+
+        if (mIsPaused || (mCurrentSequence == null) || (mUnitIndex < 0)) {
+            return;
+        }
+
+        if (!mReportsRanges && (mUnitStartTime >= 0) && estimateWord()) {
+            // Keep estimating until the last word is reached.
+            scheduleProgress();
+        }
+
+        if ((mWordStart < mUnitStart) || (mWordEnd > mUnitEnd)) {
+            // The word belongs to a different unit.
+            return;
+        }
+
+        if ((mWordStart == mPublishedWordStart) && (mWordEnd == mPublishedWordEnd)) {
+            return;
+        }
+
+        mPublishedWordStart = mWordStart;
+        mPublishedWordEnd = mWordEnd;
+
+        if (mListener != null) {
+            mListener.onWordSelected(mWordStart, mWordEnd);
+        }
+    }
+
+    /**
+     * Estimates the word being spoken from the time elapsed since the
+     * current unit started.
+     *
+     * @return {@code true} if there are more words to estimate.
+     */
+    private boolean estimateWord() {
+        if (mWordBoundaryCount < 0) {
+            computeWordBoundaries();
+        }
+
+        if (mWordBoundaryCount < 2) {
+            return false;
+        }
+
+        final long elapsed = (SystemClock.uptimeMillis() - mUnitStartTime);
+        final int offset = (mUnitStart + (int) (elapsed / mMillisPerChar));
+        final int lastWord = (mWordBoundaryCount - 2);
+
+        int word = 0;
+
+        while ((word < lastWord) && (mWordBoundaries[word + 1] <= offset)) {
+            word++;
+        }
+
+        mWordStart = mWordBoundaries[word];
+        mWordEnd = mWordBoundaries[word + 1];
+
+        // Don't highlight trailing whitespace.
+        while ((mWordEnd > mWordStart)
+                && Character.isWhitespace(mCurrentSequence.charAt(mWordEnd - 1))) {
+            mWordEnd--;
+        }
+
+        return (word < lastWord);
+    }
+
+    private void computeWordBoundaries() {
+        mWordSegmenter.setText(mCurrentSequence, mUnitStart, mUnitEnd);
+        mWordBoundaryCount = 0;
+
+        int boundary = mWordSegmenter.first();
+
+        while (boundary != Segmenter.DONE) {
+            if (mWordBoundaryCount == mWordBoundaries.length) {
+                final int[] boundaries = new int[mWordBoundaryCount * 2];
+                System.arraycopy(mWordBoundaries, 0, boundaries, 0, mWordBoundaryCount);
+                mWordBoundaries = boundaries;
+            }
+
+            mWordBoundaries[mWordBoundaryCount++] = boundary;
+            boundary = mWordSegmenter.next();
+        }
+    }
+
+    /**
+     * Updates the estimated speaking rate using the time taken to speak the
+     * current unit, excluding any explicit pause after it.
+     */
+    private void updateRateEstimate(QueuedUnit unit) {
+        if (mUnitStartTime < 0) {
+            return;
+        }
+
+        final int pause = ((unit.ssml == null) ? 0 : unit.ssml.pause);
+        final long elapsed = (SystemClock.uptimeMillis() - mUnitStartTime - pause);
+        final int length = (mUnitEnd - mUnitStart);
+
+        if ((elapsed <= 0) || (length <= 0)) {
+            return;
         }
+
+        final float sample = ((float) elapsed / length);
+
+        mMillisPerChar += (RATE_SMOOTHING * (sample - mMillisPerChar));
     }
 
-    private static boolean safeIsBoundary(BreakIterator iterator, int offset) {
-        try {
-            return iterator.isBoundary(offset);
-        } catch (IllegalArgumentException e) {
+    /**
+     * If more units are still being segmented, waits for them before
+     * continuing.
+     *
+     * @return {@code true} if speaking will resume when more units are
+     *         available, or {@code false} if the last unit has been reached.
+     */
+    private boolean waitForUnits() {
+        if (!mBackgroundSegmenter.isRunning()) {
             return false;
         }
+
+        mWaitingForUnits = true;
+
+        return true;
     }
 
-    private static int safeFollowing(BreakIterator iterator, int offset) {
-        try {
-            return iterator.following(offset);
-        } catch (IllegalArgumentException e) {
-            return BreakIterator.DONE;
+    private void onSegmentsAvailable(BackgroundSegmenter.Chunk chunk) {
+        if (!mBackgroundSegmenter.accept(chunk)) {
+            // Units from canceled work.
+            return;
+        }
+
+        mSegmentIndex.appendUnits(chunk.starts, chunk.ends, chunk.count, chunk.frontier);
+
+        if (mPendingCursor >= 0) {
+            final int cursor = mPendingCursor;
+
+            mPendingCursor = -1;
+            setSegmentFromCursor(cursor);
+
+            if (mPendingCursor >= 0) {
+                // Still waiting for the unit under the cursor.
+                return;
+            }
+        }
+
+        if (mIsPaused) {
+            return;
+        }
+
+        if (mWaitingForUnits) {
+            mWaitingForUnits = false;
+            resume();
+        } else {
+            fillQueue();
         }
     }
 
-    private static int safePreceding(BreakIterator iterator, int offset) {
-        try {
-            return iterator.preceding(offset);
-        } catch (IllegalArgumentException e) {
-            return BreakIterator.DONE;
+    /**
+     * Removes queued units up to and including the unit with the specified
+     * utterance identifier. Engines may drop completions for units that were
+     * skipped, so any units queued ahead of the completed unit are also
+     * considered complete.
+     *
+     * @param utteranceId The identifier of the completed utterance.
+     * @return {@code true} if the utterance was found in the queue.
+     */
+    private boolean removeCompletedUnits(String utteranceId) {
+        int count = 0;
+
+        for (QueuedUnit unit : mQueuedUnits) {
+            count++;
+
+            if (unit.utteranceId.equals(utteranceId)) {
+                final Iterator<QueuedUnit> iterator = mQueuedUnits.iterator();
+
+                for (int i = 0; i < count; i++) {
+                    iterator.next();
+                    iterator.remove();
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Flushes the synthesizer and starts speaking from the current unit,
+     * queuing upcoming units up to the look-ahead limit.
+     */
+    private void speakFromCurrentUnit() {
+        mQueuedUnits.clear();
+
+        if ((mCurrentSequence.length() == 0) || (mUnitIndex < 0)) {
+            return;
+        }
+
+        sanityCheck();
+
+        enqueueUnit(mUnitIndex, TextToSpeech.QUEUE_FLUSH);
+        startProgress();
+        fillQueue();
+    }
+
+    /**
+     * Adds units following the last queued unit until the queue reaches the
+     * look-ahead limit or the end of the text.
+     */
+    private void fillQueue() {
+        while (!mQueuedUnits.isEmpty() && (mQueuedUnits.size() < mLookAhead)) {
+            final int index = (mQueuedUnits.getLast().index + 1);
+
+            if (index >= mSegmentIndex.size()) {
+                return;
+            }
+
+            enqueueUnit(index, TextToSpeech.QUEUE_ADD);
+        }
+    }
+
+    private void enqueueUnit(int index, int queueMode) {
+        final String utteranceId = UTTERANCE_PREFIX + (mUtteranceSequence++);
+        final int start = mSegmentIndex.getStart(index);
+        final int end = mSegmentIndex.getEnd(index);
+        final QueuedUnit unit = new QueuedUnit(utteranceId, index);
+        String text;
+
+        if (mNormalizer != null) {
+            unit.normalized = mNormalizer.normalize(mCurrentSequence, start, end);
+            text = unit.normalized.text;
+        } else {
+            text = mCurrentSequence.subSequence(start, end).toString();
+        }
+
+        if (mSsmlBuilder != null) {
+            // Include the whitespace up to the next unit, which may not be
+            // part of this one.
+            final int next = ((index + 1) < mSegmentIndex.size()) ? mSegmentIndex
+                    .getStart(index + 1) : end;
+            final int pause = mSsmlBuilder.getPauseAfter(mCurrentSequence, start,
+                    Math.max(next, end));
+
+            // Escaping lengthens the text, so keep the markup within the
+            // engine's limit rather than have the unit rejected.
+            unit.ssml = mSsmlBuilder.build(text, pause, mMaxInputLength);
+            text = unit.ssml.text;
+        }
+
+        mQueuedUnits.add(unit);
+        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+        mTts.speak(text, queueMode, mParams);
+    }
+
+    private void sanityCheck() {
+        final int length = mCurrentSequence.length();
+
+        if ((mUnitStart < 0) || (mUnitStart >= mCurrentSequence.length())) {
+            throw new IndexOutOfBoundsException("Unit start (" + mUnitStart
+                    + ") is invalid for string with length " + length);
+        } else if ((mUnitEnd < 0) || (mUnitEnd > mCurrentSequence.length())) {
+            throw new IndexOutOfBoundsException("Unit end (" + mUnitEnd
+                    + ") is invalid for string with length" + length);
         }
     }
 
     private final SingAlongHandler mHandler = new SingAlongHandler(this);
 
-    private final OnUtteranceCompletedListener mOnUtteranceCompletedListener = new OnUtteranceCompletedListener() {
+    private final EventConsumer mEventConsumer = new EventConsumer() {
         @Override
-        public void onUtteranceCompleted(String utteranceId) {
-            mHandler.obtainMessage(UTTERANCE_COMPLETED, utteranceId).sendToTarget();
+        public void onUtteranceEvent(int type, String utteranceId, int arg1, int arg2) {
+            switch (type) {
+                case UtteranceEventQueue.EVENT_STARTED:
+                    onUtteranceStarted(utteranceId);
+                    break;
+                case UtteranceEventQueue.EVENT_DONE:
+                    onUtteranceCompleted(utteranceId);
+                    break;
+                case UtteranceEventQueue.EVENT_ERROR:
+                    onUtteranceError(utteranceId, arg1);
+                    break;
+                case UtteranceEventQueue.EVENT_RANGE_STARTED:
+                    onRangeStarted(utteranceId, arg1, arg2);
+                    break;
+            }
+        }
+
+        @Override
+        public void onEventsDropped() {
+            if ((mCurrentSequence != null) && !mIsPaused) {
+                // A completion may have been lost, so restart from the
+                // current unit rather than waiting for it.
+                speakFromCurrentUnit();
+            }
         }
     };
 
@@ -292,19 +1018,37 @@ public class GranularTextToSpeech {
         @Override
         protected void handleMessage(Message msg, GranularTextToSpeech parent) {
             switch (msg.what) {
-                case UTTERANCE_COMPLETED:
-                    parent.onUtteranceCompleted((String) msg.obj);
+                case SEGMENTS_AVAILABLE:
+                    parent.onSegmentsAvailable((BackgroundSegmenter.Chunk) msg.obj);
                     break;
-                case RESUME_SPEAKING:
-                    parent.resume();
+                case UPDATE_PROGRESS:
+                    parent.onUpdateProgress();
                     break;
             }
         }
     };
 
+    /**
+     * A unit that has been sent to the synthesizer.
+     */
+    private static class QueuedUnit {
+        public final String utteranceId;
+        public final int index;
+
+        /** The normalized text, or {@code null} if spoken as written. */
+        public TextNormalizer.Result normalized;
+
+        /** The markup sent to the engine, or {@code null} if plain text. */
+        public SsmlBuilder.Result ssml;
+
+        public QueuedUnit(String utteranceId, int index) {
+            this.utteranceId = utteranceId;
+            this.index = index;
+        }
+    }
+
     public interface TextToSpeechStub {
-        public void setOnUtteranceCompletedListener(
-                OnUtteranceCompletedListener mOnUtteranceCompletedListener);
+        public void setUtteranceListener(UtteranceListener listener);
 
         public int speak(String string, int queueFlush, HashMap<String, String> mParams);
 
@@ -318,10 +1062,9 @@ public class GranularTextToSpeech {
             mTts = tts;
         }
 
-        @SuppressWarnings("deprecation")
         @Override
-        public void setOnUtteranceCompletedListener(OnUtteranceCompletedListener listener) {
-            mTts.setOnUtteranceCompletedListener(listener);
+        public void setUtteranceListener(UtteranceListener listener) {
+            TextToSpeechCompatUtils.setUtteranceListener(mTts, listener);
         }
 
         @Override
@@ -340,6 +1083,12 @@ public class GranularTextToSpeech {
 
         public void onUnitSelected(int start, int end);
 
+        /**
+         * Called when a word within the current unit starts. Updates are
+         * limited to one per display frame.
+         */
+        public void onWordSelected(int start, int end);
+
         public void onSequenceCompleted();
     }
 }
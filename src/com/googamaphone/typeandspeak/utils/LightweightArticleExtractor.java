@@ -0,0 +1,596 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Extracts the article text from an HTML page in a single pass, without
+ * building a document or holding the page in memory. The page is read
+ * through a fixed-size buffer by a small tokenizer, and only the text of the
+ * current and previous blocks is kept.
+ * <p>
+ * Blocks are classified with the text density rules of boilerpipe's
+ * {@code DensityRulesClassifier}, once the block that follows them is known.
+ * Like {@link StreamingArticleExtractor}, extraction stops at a block that
+ * marks the end of the article once enough content has been found.
+ */
+public class LightweightArticleExtractor extends PageExtractor {
+    private static final String DEFAULT_CHARSET = "windows-1252";
+
+    /** The number of bytes searched for a meta charset. */
+    private static final int SNIFF_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /** The longest block kept before it's split. */
+    private static final int MAX_BLOCK_LENGTH = 8192;
+
+    /** The longest tag kept, which is enough for the tag name. */
+    private static final int MAX_TAG_LENGTH = 64;
+
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    /** The line length used to measure text density. */
+    private static final int WRAP_LENGTH = 80;
+
+    /** The content words required before an end-of-text block is honored. */
+    private static final int MIN_WORDS_BEFORE_END = 60;
+
+    /** Blocks this long or longer never mark the end of the text. */
+    private static final int MAX_END_OF_TEXT_WORDS = 15;
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_TAG = 1;
+    private static final int STATE_COMMENT = 2;
+    private static final int STATE_ENTITY = 3;
+
+    /** Elements that start and end a block of text. */
+    private static final HashSet<String> BLOCK_TAGS = new HashSet<String>(Arrays.asList("p",
+            "div", "h1", "h2", "h3", "h4", "h5", "h6", "li", "ul", "ol", "dl", "dt", "dd",
+            "table", "tr", "td", "th", "caption", "blockquote", "pre", "article", "section",
+            "header", "main", "figure", "figcaption", "address", "center", "hr", "body"));
+
+    /** Elements whose content is never part of the article. */
+    private static final HashSet<String> IGNORED_TAGS = new HashSet<String>(Arrays.asList(
+            "head", "script", "style", "noscript", "select", "option", "textarea", "iframe",
+            "object", "svg", "nav", "aside", "footer", "form", "button"));
+
+    /** Elements whose content is raw text, which may contain markup. */
+    private static final HashSet<String> RAW_TEXT_TAGS = new HashSet<String>(Arrays.asList(
+            "script", "style"));
+
+    private static final String[] END_OF_TEXT_PREFIXES = {
+            "comments", "post a comment", "leave a comment", "please rate this",
+            "related articles", "related stories", "\u00a9", "(c) ", "copyright "
+    };
+
+    private static final String[] END_OF_TEXT_PHRASES = {
+            "what you think", "add your comment", "add comment", "reader comments",
+            "have your say", "all rights reserved"
+    };
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private final StringBuilder mTag = new StringBuilder(MAX_TAG_LENGTH);
+    private final StringBuilder mEntity = new StringBuilder(MAX_ENTITY_LENGTH);
+    private final StringBuilder mText = new StringBuilder(MAX_BLOCK_LENGTH);
+
+    private int mState = STATE_TEXT;
+    private char mQuote = 0;
+
+    /** The raw text element being skipped, or {@code null} if none. */
+    private String mRawTag;
+
+    private int mIgnoreDepth = 0;
+    private int mAnchorDepth = 0;
+
+    /** Whether a line break has been read since the last text or tag. */
+    private boolean mLineBreak = false;
+
+    // Statistics of the current block, computed as text arrives.
+    private boolean mSpace = false;
+    private int mTokenLength = 0;
+    private boolean mTokenIsWord = false;
+    private boolean mTokenInAnchor = false;
+    private int mWords = 0;
+    private int mAnchorWords = 0;
+    private int mLineLength = 0;
+    private int mLineWords = 0;
+    private int mWrappedLines = 0;
+
+    private Block mPrevious = Block.EMPTY;
+    private Block mCurrent;
+    private int mContentWords = 0;
+    private boolean mStopped = false;
+
+    /** Whether every block is content. */
+    private boolean mKeepAll = false;
+
+    public LightweightArticleExtractor(ParagraphListener listener) {
+        super(listener);
+    }
+
+    /**
+     * Sets whether to pass every block of text to the listener, rather than
+     * only those classified as article text. This suits documents without
+     * boilerplate, such as the chapters of a book. Elements such as scripts
+     * and navigation are still skipped.
+     */
+    public void setKeepAll(boolean keepAll) {
+        mKeepAll = keepAll;
+    }
+
+    @Override
+    public boolean extract(InputStream in, String charset) throws IOException {
+        final BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+
+        if (charset == null) {
+            charset = sniffCharset(buffered);
+        }
+
+        if ((charset == null) || !Charset.isSupported(charset)) {
+            charset = DEFAULT_CHARSET;
+        }
+
+        final Reader reader = new InputStreamReader(buffered, charset);
+        int count;
+
+        while (!mStopped && ((count = reader.read(mBuffer)) >= 0)) {
+            for (int i = 0; (i < count) && !mStopped; i++) {
+                read(mBuffer[i]);
+            }
+        }
+
+        if (!mStopped) {
+            endBlock();
+            classify(null);
+        }
+
+        return !mStopped;
+    }
+
+    /**
+     * Looks for a charset in the first bytes of the page, then rewinds.
+     */
+    private static String sniffCharset(BufferedInputStream in) throws IOException {
+        final byte[] bytes = new byte[SNIFF_LENGTH];
+        int length = 0;
+        int count;
+
+        in.mark(SNIFF_LENGTH);
+
+        while ((length < bytes.length)
+                && ((count = in.read(bytes, length, bytes.length - length)) >= 0)) {
+            length += count;
+        }
+
+        in.reset();
+
+        return getCharset(new String(bytes, 0, length, "ISO-8859-1"));
+    }
+
+    private void read(char c) {
+        switch (mState) {
+            case STATE_TEXT:
+                if (c == '<') {
+                    mState = STATE_TAG;
+                    mTag.setLength(0);
+                    mQuote = 0;
+                } else if ((c == '&') && (mRawTag == null)) {
+                    mState = STATE_ENTITY;
+                    mEntity.setLength(0);
+                } else if (mRawTag == null) {
+                    appendText(c);
+                }
+                break;
+            case STATE_TAG:
+                readTag(c);
+                break;
+            case STATE_COMMENT:
+                // Keep the last two characters to find the end of the comment.
+                if ((c == '>') && (mTag.length() == 2) && (mTag.charAt(0) == '-')
+                        && (mTag.charAt(1) == '-')) {
+                    mState = STATE_TEXT;
+                } else {
+                    if (mTag.length() == 2) {
+                        mTag.deleteCharAt(0);
+                    }
+
+                    mTag.append(c);
+                }
+                break;
+            case STATE_ENTITY:
+                readEntity(c);
+                break;
+        }
+    }
+
+    private void readTag(char c) {
+        if (mQuote != 0) {
+            if (c == mQuote) {
+                mQuote = 0;
+            }
+            return;
+        }
+
+        if ((c == '<') && (mRawTag != null)) {
+            // Scripts may contain '<', so start over at each one.
+            mTag.setLength(0);
+            return;
+        }
+
+        if ((mTag.length() == 0) && !Character.isLetter(c) && (c != '/') && (c != '!')
+                && (c != '?')) {
+            // Not a tag, such as "a < b".
+            mState = STATE_TEXT;
+
+            if (mRawTag == null) {
+                appendText('<');
+            }
+
+            read(c);
+            return;
+        }
+
+        if (c == '>') {
+            mState = STATE_TEXT;
+            onTag();
+            return;
+        }
+
+        if (((c == '"') || (c == '\'')) && (mTag.length() > 0) && (mRawTag == null)) {
+            mQuote = c;
+            return;
+        }
+
+        if (mTag.length() < MAX_TAG_LENGTH) {
+            mTag.append(c);
+        }
+
+        if ((mTag.length() == 3) && (mTag.charAt(0) == '!') && (mTag.charAt(1) == '-')
+                && (mTag.charAt(2) == '-') && (mRawTag == null)) {
+            mState = STATE_COMMENT;
+            mTag.setLength(0);
+        }
+    }
+
+    private void readEntity(char c) {
+        if (c == ';') {
+            mState = STATE_TEXT;
+            appendEntity(mEntity);
+            return;
+        }
+
+        if (Character.isLetterOrDigit(c) || ((c == '#') && (mEntity.length() == 0))) {
+            if (mEntity.length() < MAX_ENTITY_LENGTH) {
+                mEntity.append(c);
+                return;
+            }
+        }
+
+        // Not an entity, so keep the text as written.
+        mState = STATE_TEXT;
+        appendText('&');
+
+        for (int i = 0; i < mEntity.length(); i++) {
+            appendText(mEntity.charAt(i));
+        }
+
+        read(c);
+    }
+
+    private void appendEntity(CharSequence entity) {
+        final String name = entity.toString();
+
+        if (name.startsWith("#")) {
+            try {
+                final int codePoint;
+
+                if (name.startsWith("#x") || name.startsWith("#X")) {
+                    codePoint = Integer.parseInt(name.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(name.substring(1));
+                }
+
+                if (Character.isValidCodePoint(codePoint)) {
+                    for (char c : Character.toChars(codePoint)) {
+                        appendText(c);
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                // Drop it.
+            }
+        } else if (name.equals("amp")) {
+            appendText('&');
+        } else if (name.equals("lt")) {
+            appendText('<');
+        } else if (name.equals("gt")) {
+            appendText('>');
+        } else if (name.equals("quot")) {
+            appendText('"');
+        } else if (name.equals("apos") || name.equals("rsquo") || name.equals("lsquo")) {
+            appendText('\'');
+        } else {
+            // Other named entities are spacing or punctuation.
+            appendText(' ');
+        }
+    }
+
+    /**
+     * Handles a complete tag, whose text is in {@link #mTag}.
+     */
+    private void onTag() {
+        final int length = mTag.length();
+        final boolean end = (length > 0) && (mTag.charAt(0) == '/');
+        final boolean selfClosing = (length > 0) && (mTag.charAt(length - 1) == '/');
+        int i = (end ? 1 : 0);
+
+        while ((i < length) && Character.isLetterOrDigit(mTag.charAt(i))) {
+            i++;
+        }
+
+        final String name = mTag.substring(end ? 1 : 0, i).toLowerCase(Locale.US);
+
+        if (mRawTag != null) {
+            if (end && name.equals(mRawTag)) {
+                mRawTag = null;
+                mIgnoreDepth = Math.max(0, mIgnoreDepth - 1);
+            }
+            return;
+        }
+
+        if (name.length() == 0) {
+            // A doctype, processing instruction, or stray '<'.
+            return;
+        }
+
+        if (name.equals("body")) {
+            // Recover from a missing </head>.
+            mIgnoreDepth = 0;
+        }
+
+        final boolean lineBreak = mLineBreak;
+
+        mLineBreak = false;
+
+        if (BLOCK_TAGS.contains(name)) {
+            endBlock();
+        } else if (name.equals("br")) {
+            if (lineBreak) {
+                // Pages without paragraph elements separate them this way.
+                endBlock();
+            } else {
+                mLineBreak = true;
+                appendText(' ');
+            }
+        } else if (name.equals("a") && !selfClosing) {
+            mAnchorDepth = Math.max(0, mAnchorDepth + (end ? -1 : 1));
+        }
+
+        if (IGNORED_TAGS.contains(name) && !selfClosing) {
+            endBlock();
+
+            if (end) {
+                mIgnoreDepth = Math.max(0, mIgnoreDepth - 1);
+            } else {
+                mIgnoreDepth++;
+
+                if (RAW_TEXT_TAGS.contains(name)) {
+                    mRawTag = name;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a character of text to the current block, collapsing
+     * whitespace and updating the block statistics.
+     */
+    private void appendText(char c) {
+        if (mIgnoreDepth > 0) {
+            return;
+        }
+
+        if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+            endToken();
+
+            if (mText.length() >= MAX_BLOCK_LENGTH) {
+                endBlock();
+            } else {
+                mSpace = (mText.length() > 0);
+            }
+            return;
+        }
+
+        mLineBreak = false;
+
+        if (mText.length() >= (2 * MAX_BLOCK_LENGTH)) {
+            // A very long token, such as inline data.
+            endBlock();
+        }
+
+        if (mSpace) {
+            mText.append(' ');
+            mSpace = false;
+        }
+
+        mText.append(c);
+
+        if (mTokenLength == 0) {
+            mTokenInAnchor = (mAnchorDepth > 0);
+        }
+
+        mTokenLength++;
+        mTokenIsWord |= Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Updates the word and line counts at the end of a token, following
+     * boilerpipe's text density measure.
+     */
+    private void endToken() {
+        if (mTokenLength == 0) {
+            return;
+        }
+
+        if (mTokenIsWord) {
+            mWords++;
+            mLineWords++;
+            mLineLength += (mTokenLength + 1);
+
+            if (mTokenInAnchor) {
+                mAnchorWords++;
+            }
+
+            if (mLineLength > WRAP_LENGTH) {
+                mWrappedLines++;
+                mLineLength = mTokenLength;
+                mLineWords = 1;
+            }
+        }
+
+        mTokenLength = 0;
+        mTokenIsWord = false;
+    }
+
+    /**
+     * Finishes the current block and classifies the block before it.
+     */
+    private void endBlock() {
+        endToken();
+
+        if (mWords > 0) {
+            final int wrappedWords;
+            final int wrappedLines;
+
+            if (mWrappedLines == 0) {
+                wrappedWords = mWords;
+                wrappedLines = 1;
+            } else {
+                wrappedWords = (mWords - mLineWords);
+                wrappedLines = mWrappedLines;
+            }
+
+            final Block block = new Block(mText.toString(), mWords,
+                    ((float) wrappedWords / wrappedLines), ((float) mAnchorWords / mWords));
+
+            if (mCurrent != null) {
+                classify(block);
+            }
+
+            mPrevious = ((mCurrent == null) ? Block.EMPTY : mCurrent);
+            mCurrent = block;
+        }
+
+        mText.setLength(0);
+        mSpace = false;
+        mWords = 0;
+        mAnchorWords = 0;
+        mLineLength = 0;
+        mLineWords = 0;
+        mWrappedLines = 0;
+    }
+
+    /**
+     * Classifies the current block, which the specified block follows, and
+     * passes it to the listener if it is content.
+     *
+     * @param next The following block, or {@code null} at the end of the
+     *            page.
+     */
+    private void classify(Block next) {
+        final Block current = mCurrent;
+
+        if (mStopped || (current == null)) {
+            return;
+        }
+
+        if (!mKeepAll) {
+            if ((mContentWords >= MIN_WORDS_BEFORE_END) && isEndOfText(current)) {
+                mStopped = true;
+                return;
+            }
+
+            // The last block would never be content if compared with an
+            // empty block, so compare it with itself.
+            if (!isContent(mPrevious, current, (next == null) ? current : next)) {
+                return;
+            }
+        }
+
+        mContentWords += current.words;
+
+        if (!mListener.onParagraphExtracted(current.text)) {
+            mStopped = true;
+        }
+    }
+
+    /**
+     * The rules of boilerpipe's {@code DensityRulesClassifier}.
+     */
+    private static boolean isContent(Block previous, Block current, Block next) {
+        if (current.linkDensity > 0.333333f) {
+            return false;
+        }
+
+        if (previous.linkDensity > 0.555556f) {
+            return (next.textDensity > 11);
+        }
+
+        if (current.textDensity <= 9) {
+            if (next.textDensity <= 10) {
+                return (previous.textDensity > 4);
+            }
+
+            return true;
+        }
+
+        return (next.textDensity != 0);
+    }
+
+    private static boolean isEndOfText(Block block) {
+        if (block.words >= MAX_END_OF_TEXT_WORDS) {
+            return false;
+        }
+
+        final String text = block.text.toLowerCase(Locale.US);
+
+        for (String prefix : END_OF_TEXT_PREFIXES) {
+            if (text.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        for (String phrase : END_OF_TEXT_PHRASES) {
+            if (text.contains(phrase)) {
+                return true;
+            }
+        }
+
+        // For example, "12 comments".
+        return text.matches("\\d+ comments.*");
+    }
+
+    private static class Block {
+        public static final Block EMPTY = new Block("", 0, 0, 0);
+
+        public final String text;
+        public final int words;
+        public final float textDensity;
+        public final float linkDensity;
+
+        public Block(String text, int words, float textDensity, float linkDensity) {
+            this.text = text;
+            this.words = words;
+            this.textDensity = textDensity;
+            this.linkDensity = linkDensity;
+        }
+    }
+}
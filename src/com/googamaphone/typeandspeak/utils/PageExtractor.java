@@ -0,0 +1,110 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the article text from an HTML page while the page is still being
+ * read, passing each paragraph to a listener as soon as it is classified.
+ */
+public abstract class PageExtractor {
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final Pattern CHARSET_PATTERN = Pattern.compile(
+            "charset=[\"']?([-_.:a-zA-Z0-9]+)", Pattern.CASE_INSENSITIVE);
+
+    protected final ParagraphListener mListener;
+
+    protected PageExtractor(ParagraphListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Opens a connection to a page with the timeouts used for extraction.
+     * Request properties may be set before passing it to
+     * {@link #extract(URLConnection)}.
+     */
+    public static URLConnection openConnection(URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        return connection;
+    }
+
+    /**
+     * Downloads a page and extracts its article text.
+     *
+     * @param url The page to read.
+     * @return {@code true} if the whole page was read, or {@code false} if
+     *         extraction stopped early.
+     */
+    public boolean extract(URL url) throws IOException {
+        return extract(openConnection(url));
+    }
+
+    /**
+     * Reads a page from an open connection and extracts its article text.
+     *
+     * @param connection The connection returned by {@link #openConnection}.
+     * @return {@code true} if the whole page was read, or {@code false} if
+     *         extraction stopped early.
+     */
+    public boolean extract(URLConnection connection) throws IOException {
+        final InputStream in = connection.getInputStream();
+
+        try {
+            return extract(in, getCharset(connection.getContentType()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Extracts the article text from a page. The stream is read on the
+     * calling thread, and the listener is called on the same thread.
+     *
+     * @param in The page to read.
+     * @param charset The encoding of the page, or {@code null} to take it
+     *            from the page.
+     * @return {@code true} if the whole page was read, or {@code false} if
+     *         extraction stopped early.
+     */
+    public abstract boolean extract(InputStream in, String charset) throws IOException;
+
+    /**
+     * @return The charset named in a content type or meta tag, or
+     *         {@code null} if none.
+     */
+    protected static String getCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        final Matcher matcher = CHARSET_PATTERN.matcher(contentType);
+
+        if (!matcher.find()) {
+            return null;
+        }
+
+        return matcher.group(1);
+    }
+
+    public interface ParagraphListener {
+        /**
+         * Called for each paragraph of article text, in order.
+         *
+         * @param paragraph The text of the paragraph.
+         * @return {@code true} to continue, or {@code false} to stop
+         *         extraction.
+         */
+        public boolean onParagraphExtracted(String paragraph);
+    }
+}
@@ -0,0 +1,748 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * Extracts the text of a PDF document in a single pass, without reading the
+ * cross-reference table or holding the document in memory. Content streams
+ * are decoded as they're read, through fixed-size buffers, and the text
+ * shown by their operators is joined into paragraphs. Lines are separated by
+ * their vertical position, and a larger gap than the one before it starts a
+ * new paragraph.
+ * <p>
+ * Only uncompressed and {@code FlateDecode} streams are read, and pages are
+ * read in the order they're stored. Strings are decoded with
+ * {@code WinAnsiEncoding}, so text in fonts with multi-byte or custom
+ * encodings, which need the font's {@code ToUnicode} map, is skipped.
+ */
+public class PdfExtractor extends PageExtractor {
+    /** The encoding used for strings, which most simple fonts use. */
+    private static final String STRING_CHARSET = "windows-1252";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The length of object text kept to read a stream's dictionary. */
+    private static final int MAX_DICTIONARY_LENGTH = 1024;
+
+    private static final int MAX_STRING_LENGTH = 4096;
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    /** The length at which a paragraph is split at the next line. */
+    private static final int MAX_PARAGRAPH_LENGTH = 8192;
+
+    /** A line step this much larger than the previous one ends a paragraph. */
+    private static final float PARAGRAPH_GAP = 1.3f;
+
+    /** A text position adjustment in a TJ array that separates words. */
+    private static final float WORD_GAP = -200;
+
+    private static final Pattern LENGTH_PATTERN = Pattern
+            .compile("/Length\\s+(\\d+)(\\s+\\d+\\s+R)?");
+    private static final Pattern TYPE_PATTERN = Pattern.compile("/Type\\s*/(\\w+)");
+    private static final Pattern SUBTYPE_PATTERN = Pattern.compile("/Subtype\\s*/(\\w+)");
+
+    /** Dictionary keys found only in streams that aren't content. */
+    private static final String[] NON_CONTENT_KEYS = {
+            "/Length1", "/Length2", "/Length3", "/DecodeParms", "/Width", "/N "
+    };
+
+    private static final String STREAM = "stream";
+    private static final String END_STREAM = "endstream";
+    private static final String END_OBJECT = "endobj";
+
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_LITERAL = 1;
+    private static final int STATE_HEX = 2;
+    private static final int STATE_ANGLE = 3;
+    private static final int STATE_COMMENT = 4;
+    private static final int STATE_INLINE_IMAGE = 5;
+
+    // Separators between shown strings, in increasing order.
+    private static final int SEPARATOR_NONE = 0;
+    private static final int SEPARATOR_SPACE = 1;
+    private static final int SEPARATOR_LINE = 2;
+
+    private final byte[] mInput = new byte[BUFFER_SIZE];
+    private final byte[] mOutput = new byte[BUFFER_SIZE];
+    private final Inflater mInflater = new Inflater();
+
+    private InputStream mIn;
+    private int mInputStart = 0;
+    private int mInputEnd = 0;
+
+    /** The text of the current object, outside of streams. */
+    private final StringBuilder mObject = new StringBuilder();
+
+    // Content stream parsing state.
+    private int mState = STATE_NORMAL;
+    private final StringBuilder mToken = new StringBuilder(MAX_TOKEN_LENGTH);
+    private final byte[] mString = new byte[MAX_STRING_LENGTH];
+    private int mStringLength = 0;
+    private int mStringDepth = 0;
+    private boolean mEscape = false;
+    private int mOctal = 0;
+    private int mOctalDigits = 0;
+    private int mHexDigit = -1;
+    private boolean mInArray = false;
+
+    /** The last four bytes of an inline image, to find its end. */
+    private int mImageWindow = 0;
+
+    /** The last few numeric operands. */
+    private final float[] mNumbers = new float[6];
+    private int mNumberCount = 0;
+
+    /** The text shown by the next text operator. */
+    private final StringBuilder mPending = new StringBuilder();
+
+    // Text layout state.
+    private final StringBuilder mParagraph = new StringBuilder();
+    private int mSeparator = SEPARATOR_NONE;
+    private float mLeading = 0;
+    private float mLineStep = 0;
+    private boolean mHasMatrix = false;
+    private float mMatrixX = 0;
+    private float mMatrixY = 0;
+
+    private boolean mStopped = false;
+
+    public PdfExtractor(ParagraphListener listener) {
+        super(listener);
+    }
+
+    @Override
+    public boolean extract(InputStream in, String charset) throws IOException {
+        mIn = in;
+
+        try {
+            int b;
+
+            while (!mStopped && ((b = readByte()) >= 0)) {
+                readObject(b);
+            }
+        } finally {
+            mInflater.end();
+        }
+
+        return !mStopped;
+    }
+
+    /**
+     * Reads a byte outside of streams, watching for the start of a stream.
+     */
+    private void readObject(int b) throws IOException {
+        mObject.append((char) b);
+
+        if (mObject.length() > (2 * MAX_DICTIONARY_LENGTH)) {
+            mObject.delete(0, mObject.length() - MAX_DICTIONARY_LENGTH);
+        }
+
+        if ((b == 'j') && endsWith(mObject, END_OBJECT)) {
+            mObject.setLength(0);
+        } else if ((b == 'm') && endsWith(mObject, STREAM) && !endsWith(mObject, END_STREAM)) {
+            skipEndOfLine();
+            readStream(mObject.toString());
+            mObject.setLength(0);
+        }
+    }
+
+    /**
+     * Reads a stream up to and including its {@code endstream} keyword.
+     *
+     * @param dictionary The object text before the stream, which ends with
+     *            its dictionary.
+     */
+    private void readStream(String dictionary) throws IOException {
+        final Matcher lengthMatcher = LENGTH_PATTERN.matcher(dictionary);
+        int length = -1;
+
+        if (lengthMatcher.find() && (lengthMatcher.group(2) == null)) {
+            try {
+                length = Integer.parseInt(lengthMatcher.group(1));
+            } catch (final NumberFormatException e) {
+                // Find the end of the stream instead.
+            }
+        }
+
+        resetContent();
+
+        if (!isContent(dictionary)) {
+            readRaw(length, false);
+        } else if (!dictionary.contains("/Filter")) {
+            readRaw(length, true);
+        } else if (dictionary.contains("/FlateDecode") && (count(dictionary, "Decode") == 1)) {
+            inflate(length);
+        } else {
+            readRaw(length, false);
+        }
+
+        // Text isn't continued across streams, which usually hold a page.
+        endParagraph();
+
+        findEndStream(false);
+    }
+
+    private static boolean isContent(String dictionary) {
+        for (String key : NON_CONTENT_KEYS) {
+            if (dictionary.contains(key)) {
+                return false;
+            }
+        }
+
+        final Matcher typeMatcher = TYPE_PATTERN.matcher(dictionary);
+
+        if (typeMatcher.find() && !typeMatcher.group(1).equals("XObject")) {
+            return false;
+        }
+
+        final Matcher subtypeMatcher = SUBTYPE_PATTERN.matcher(dictionary);
+
+        if (subtypeMatcher.find() && !subtypeMatcher.group(1).equals("Form")) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the bytes of a stream as they're stored, parsing them as content
+     * if requested.
+     *
+     * @param length The length of the stream, or {@code -1} to read up to
+     *            the {@code endstream} keyword.
+     */
+    private void readRaw(int length, boolean parse) throws IOException {
+        if (length < 0) {
+            findEndStream(parse);
+            return;
+        }
+
+        while ((length > 0) && !mStopped && ((mInputStart < mInputEnd) || fill())) {
+            final int count = Math.min(length, mInputEnd - mInputStart);
+
+            if (parse) {
+                for (int i = 0; (i < count) && !mStopped; i++) {
+                    parse(mInput[mInputStart + i] & 0xFF);
+                }
+            }
+
+            mInputStart += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Decompresses a stream and parses its content.
+     *
+     * @param length The length of the compressed stream, or {@code -1} if
+     *            unknown.
+     */
+    private void inflate(int length) throws IOException {
+        mInflater.reset();
+
+        try {
+            while (!mInflater.finished() && !mStopped) {
+                if (mInflater.needsInput()) {
+                    if ((length == 0) || ((mInputStart == mInputEnd) && !fill())) {
+                        break;
+                    }
+
+                    int count = (mInputEnd - mInputStart);
+
+                    if (length > 0) {
+                        count = Math.min(count, length);
+                        length -= count;
+                    }
+
+                    mInflater.setInput(mInput, mInputStart, count);
+                    mInputStart += count;
+                }
+
+                final int count = mInflater.inflate(mOutput);
+
+                for (int i = 0; (i < count) && !mStopped; i++) {
+                    parse(mOutput[i] & 0xFF);
+                }
+
+                if ((count == 0) && mInflater.needsDictionary()) {
+                    break;
+                }
+            }
+        } catch (final DataFormatException e) {
+            // Damaged or encrypted, so skip the rest.
+            LogUtils.log(this, Log.WARN, "Failed to inflate stream: %s", e.toString());
+        }
+
+        // Return the input that follows the compressed data.
+        mInputStart -= mInflater.getRemaining();
+    }
+
+    /**
+     * Reads up to and including the next {@code endstream} keyword.
+     */
+    private void findEndStream(boolean parse) throws IOException {
+        int matched = 0;
+        int b;
+
+        while (!mStopped && ((b = readByte()) >= 0)) {
+            if (parse) {
+                parse(b);
+            }
+
+            if (b == END_STREAM.charAt(matched)) {
+                matched++;
+
+                if (matched == END_STREAM.length()) {
+                    return;
+                }
+            } else {
+                matched = ((b == END_STREAM.charAt(0)) ? 1 : 0);
+            }
+        }
+    }
+
+    private void skipEndOfLine() throws IOException {
+        int b = readByte();
+
+        if (b == '\r') {
+            b = readByte();
+        }
+
+        if ((b >= 0) && (b != '\n')) {
+            // Not a line feed, so it's part of the stream.
+            mInputStart--;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if ((mInputStart == mInputEnd) && !fill()) {
+            return -1;
+        }
+
+        return (mInput[mInputStart++] & 0xFF);
+    }
+
+    private boolean fill() throws IOException {
+        final int count = mIn.read(mInput, 0, mInput.length);
+
+        if (count <= 0) {
+            return false;
+        }
+
+        mInputStart = 0;
+        mInputEnd = count;
+
+        return true;
+    }
+
+    private void resetContent() {
+        mState = STATE_NORMAL;
+        mToken.setLength(0);
+        mStringLength = 0;
+        mInArray = false;
+        mNumberCount = 0;
+        mPending.setLength(0);
+        mSeparator = SEPARATOR_NONE;
+        mLeading = 0;
+        mLineStep = 0;
+        mHasMatrix = false;
+    }
+
+    /**
+     * Parses a byte of a content stream.
+     */
+    private void parse(int b) throws IOException {
+        switch (mState) {
+            case STATE_LITERAL:
+                parseLiteral(b);
+                return;
+            case STATE_HEX:
+                parseHex(b);
+                return;
+            case STATE_ANGLE:
+                if (b == '<') {
+                    // The start of a dictionary.
+                    mState = STATE_NORMAL;
+                } else {
+                    mState = STATE_HEX;
+                    mStringLength = 0;
+                    mHexDigit = -1;
+                    parseHex(b);
+                }
+                return;
+            case STATE_COMMENT:
+                if ((b == '\n') || (b == '\r')) {
+                    mState = STATE_NORMAL;
+                }
+                return;
+            case STATE_INLINE_IMAGE:
+                mImageWindow = ((mImageWindow << 8) | b);
+
+                // The image data ends at "EI" between whitespace.
+                if (((mImageWindow & 0x00FFFF00) == 0x00454900) && isWhitespace(b)
+                        && isWhitespace(mImageWindow >>> 24)) {
+                    mState = STATE_NORMAL;
+                }
+                return;
+        }
+
+        if (isWhitespace(b)) {
+            endToken();
+            return;
+        }
+
+        switch (b) {
+            case '(':
+                endToken();
+                mState = STATE_LITERAL;
+                mStringLength = 0;
+                mStringDepth = 1;
+                mEscape = false;
+                mOctalDigits = 0;
+                return;
+            case '<':
+                endToken();
+                mState = STATE_ANGLE;
+                return;
+            case '[':
+                endToken();
+                mInArray = true;
+                return;
+            case ']':
+                endToken();
+                mInArray = false;
+                return;
+            case '%':
+                endToken();
+                mState = STATE_COMMENT;
+                return;
+            case '/':
+                endToken();
+                mToken.append('/');
+                return;
+            case ')':
+            case '>':
+            case '{':
+            case '}':
+                endToken();
+                return;
+        }
+
+        if (mToken.length() < MAX_TOKEN_LENGTH) {
+            mToken.append((char) b);
+        }
+    }
+
+    private void parseLiteral(int b) throws IOException {
+        if (mOctalDigits > 0) {
+            if ((b >= '0') && (b <= '7') && (mOctalDigits < 3)) {
+                mOctal = ((mOctal * 8) + (b - '0'));
+                mOctalDigits++;
+                return;
+            }
+
+            appendStringByte(mOctal);
+            mOctalDigits = 0;
+        }
+
+        if (mEscape) {
+            mEscape = false;
+
+            switch (b) {
+                case 'n':
+                    appendStringByte('\n');
+                    break;
+                case 'r':
+                    appendStringByte('\r');
+                    break;
+                case 't':
+                    appendStringByte('\t');
+                    break;
+                case 'b':
+                    appendStringByte('\b');
+                    break;
+                case 'f':
+                    appendStringByte('\f');
+                    break;
+                case '\r':
+                case '\n':
+                    // A line continuation.
+                    break;
+                default:
+                    if ((b >= '0') && (b <= '7')) {
+                        mOctal = (b - '0');
+                        mOctalDigits = 1;
+                    } else {
+                        appendStringByte(b);
+                    }
+                    break;
+            }
+            return;
+        }
+
+        if (b == '\\') {
+            mEscape = true;
+        } else if (b == '(') {
+            mStringDepth++;
+            appendStringByte(b);
+        } else if ((b == ')') && (--mStringDepth == 0)) {
+            mState = STATE_NORMAL;
+            endString();
+        } else {
+            appendStringByte(b);
+        }
+    }
+
+    private void parseHex(int b) throws IOException {
+        if (b == '>') {
+            if (mHexDigit >= 0) {
+                appendStringByte(mHexDigit << 4);
+            }
+
+            mState = STATE_NORMAL;
+            endString();
+            return;
+        }
+
+        final int digit = Character.digit(b, 16);
+
+        if (digit < 0) {
+            return;
+        }
+
+        if (mHexDigit < 0) {
+            mHexDigit = digit;
+        } else {
+            appendStringByte((mHexDigit << 4) | digit);
+            mHexDigit = -1;
+        }
+    }
+
+    private void appendStringByte(int b) {
+        if (mStringLength < mString.length) {
+            mString[mStringLength++] = (byte) b;
+        }
+    }
+
+    /**
+     * Decodes a complete string operand and adds it to the pending text.
+     */
+    private void endString() throws IOException {
+        int length = 0;
+
+        for (int i = 0; i < mStringLength; i++) {
+            if ((mString[i] & 0xFF) >= 0x20) {
+                mString[length++] = mString[i];
+            }
+        }
+
+        // Multi-byte encodings of Latin text are about half control
+        // characters.
+        if ((length > 0) && ((length * 4) >= (mStringLength * 3))) {
+            mPending.append(new String(mString, 0, length, STRING_CHARSET));
+        }
+
+        mStringLength = 0;
+    }
+
+    private void endToken() {
+        if (mToken.length() == 0) {
+            return;
+        }
+
+        final char first = mToken.charAt(0);
+
+        if (first == '/') {
+            // A name, which no text operator uses.
+        } else if (Character.isDigit(first) || (first == '-') || (first == '+')
+                || (first == '.')) {
+            try {
+                final float number = Float.parseFloat(mToken.toString());
+
+                if (mInArray) {
+                    if ((number < WORD_GAP) && (mPending.length() > 0)) {
+                        mPending.append(' ');
+                    }
+                } else {
+                    addNumber(number);
+                }
+            } catch (final NumberFormatException e) {
+                // Not an operand we use.
+            }
+        } else {
+            onOperator(mToken.toString());
+        }
+
+        mToken.setLength(0);
+    }
+
+    private void addNumber(float number) {
+        if (mNumberCount == mNumbers.length) {
+            System.arraycopy(mNumbers, 1, mNumbers, 0, mNumbers.length - 1);
+            mNumberCount--;
+        }
+
+        mNumbers[mNumberCount++] = number;
+    }
+
+    /**
+     * @return The numeric operand at the specified position from the end,
+     *         or {@code 0} if there isn't one.
+     */
+    private float getNumber(int fromEnd) {
+        final int index = (mNumberCount - 1 - fromEnd);
+
+        return ((index >= 0) ? mNumbers[index] : 0);
+    }
+
+    private void onOperator(String operator) {
+        if (operator.equals("Tj") || operator.equals("TJ")) {
+            show();
+        } else if (operator.equals("'") || operator.equals("\"")) {
+            moveLine(-mLeading, true);
+            show();
+        } else if (operator.equals("Td")) {
+            moveLine(getNumber(0), (getNumber(1) != 0));
+        } else if (operator.equals("TD")) {
+            mLeading = -getNumber(0);
+            moveLine(getNumber(0), (getNumber(1) != 0));
+        } else if (operator.equals("T*")) {
+            moveLine(-mLeading, true);
+        } else if (operator.equals("TL")) {
+            mLeading = getNumber(0);
+        } else if (operator.equals("Tm")) {
+            final float x = getNumber(1);
+            final float y = getNumber(0);
+
+            if (mHasMatrix) {
+                moveLine(y - mMatrixY, (x != mMatrixX));
+            }
+
+            mHasMatrix = true;
+            mMatrixX = x;
+            mMatrixY = y;
+        } else if (operator.equals("ID")) {
+            mState = STATE_INLINE_IMAGE;
+            mImageWindow = 0;
+        }
+
+        mNumberCount = 0;
+        mPending.setLength(0);
+        mInArray = false;
+    }
+
+    /**
+     * Handles a move of the text position.
+     *
+     * @param dy The vertical distance, which is negative for the next line.
+     * @param newLine Whether to separate the text even if it moved
+     *            horizontally.
+     */
+    private void moveLine(float dy, boolean newLine) {
+        if (dy < 0) {
+            final float step = -dy;
+
+            if ((mLineStep > 0) && (step > (mLineStep * PARAGRAPH_GAP))) {
+                endParagraph();
+            } else if (mParagraph.length() >= MAX_PARAGRAPH_LENGTH) {
+                endParagraph();
+            } else {
+                mSeparator = SEPARATOR_LINE;
+            }
+
+            mLineStep = step;
+        } else if ((dy > 0) || newLine) {
+            // Moving up starts a new column or a superscript.
+            mSeparator = Math.max(mSeparator, SEPARATOR_SPACE);
+        }
+    }
+
+    /**
+     * Adds the pending text to the paragraph.
+     */
+    private void show() {
+        if (mPending.length() == 0) {
+            return;
+        }
+
+        final int length = mParagraph.length();
+
+        if ((length > 0) && (mSeparator != SEPARATOR_NONE)) {
+            final char last = mParagraph.charAt(length - 1);
+
+            if ((mSeparator == SEPARATOR_LINE) && (last == '-') && (length > 1)
+                    && Character.isLowerCase(mParagraph.charAt(length - 2))
+                    && Character.isLowerCase(mPending.charAt(0))) {
+                // Join a hyphenated word.
+                mParagraph.setLength(length - 1);
+            } else if (last != ' ') {
+                mParagraph.append(' ');
+            }
+        }
+
+        for (int i = 0; i < mPending.length(); i++) {
+            final char c = mPending.charAt(i);
+
+            if ((c != ' ') || ((mParagraph.length() > 0)
+                    && (mParagraph.charAt(mParagraph.length() - 1) != ' '))) {
+                mParagraph.append(c);
+            }
+        }
+
+        mSeparator = SEPARATOR_NONE;
+    }
+
+    private void endParagraph() {
+        final String paragraph = mParagraph.toString().trim();
+
+        mParagraph.setLength(0);
+        mSeparator = SEPARATOR_NONE;
+
+        if ((paragraph.length() > 0) && !mStopped) {
+            if (!mListener.onParagraphExtracted(paragraph)) {
+                mStopped = true;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(int b) {
+        return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t') || (b == '\f')
+                || (b == 0);
+    }
+
+    private static boolean endsWith(StringBuilder builder, String suffix) {
+        final int start = (builder.length() - suffix.length());
+
+        if (start < 0) {
+            return false;
+        }
+
+        for (int i = 0; i < suffix.length(); i++) {
+            if (builder.charAt(start + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int count(String text, String substring) {
+        int count = 0;
+        int index = 0;
+
+        while ((index = text.indexOf(substring, index)) >= 0) {
+            count++;
+            index += substring.length();
+        }
+
+        return count;
+    }
+}
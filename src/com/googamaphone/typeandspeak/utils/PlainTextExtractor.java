@@ -0,0 +1,120 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a plain text document into paragraphs as it is read, through a
+ * fixed-size buffer. Blank lines separate paragraphs. Lines that look
+ * hard-wrapped are joined, and other line breaks end the paragraph.
+ */
+public class PlainTextExtractor extends PageExtractor {
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /** The length at which a paragraph is split at the next whitespace. */
+    private static final int MAX_PARAGRAPH_LENGTH = 8192;
+
+    // Lines within this range of lengths are assumed to be hard-wrapped.
+    private static final int MIN_WRAPPED_LENGTH = 40;
+    private static final int MAX_WRAPPED_LENGTH = 80;
+
+    private static final char BYTE_ORDER_MARK = '\ufeff';
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private final StringBuilder mParagraph = new StringBuilder();
+
+    /** The length of the current line, ignoring leading whitespace. */
+    private int mLineLength = 0;
+
+    /** Whether whitespace was read since the last character of text. */
+    private boolean mSpace = false;
+
+    private boolean mStopped = false;
+
+    public PlainTextExtractor(ParagraphListener listener) {
+        super(listener);
+    }
+
+    @Override
+    public boolean extract(InputStream in, String charset) throws IOException {
+        if ((charset == null) || !Charset.isSupported(charset)) {
+            charset = DEFAULT_CHARSET;
+        }
+
+        final Reader reader = new InputStreamReader(in, charset);
+        int count;
+
+        while (!mStopped && ((count = reader.read(mBuffer)) >= 0)) {
+            for (int i = 0; (i < count) && !mStopped; i++) {
+                read(mBuffer[i]);
+            }
+        }
+
+        if (!mStopped) {
+            endParagraph();
+        }
+
+        return !mStopped;
+    }
+
+    private void read(char c) {
+        if (c == '\n') {
+            endLine();
+        } else if ((c == '\r') || (c == BYTE_ORDER_MARK)) {
+            // Ignore byte order marks, and carriage returns, which precede
+            // line feeds.
+        } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+            mSpace = (mParagraph.length() > 0);
+
+            if (mParagraph.length() >= MAX_PARAGRAPH_LENGTH) {
+                endParagraph();
+            }
+        } else if (!Character.isISOControl(c)) {
+            if (mParagraph.length() >= (2 * MAX_PARAGRAPH_LENGTH)) {
+                // A very long word, such as encoded data.
+                endParagraph();
+            }
+
+            if (mSpace) {
+                mParagraph.append(' ');
+                mLineLength++;
+                mSpace = false;
+            }
+
+            mParagraph.append(c);
+            mLineLength++;
+        }
+    }
+
+    private void endLine() {
+        if (mLineLength == 0) {
+            // A blank line.
+            endParagraph();
+        } else if ((mLineLength < MIN_WRAPPED_LENGTH) || (mLineLength > MAX_WRAPPED_LENGTH)) {
+            // A heading, or a paragraph written on a single line.
+            endParagraph();
+        } else {
+            mSpace = true;
+        }
+
+        mLineLength = 0;
+    }
+
+    private void endParagraph() {
+        if (mParagraph.length() > 0) {
+            if (!mListener.onParagraphExtracted(mParagraph.toString())) {
+                mStopped = true;
+            }
+        }
+
+        mParagraph.setLength(0);
+        mLineLength = 0;
+        mSpace = false;
+    }
+}
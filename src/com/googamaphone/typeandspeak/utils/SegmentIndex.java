@@ -0,0 +1,304 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+/**
+ * An index of the non-whitespace units in a block of text. Units are stored
+ * as parallel arrays of start and end offsets, so moving between units or
+ * finding the unit under a cursor never touches the underlying text.
+ * <p>
+ * The arrays are kept as a gap buffer. Units before the gap store absolute
+ * offsets, while units after the gap store offsets relative to the end of the
+ * text. An edit moves the gap to the damaged units, re-segments only the text
+ * around the edit, and leaves all later units untouched.
+ * <p>
+ * An index may be built on any thread, provided that the text and segmenter
+ * are not modified by another thread during construction. Edits must
+ * be applied on a single thread.
+ * <p>
+ * An index may also be built incrementally by appending units in text order.
+ * Until the last units are appended, the index only covers the text up to
+ * {@link #getTextLength()}.
+ */
+public class SegmentIndex {
+    /** The initial capacity of the offset arrays. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] mStarts;
+    private int[] mEnds;
+
+    /** The index of the first slot in the gap. */
+    private int mGapStart;
+
+    /** The number of slots in the gap. */
+    private int mGapLength;
+
+    /** The length of the indexed text, see {@link #getTextLength()}. */
+    private int mTextLength;
+
+    /**
+     * Creates an index that contains no units.
+     */
+    public SegmentIndex() {
+        mStarts = new int[INITIAL_CAPACITY];
+        mEnds = new int[INITIAL_CAPACITY];
+        mGapStart = 0;
+        mGapLength = INITIAL_CAPACITY;
+        mTextLength = 0;
+    }
+
+    /**
+     * Builds an index of the non-whitespace units in the specified text.
+     *
+     * @param text The text to index.
+     * @param segmenter The segmenter to use.
+     * @return An index of the units in the text.
+     */
+    public static SegmentIndex build(CharSequence text, Segmenter segmenter) {
+        final SegmentIndex index = new SegmentIndex();
+
+        if ((text == null) || (text.length() == 0)) {
+            return index;
+        }
+
+        index.mTextLength = text.length();
+
+        segmenter.setText(text, 0, text.length());
+        index.insertUnits(text, segmenter);
+
+        return index;
+    }
+
+    /**
+     * @return The number of units in the index.
+     */
+    public int size() {
+        return (mStarts.length - mGapLength);
+    }
+
+    /**
+     * @return The length of the indexed text. While an index is being built
+     *         incrementally, this is the offset up to which units are known.
+     */
+    public int getTextLength() {
+        return mTextLength;
+    }
+
+    /**
+     * @param index The index of a unit.
+     * @return The start offset of the unit, inclusive.
+     */
+    public int getStart(int index) {
+        if (index < mGapStart) {
+            return mStarts[index];
+        }
+
+        return (mStarts[index + mGapLength] + mTextLength);
+    }
+
+    /**
+     * @param index The index of a unit.
+     * @return The end offset of the unit, exclusive.
+     */
+    public int getEnd(int index) {
+        if (index < mGapStart) {
+            return mEnds[index];
+        }
+
+        return (mEnds[index + mGapLength] + mTextLength);
+    }
+
+    /**
+     * Returns the index of the unit that contains the specified offset. If the
+     * offset falls between units, returns the index of the following unit.
+     *
+     * @param offset An offset within the text.
+     * @return The index of the unit at or after {@code offset}, or
+     *         {@link #size()} if there are no units after {@code offset}.
+     */
+    public int indexAtOrAfter(int offset) {
+        int low = 0;
+        int high = size();
+
+        // Find the first unit whose end is after the offset.
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+
+            if (getEnd(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Updates the index after a block of text has been replaced. Only the
+     * units surrounding the edit are re-segmented, so the cost is proportional
+     * to the size of the edit and its distance from the previous edit. For
+     * segmenters that merge units, the surrounding paragraphs are also
+     * re-segmented, see {@link Segmenter#isStableBoundary}.
+     *
+     * @param text The text after the edit.
+     * @param start The offset at which the edit started.
+     * @param before The number of characters that were replaced.
+     * @param count The number of characters that replaced them.
+     * @param segmenter The segmenter to use for re-segmenting.
+     */
+    public void applyEdit(CharSequence text, int start, int before, int count,
+            Segmenter segmenter) {
+        final int size = size();
+        final int delta = (count - before);
+
+        // Boundaries may move on either side of the edit, so also replace the
+        // unit before and the unit after the damaged units.
+        int first = Math.max(0, indexAtOrAfter(start) - 1);
+        int last = Math.min(size, indexAtOrAfter(start + before) + 2);
+
+        // Widen the region until segmentation can restart at both ends. The
+        // text before the edit is unchanged, while later units are still at
+        // their offsets before the edit.
+        while ((first > 0) && !segmenter.isStableBoundary(text, getStart(first))) {
+            first--;
+        }
+
+        while ((last < size) && !segmenter.isStableBoundary(text, getStart(last) + delta)) {
+            last++;
+        }
+
+        // Segmentation of the whole text starts at zero, so an edit within the
+        // first unit must too, even if the unit starts after whitespace.
+        final int regionStart = (first > 0) ? getStart(first) : 0;
+        final int oldRegionEnd = (last < size) ? getStart(last) : mTextLength;
+        final int newRegionEnd = oldRegionEnd + delta;
+
+        // Remove the damaged units by extending the gap over them. Units after
+        // the gap are relative to the end of the text, so updating the length
+        // shifts all of them at once.
+        moveGapTo(first);
+        mGapLength += (last - first);
+        mTextLength += delta;
+
+        segmenter.setText(text, regionStart, newRegionEnd);
+        insertUnits(text, segmenter);
+    }
+
+    /**
+     * Appends units to the end of the index and extends the indexed text.
+     *
+     * @param starts The start offsets of the units, in text order.
+     * @param ends The end offsets of the units.
+     * @param count The number of units to append.
+     * @param textLength The length of the indexed text after appending, which
+     *            must not be less than the end of the last unit.
+     */
+    public void appendUnits(int[] starts, int[] ends, int count, int textLength) {
+        moveGapTo(size());
+
+        for (int i = 0; i < count; i++) {
+            insertUnit(starts[i], ends[i]);
+        }
+
+        mTextLength = textLength;
+    }
+
+    /**
+     * Removes all units starting at the specified index and shortens the
+     * indexed text so that more units can be appended.
+     *
+     * @param index The index of the first unit to remove.
+     * @param textLength The length of the indexed text after truncating, which
+     *            must not be less than the end of the last remaining unit.
+     */
+    public void truncate(int index, int textLength) {
+        moveGapTo(index);
+
+        mGapLength = (mStarts.length - index);
+        mTextLength = textLength;
+    }
+
+    /**
+     * Inserts the non-whitespace units returned by a segmenter at the current
+     * gap position.
+     *
+     * @param text The text being indexed.
+     * @param segmenter A segmenter that has been set to a range of
+     *            {@code text}.
+     */
+    private void insertUnits(CharSequence text, Segmenter segmenter) {
+        int start = segmenter.first();
+        int end = segmenter.next();
+
+        while (end != Segmenter.DONE) {
+            if (!isWhitespace(text, start, end)) {
+                insertUnit(start, end);
+            }
+
+            start = end;
+            end = segmenter.next();
+        }
+    }
+
+    private void insertUnit(int start, int end) {
+        if (mGapLength == 0) {
+            growGap();
+        }
+
+        mStarts[mGapStart] = start;
+        mEnds[mGapStart] = end;
+        mGapStart++;
+        mGapLength--;
+    }
+
+    /**
+     * Moves the gap so that it starts at the specified unit index, converting
+     * the offsets of any units that move across it.
+     */
+    private void moveGapTo(int index) {
+        if (index < mGapStart) {
+            for (int i = (mGapStart - 1); i >= index; i--) {
+                mStarts[i + mGapLength] = mStarts[i] - mTextLength;
+                mEnds[i + mGapLength] = mEnds[i] - mTextLength;
+            }
+        } else if (index > mGapStart) {
+            for (int i = mGapStart; i < index; i++) {
+                mStarts[i] = mStarts[i + mGapLength] + mTextLength;
+                mEnds[i] = mEnds[i + mGapLength] + mTextLength;
+            }
+        }
+
+        mGapStart = index;
+    }
+
+    private void growGap() {
+        final int capacity = mStarts.length;
+        final int newCapacity = Math.max(INITIAL_CAPACITY, capacity * 2);
+        final int afterGap = capacity - (mGapStart + mGapLength);
+        final int[] starts = new int[newCapacity];
+        final int[] ends = new int[newCapacity];
+
+        System.arraycopy(mStarts, 0, starts, 0, mGapStart);
+        System.arraycopy(mEnds, 0, ends, 0, mGapStart);
+        System.arraycopy(mStarts, capacity - afterGap, starts, newCapacity - afterGap, afterGap);
+        System.arraycopy(mEnds, capacity - afterGap, ends, newCapacity - afterGap, afterGap);
+
+        mStarts = starts;
+        mEnds = ends;
+        mGapLength = newCapacity - afterGap - mGapStart;
+    }
+
+    /**
+     * Returns whether the specified range contains only whitespace, using the
+     * same definition as {@link android.text.TextUtils#getTrimmedLength}.
+     */
+    static boolean isWhitespace(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
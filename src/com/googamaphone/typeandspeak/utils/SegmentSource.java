@@ -0,0 +1,43 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.IOException;
+
+/**
+ * Supplies text to a synthesizer one segment at a time, so that the full
+ * text never needs to be passed to the engine at once.
+ */
+public interface SegmentSource {
+    /**
+     * @return The next segment of text, or {@code null} if there are no more
+     *         segments.
+     * @throws IOException If the text can't be read.
+     */
+    public String nextSegment() throws IOException;
+
+    /**
+     * @return The total number of characters in the text, or {@code -1} if
+     *         the length isn't known in advance.
+     */
+    public int getLength();
+
+    /**
+     * @return The number of characters read so far, including any skipped
+     *         between segments.
+     */
+    public int getPosition();
+
+    /**
+     * Continues from a position previously returned by {@link #getPosition},
+     * so that the next segment starts there.
+     *
+     * @param position The position to continue from.
+     * @throws IOException If the text can't be read.
+     */
+    public void seek(int position) throws IOException;
+
+    /**
+     * Releases any resources held by this source.
+     */
+    public void close();
+}
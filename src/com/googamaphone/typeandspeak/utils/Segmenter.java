@@ -0,0 +1,267 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.text.BreakIterator;
+import java.util.Locale;
+
+/**
+ * Splits text into units for speaking. A segmenter returns successive unit
+ * boundaries within a range of text, similar to a {@link BreakIterator}, except
+ * that all offsets are relative to the start of the text rather than to the
+ * start of the range. Units may consist entirely of whitespace.
+ * <p>
+ * Segmenters are not thread-safe. Use {@link #copy()} to obtain an instance
+ * for use on another thread.
+ */
+public abstract class Segmenter {
+    /** Returned by {@link #next()} when there are no more boundaries. */
+    public static final int DONE = BreakIterator.DONE;
+
+    /** Splits text into words, keeping punctuation with the preceding word. */
+    public static final int GRANULARITY_WORD = 0;
+
+    /** Splits text into sentences. */
+    public static final int GRANULARITY_SENTENCE = 1;
+
+    /** Splits text into paragraphs separated by line breaks. */
+    public static final int GRANULARITY_PARAGRAPH = 2;
+
+    /**
+     * Splits text into sentences, then merges short sentences and splits long
+     * ones to keep units within a target length. See {@link AdaptiveSegmenter}.
+     */
+    public static final int GRANULARITY_ADAPTIVE = 3;
+
+    /**
+     * Returns a segmenter for the specified granularity.
+     *
+     * @param granularity One of the {@code GRANULARITY} constants.
+     * @param locale The locale of the text.
+     * @return A new segmenter.
+     */
+    public static Segmenter getInstance(int granularity, Locale locale) {
+        switch (granularity) {
+            case GRANULARITY_WORD:
+                return new WordSegmenter(BreakIterator.getWordInstance(locale));
+            case GRANULARITY_SENTENCE:
+                return new BreakIteratorSegmenter(BreakIterator.getSentenceInstance(locale));
+            case GRANULARITY_PARAGRAPH:
+                return new ParagraphSegmenter();
+            case GRANULARITY_ADAPTIVE:
+                return new AdaptiveSegmenter(locale);
+        }
+
+        throw new IllegalArgumentException("Unknown granularity: " + granularity);
+    }
+
+    /**
+     * Sets the text to segment and resets the current boundary to the start
+     * of the range.
+     *
+     * @param text The text to segment.
+     * @param start The start of the range to segment, inclusive. This is
+     *            always treated as a boundary.
+     * @param end The end of the range to segment, exclusive.
+     */
+    public abstract void setText(CharSequence text, int start, int end);
+
+    /**
+     * @return The first boundary, which is the start of the range.
+     */
+    public abstract int first();
+
+    /**
+     * Advances to the next boundary. The last boundary is the end of the
+     * range.
+     *
+     * @return The next boundary, or {@link #DONE} if the end of the range has
+     *         already been returned.
+     */
+    public abstract int next();
+
+    /**
+     * @return A new segmenter with the same configuration and no text.
+     */
+    public abstract Segmenter copy();
+
+    /**
+     * Returns whether segmentation may restart at the specified boundary
+     * without changing the units on either side of it. Most segmenters only
+     * look at the text next to a boundary, so any boundary is stable, but
+     * segmenters that merge units may only restart at certain boundaries.
+     *
+     * @param text The segmented text.
+     * @param offset The start offset of a unit.
+     * @return {@code true} if units before and after the boundary are
+     *         independent of each other.
+     */
+    public boolean isStableBoundary(CharSequence text, int offset) {
+        return true;
+    }
+
+    /**
+     * Segments text using a {@link BreakIterator}. Strings are passed to the
+     * break iterator directly, and other text is copied into a
+     * {@link CharArrayIterator}. Ranges within strings, and ranges too long to
+     * copy, are read in place through a {@link CharSequenceIterator}.
+     */
+    static class BreakIteratorSegmenter extends Segmenter {
+        /** The longest range of text that is copied before segmenting. */
+        private static final int MAX_COPY_LENGTH = (64 * 1024);
+
+        private final CharArrayIterator mCharArrayIterator = new CharArrayIterator();
+        private final CharSequenceIterator mCharSequenceIterator = new CharSequenceIterator(null);
+        private final BreakIterator mIterator;
+
+        private int mOffset;
+
+        public BreakIteratorSegmenter(BreakIterator iterator) {
+            mIterator = iterator;
+        }
+
+        @Override
+        public void setText(CharSequence text, int start, int end) {
+            if ((text instanceof String) && (start == 0) && (end == text.length())) {
+                mIterator.setText((String) text);
+            } else if ((text instanceof String) || ((end - start) > MAX_COPY_LENGTH)) {
+                // Characters in strings are cheap to read in place, and a copy
+                // of a long range would be kept until the next call.
+                mCharSequenceIterator.setCharSequence(text, start, end);
+                mIterator.setText(mCharSequenceIterator);
+            } else {
+                mCharArrayIterator.setText(text, start, end);
+                mIterator.setText(mCharArrayIterator);
+            }
+
+            mOffset = start;
+        }
+
+        @Override
+        public int first() {
+            return (mOffset + mIterator.first());
+        }
+
+        @Override
+        public int next() {
+            final int boundary = mIterator.next();
+
+            if (boundary == BreakIterator.DONE) {
+                return DONE;
+            }
+
+            return (mOffset + boundary);
+        }
+
+        @Override
+        public Segmenter copy() {
+            return new BreakIteratorSegmenter((BreakIterator) mIterator.clone());
+        }
+    }
+
+    /**
+     * Segments text into words. Word boundaries are only kept at the start of
+     * a word, so punctuation and whitespace stay with the preceding word
+     * instead of being spoken as separate units.
+     */
+    private static class WordSegmenter extends BreakIteratorSegmenter {
+        private final BreakIterator mWordIterator;
+
+        private CharSequence mText;
+        private int mEnd;
+
+        public WordSegmenter(BreakIterator iterator) {
+            super(iterator);
+
+            mWordIterator = iterator;
+        }
+
+        @Override
+        public void setText(CharSequence text, int start, int end) {
+            super.setText(text, start, end);
+
+            mText = text;
+            mEnd = end;
+        }
+
+        @Override
+        public int next() {
+            int boundary = super.next();
+
+            while ((boundary != DONE) && (boundary < mEnd) && !isWordStart(boundary)) {
+                boundary = super.next();
+            }
+
+            return boundary;
+        }
+
+        private boolean isWordStart(int offset) {
+            final char prev = mText.charAt(offset - 1);
+            final char curr = mText.charAt(offset);
+
+            if (Character.isWhitespace(prev)) {
+                return !Character.isWhitespace(curr);
+            }
+
+            // Keep boundaries between adjacent words, which occur in scripts
+            // that aren't separated by spaces.
+            return (Character.isLetterOrDigit(prev) && Character.isLetterOrDigit(curr));
+        }
+
+        @Override
+        public Segmenter copy() {
+            return new WordSegmenter((BreakIterator) mWordIterator.clone());
+        }
+    }
+
+    /**
+     * Segments text into paragraphs. Each paragraph includes the line breaks
+     * and whitespace that follow it.
+     */
+    private static class ParagraphSegmenter extends Segmenter {
+        private CharSequence mText;
+        private int mStart;
+        private int mEnd;
+        private int mPosition;
+
+        @Override
+        public void setText(CharSequence text, int start, int end) {
+            mText = text;
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        @Override
+        public int first() {
+            mPosition = mStart;
+
+            return mStart;
+        }
+
+        @Override
+        public int next() {
+            if (mPosition >= mEnd) {
+                return DONE;
+            }
+
+            int offset = mPosition;
+
+            while ((offset < mEnd) && (mText.charAt(offset) != '\n')) {
+                offset++;
+            }
+
+            while ((offset < mEnd) && Character.isWhitespace(mText.charAt(offset))) {
+                offset++;
+            }
+
+            mPosition = offset;
+
+            return offset;
+        }
+
+        @Override
+        public Segmenter copy() {
+            return new ParagraphSegmenter();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.Locale;
+
+import android.os.Build;
+
+/**
+ * Wraps units of text in SSML that carries their prosody and the pause that
+ * follows them. Engines that parse SSML then speak paragraph and line breaks
+ * as explicit pauses of known length, instead of guessing them from the
+ * whitespace in each utterance.
+ * <p>
+ * Engines that don't parse SSML would speak the markup aloud, so callers
+ * should check {@link #isSupported} and send plain text to other engines.
+ */
+public class SsmlBuilder {
+    /** The default pause after a paragraph, in milliseconds. */
+    public static final int DEFAULT_PARAGRAPH_PAUSE = 600;
+
+    /** The default pause after a line break, in milliseconds. */
+    public static final int DEFAULT_LINE_PAUSE = 250;
+
+    /**
+     * The most characters the markup adds around a unit, not counting
+     * escaped characters. Callers should shorten units by this much, and
+     * measure characters with {@link #getEscapedLength}, to stay within the
+     * engine's maximum input length.
+     */
+    public static final int MAX_MARKUP_LENGTH = 128;
+
+    /** Engines that are known to parse SSML passed to speak. */
+    private static final String[] SSML_ENGINES = {
+            "com.google.android.tts", "com.reecedunn.espeak", "com.googlecode.eyesfree.espeak"
+    };
+
+    /** The first platform version whose Google engine parses SSML. */
+    private static final int GOOGLE_SSML_SDK = 21;
+
+    private float mPitch = 1.0f;
+    private float mRate = 1.0f;
+    private int mParagraphPause = DEFAULT_PARAGRAPH_PAUSE;
+    private int mLinePause = DEFAULT_LINE_PAUSE;
+
+    /**
+     * @param engine The package name of a speech engine, or {@code null}.
+     * @return {@code true} if the engine is known to parse SSML.
+     */
+    public static boolean isSupported(String engine) {
+        if (engine == null) {
+            return false;
+        }
+
+        if (engine.equals(SSML_ENGINES[0])) {
+            return (Build.VERSION.SDK_INT >= GOOGLE_SSML_SDK);
+        }
+
+        for (String ssmlEngine : SSML_ENGINES) {
+            if (ssmlEngine.equals(engine)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets the prosody applied to each unit. When the markup carries the
+     * prosody, the engine itself should be left at its normal pitch and rate.
+     *
+     * @param pitch The pitch, where {@code 1.0} is normal.
+     * @param rate The speech rate, where {@code 1.0} is normal.
+     */
+    public void setProsody(float pitch, float rate) {
+        mPitch = pitch;
+        mRate = rate;
+    }
+
+    /**
+     * Sets the pauses inserted after paragraphs and line breaks.
+     *
+     * @param paragraphPause The pause after a blank line, in milliseconds.
+     * @param linePause The pause after a single line break, in milliseconds.
+     */
+    public void setPauses(int paragraphPause, int linePause) {
+        mParagraphPause = paragraphPause;
+        mLinePause = linePause;
+    }
+
+    /**
+     * Returns the pause that should follow a unit, from the line breaks in
+     * the whitespace at the end of its range.
+     *
+     * @param text The text containing the unit.
+     * @param start The start of the unit.
+     * @param end The offset following the unit and any whitespace after it.
+     * @return The pause in milliseconds, or {@code 0} if the unit doesn't end
+     *         a line.
+     */
+    public int getPauseAfter(CharSequence text, int start, int end) {
+        int lineBreaks = 0;
+
+        for (int i = (end - 1); i >= start; i--) {
+            final char c = text.charAt(i);
+
+            if (c == '\n') {
+                lineBreaks++;
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+        }
+
+        if (lineBreaks >= 2) {
+            return mParagraphPause;
+        } else if (lineBreaks == 1) {
+            return mLinePause;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @param c A character of a unit.
+     * @return The number of characters that represent it in the markup.
+     */
+    public static int getEscapedLength(char c) {
+        switch (c) {
+            case '&':
+                return 5;
+            case '<':
+            case '>':
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Builds the markup for a unit.
+     *
+     * @param text The text of the unit.
+     * @param pause The pause after the unit, in milliseconds.
+     * @return The markup, which maps offsets back to the text.
+     */
+    public Result build(String text, int pause) {
+        return build(text, pause, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds the markup for a unit, keeping it within a maximum length.
+     * Characters that need escaping are replaced with spaces once escaping
+     * them would make the markup too long, so a unit no longer than the
+     * maximum less {@link #MAX_MARKUP_LENGTH} always fits.
+     *
+     * @param text The text of the unit.
+     * @param pause The pause after the unit, in milliseconds.
+     * @param maxLength The maximum length of the markup.
+     * @return The markup, which maps offsets back to the text.
+     */
+    public Result build(String text, int pause, int maxLength) {
+        final StringBuilder markup = new StringBuilder(text.length() + 96);
+
+        markup.append("<speak><prosody pitch=\"").append(formatPercent(mPitch - 1.0f))
+                .append("\" rate=\"").append(String.format(Locale.US, "%.2f", mRate))
+                .append("\">");
+
+        final String closing = "</prosody>"
+                + ((pause > 0) ? ("<break time=\"" + pause + "ms\"/>") : "") + "</speak>";
+        final int textStart = markup.length();
+        final int[] offsets = new int[(text.length() * 5) + 1];
+
+        // The characters available for escapes, beyond one for each
+        // character of the text.
+        long escapeBudget = ((long) maxLength - textStart - text.length() - closing.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            final int length = markup.length();
+            final int extra = (getEscapedLength(c) - 1);
+
+            if ((extra > 0) && (extra > escapeBudget)) {
+                markup.append(' ');
+            } else {
+                escapeBudget -= extra;
+
+                switch (c) {
+                    case '&':
+                        markup.append("&amp;");
+                        break;
+                    case '<':
+                        markup.append("&lt;");
+                        break;
+                    case '>':
+                        markup.append("&gt;");
+                        break;
+                    default:
+                        markup.append(c);
+                        break;
+                }
+            }
+
+            for (int j = length; j < markup.length(); j++) {
+                offsets[j - textStart] = i;
+            }
+        }
+
+        final int textEnd = markup.length();
+
+        markup.append(closing);
+
+        return new Result(markup.toString(), offsets, textStart, textEnd, text.length(), pause);
+    }
+
+    private static String formatPercent(float change) {
+        final int percent = Math.round(change * 100);
+
+        return ((percent >= 0) ? "+" : "") + percent + "%";
+    }
+
+    /**
+     * The markup for a unit of text.
+     */
+    public static class Result {
+        /** The markup. */
+        public final String text;
+
+        /** The pause after the unit, in milliseconds. */
+        public final int pause;
+
+        private final int[] mOffsets;
+        private final int mTextStart;
+        private final int mTextEnd;
+        private final int mOriginalLength;
+
+        private Result(String text, int[] offsets, int textStart, int textEnd,
+                int originalLength, int pause) {
+            this.text = text;
+            this.pause = pause;
+            mOffsets = offsets;
+            mTextStart = textStart;
+            mTextEnd = textEnd;
+            mOriginalLength = originalLength;
+        }
+
+        /**
+         * Maps an offset in the markup to the text it was built from. Offsets
+         * within an escaped character map to that character, and offsets
+         * within the surrounding tags map to the nearest end of the text.
+         *
+         * @param offset An offset in the markup.
+         * @return The corresponding offset in the text.
+         */
+        public int getOriginalOffset(int offset) {
+            if (offset <= mTextStart) {
+                return 0;
+            } else if (offset >= mTextEnd) {
+                return mOriginalLength;
+            }
+
+            return mOffsets[offset - mTextStart];
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import de.l3s.boilerpipe.BoilerpipeProcessingException;
+import de.l3s.boilerpipe.document.TextBlock;
+import de.l3s.boilerpipe.document.TextDocument;
+import de.l3s.boilerpipe.filters.english.NumWordsRulesClassifier;
+import de.l3s.boilerpipe.filters.english.TerminatingBlocksFinder;
+import de.l3s.boilerpipe.labels.DefaultLabels;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLContentHandler;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLParser;
+
+/**
+ * Extracts the article text from an HTML page with boilerpipe, while the
+ * page is still being read, so the first paragraphs can be spoken before the
+ * rest has arrived.
+ * <p>
+ * The page is parsed as a stream by nekohtml, and each text block is
+ * classified as soon as the block that follows it is known, using the same
+ * word-count rules as boilerpipe's {@code ArticleExtractor}. Extraction stops at a block that
+ * marks the end of the article, such as a comments heading, once enough
+ * content has been found. Rules that need the whole page, such as keeping
+ * only the largest run of content, aren't applied.
+ */
+public class StreamingArticleExtractor extends PageExtractor {
+    /** The content words required before an end-of-text block is honored. */
+    private static final int MIN_WORDS_BEFORE_END = 60;
+
+    public StreamingArticleExtractor(ParagraphListener listener) {
+        super(listener);
+    }
+
+    @Override
+    public boolean extract(InputStream in, String charset) throws IOException {
+        final InputSource source = new InputSource(in);
+
+        if (charset != null) {
+            source.setEncoding(charset);
+        }
+
+        return extract(source);
+    }
+
+    /**
+     * Extracts the article text from a page. The source is read on the
+     * calling thread, and the listener is called on the same thread.
+     *
+     * @param source The page to read. If no encoding is set, the encoding is
+     *            taken from the page or assumed to be Windows-1252.
+     * @return {@code true} if the whole page was read, or {@code false} if
+     *         extraction stopped early.
+     */
+    public boolean extract(InputSource source) throws IOException {
+        final BlockHandler handler = new BlockHandler();
+
+        try {
+            new BoilerpipeHTMLParser(handler).parse(source);
+        } catch (final StopException e) {
+            return false;
+        } catch (final SAXException e) {
+            throw new IOException(e.toString());
+        }
+
+        return true;
+    }
+
+    /**
+     * Classifies text blocks as the parser produces them. A block is held
+     * back until the next block arrives, since the classifier looks at the
+     * blocks on both sides.
+     */
+    private class BlockHandler extends BoilerpipeHTMLContentHandler {
+        private final Classifier mClassifier = new Classifier();
+
+        private TextBlock mPrevious = TextBlock.EMPTY_START;
+        private TextBlock mCurrent;
+
+        /** The number of words in paragraphs emitted so far. */
+        private int mContentWords = 0;
+
+        /** Whether the listener or an end-of-text block stopped extraction. */
+        private boolean mStopped = false;
+
+        @Override
+        protected void addTextBlock(TextBlock block) {
+            super.addTextBlock(block);
+
+            if (mCurrent != null) {
+                classify(block);
+            }
+
+            mPrevious = mCurrent;
+            mCurrent = block;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            super.startElement(uri, localName, qName, atts);
+
+            // Adding a block can't throw, so the parser is stopped at the
+            // next element instead.
+            if (mStopped) {
+                throw new StopException();
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            super.endElement(uri, localName, qName);
+
+            if (mStopped) {
+                throw new StopException();
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            super.endDocument();
+
+            if (mCurrent != null) {
+                classify(TextBlock.EMPTY_END);
+                mCurrent = null;
+            }
+
+            if (mStopped) {
+                throw new StopException();
+            }
+        }
+
+        /**
+         * Classifies the current block, which the specified block follows,
+         * and passes it to the listener if it is content.
+         */
+        private void classify(TextBlock next) {
+            if (mStopped) {
+                return;
+            }
+
+            if (isEndOfText(mCurrent) && (mContentWords >= MIN_WORDS_BEFORE_END)) {
+                mStopped = true;
+                return;
+            }
+
+            mClassifier.classifyBlock(mPrevious, mCurrent, next);
+
+            if (!mCurrent.isContent()) {
+                return;
+            }
+
+            mContentWords += mCurrent.getNumWords();
+
+            if (!mListener.onParagraphExtracted(mCurrent.getText())) {
+                mStopped = true;
+            }
+        }
+
+        private boolean isEndOfText(TextBlock block) {
+            try {
+                TerminatingBlocksFinder.getInstance().process(
+                        new TextDocument(Collections.singletonList(block)));
+            } catch (final BoilerpipeProcessingException e) {
+                return false;
+            }
+
+            return block.hasLabel(DefaultLabels.INDICATES_END_OF_TEXT);
+        }
+    }
+
+    /**
+     * Exposes the word-count rules used by {@code ArticleExtractor} for a
+     * single block.
+     */
+    private static class Classifier extends NumWordsRulesClassifier {
+        public void classifyBlock(TextBlock previous, TextBlock current, TextBlock next) {
+            classify(previous, current, next);
+        }
+    }
+
+    /**
+     * Thrown to stop the parser once extraction is complete.
+     */
+    private static class StopException extends SAXException {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,558 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.HashMap;
+
+/**
+ * Rewrites text into a form that engines speak quickly and cleanly. Each
+ * enabled rule expands or strips one kind of troublesome content, and the
+ * text is processed in a single linear pass.
+ * <p>
+ * The result keeps a map from each normalized character back to the
+ * character it came from, so positions reported by the engine can be
+ * translated into positions in the original text.
+ * <p>
+ * A normalizer is not thread-safe, but its results may be used on any thread.
+ */
+public class TextNormalizer {
+    /** Replaces URLs with their host name. */
+    public static final int RULE_URLS = 0x1;
+
+    /** Spells out long runs of digits, such as account or phone numbers. */
+    public static final int RULE_DIGITS = 0x2;
+
+    /** Collapses repeated punctuation and strips separator lines. */
+    public static final int RULE_PUNCTUATION = 0x4;
+
+    /** Strips HTML tags and citation marks, and decodes HTML entities. */
+    public static final int RULE_MARKUP = 0x8;
+
+    /** Strips emoji and pictographic symbols. */
+    public static final int RULE_EMOJI = 0x10;
+
+    /** All of the rules. */
+    public static final int RULES_ALL = (RULE_URLS | RULE_DIGITS | RULE_PUNCTUATION
+            | RULE_MARKUP | RULE_EMOJI);
+
+    /** The shortest run of digits that is spelled out. */
+    private static final int LONG_DIGIT_RUN = 8;
+
+    /** The shortest run of separator characters that is stripped. */
+    private static final int SEPARATOR_RUN = 3;
+
+    /** The longest tag or entity that is recognized as markup. */
+    private static final int MAX_TAG_LENGTH = 256;
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private static final HashMap<String, Character> ENTITIES = new HashMap<String, Character>();
+
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", ' ');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("ldquo", '\u201C');
+        ENTITIES.put("rdquo", '\u201D');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("copy", '\u00A9');
+    }
+
+    private int mRules;
+
+    /** The text being normalized and the range being read. */
+    private CharSequence mText;
+    private int mStart;
+    private int mEnd;
+
+    /** The output and the original offset of each output character. */
+    private StringBuilder mOutput;
+    private int[] mOffsets;
+
+    /**
+     * @param rules The rules to apply, as a combination of the {@code RULE}
+     *            flags.
+     */
+    public TextNormalizer(int rules) {
+        mRules = rules;
+    }
+
+    public void setRules(int rules) {
+        mRules = rules;
+    }
+
+    public int getRules() {
+        return mRules;
+    }
+
+    /**
+     * Normalizes a range of text.
+     *
+     * @param text The text to normalize.
+     * @param start The start of the range.
+     * @param end The end of the range.
+     * @return The normalized text, with offsets relative to {@code start}.
+     */
+    public Result normalize(CharSequence text, int start, int end) {
+        mText = text;
+        mStart = start;
+        mEnd = end;
+        mOutput = new StringBuilder(end - start);
+        mOffsets = new int[(end - start) + 1];
+
+        int i = start;
+
+        while (i < end) {
+            final int next = normalizeAt(i);
+
+            if (next > i) {
+                i = next;
+            } else {
+                append(text.charAt(i), i);
+                i++;
+            }
+        }
+
+        final Result result = new Result(mOutput.toString(), mOffsets, (end - start));
+
+        mText = null;
+        mOutput = null;
+        mOffsets = null;
+
+        return result;
+    }
+
+    /**
+     * Applies the first rule that matches at an offset.
+     *
+     * @return The offset following the content that was handled, or
+     *         {@code offset} if no rule matched.
+     */
+    private int normalizeAt(int offset) {
+        final char c = mText.charAt(offset);
+        int next = offset;
+
+        if (((mRules & RULE_URLS) != 0)
+                && ((Character.toLowerCase(c) == 'h') || (Character.toLowerCase(c) == 'w'))) {
+            next = normalizeUrl(offset);
+        } else if (((mRules & RULE_DIGITS) != 0) && isDigit(c)) {
+            next = normalizeDigits(offset);
+        } else if (((mRules & RULE_MARKUP) != 0) && ((c == '<') || (c == '&') || (c == '['))) {
+            next = normalizeMarkup(offset);
+        } else if (((mRules & RULE_EMOJI) != 0) && (c >= '\u200D')) {
+            next = normalizeEmoji(offset);
+        }
+
+        if ((next == offset) && ((mRules & RULE_PUNCTUATION) != 0)) {
+            next = normalizePunctuation(offset);
+        }
+
+        return next;
+    }
+
+    /**
+     * Replaces a URL starting with a scheme or {@code www.} with its host
+     * name, without the {@code www.} prefix.
+     */
+    private int normalizeUrl(int offset) {
+        if ((offset > mStart) && Character.isLetterOrDigit(mText.charAt(offset - 1))) {
+            return offset;
+        }
+
+        int host;
+
+        if (regionMatches(offset, "http://")) {
+            host = offset + 7;
+        } else if (regionMatches(offset, "https://")) {
+            host = offset + 8;
+        } else if (regionMatches(offset, "www.")) {
+            host = offset;
+        } else {
+            return offset;
+        }
+
+        int end = host;
+
+        while ((end < mEnd) && !isUrlTerminator(mText.charAt(end))) {
+            end++;
+        }
+
+        // Trailing punctuation belongs to the sentence.
+        while ((end > host) && isTrailingPunctuation(mText.charAt(end - 1))) {
+            end--;
+        }
+
+        if (regionMatches(host, "www.")) {
+            host += 4;
+        }
+
+        int hostEnd = host;
+
+        while ((hostEnd < end) && isHostCharacter(mText.charAt(hostEnd))) {
+            hostEnd++;
+        }
+
+        if (hostEnd == host) {
+            return offset;
+        }
+
+        appendBreak(offset);
+
+        for (int i = host; i < hostEnd; i++) {
+            append(mText.charAt(i), i);
+        }
+
+        return end;
+    }
+
+    /**
+     * Separates the digits of a long run with spaces, so they are read one at
+     * a time rather than as a very large number.
+     */
+    private int normalizeDigits(int offset) {
+        if ((offset > mStart) && isDigit(mText.charAt(offset - 1))) {
+            return offset;
+        }
+
+        int end = offset;
+
+        while ((end < mEnd) && isDigit(mText.charAt(end))) {
+            end++;
+        }
+
+        if ((end - offset) < LONG_DIGIT_RUN) {
+            for (int i = offset; i < end; i++) {
+                append(mText.charAt(i), i);
+            }
+
+            return end;
+        }
+
+        for (int i = offset; i < end; i++) {
+            if (i > offset) {
+                append(' ', i);
+            }
+
+            append(mText.charAt(i), i);
+        }
+
+        return end;
+    }
+
+    /**
+     * Strips an HTML tag or a citation mark such as {@code [12]}, or decodes
+     * an HTML entity.
+     */
+    private int normalizeMarkup(int offset) {
+        final char c = mText.charAt(offset);
+        final int limit;
+
+        switch (c) {
+            case '<': {
+                if ((offset + 1 >= mEnd) || !isTagStart(mText.charAt(offset + 1))) {
+                    return offset;
+                }
+
+                limit = Math.min(mEnd, offset + MAX_TAG_LENGTH);
+
+                for (int i = offset + 1; i < limit; i++) {
+                    final char t = mText.charAt(i);
+
+                    if (t == '>') {
+                        appendBreak(offset);
+                        return (i + 1);
+                    } else if (t == '<') {
+                        break;
+                    }
+                }
+
+                return offset;
+            }
+            case '&': {
+                limit = Math.min(mEnd, offset + MAX_ENTITY_LENGTH);
+
+                for (int i = offset + 1; i < limit; i++) {
+                    if (mText.charAt(i) == ';') {
+                        final char decoded = decodeEntity(mText.subSequence(offset + 1, i)
+                                .toString());
+
+                        if (decoded == 0) {
+                            return offset;
+                        }
+
+                        append(decoded, offset);
+                        return (i + 1);
+                    }
+                }
+
+                return offset;
+            }
+            case '[': {
+                int i = offset + 1;
+
+                while ((i < mEnd) && isDigit(mText.charAt(i))) {
+                    i++;
+                }
+
+                if ((i == offset + 1) && regionMatches(i, "edit")) {
+                    i += 4;
+                }
+
+                if ((i > offset + 1) && (i < mEnd) && (mText.charAt(i) == ']')) {
+                    return (i + 1);
+                }
+
+                return offset;
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     * Strips an emoji, including any modifiers and joiners that follow it.
+     */
+    private int normalizeEmoji(int offset) {
+        int end = offset;
+
+        while (end < mEnd) {
+            final int codePoint = codePointAt(end);
+
+            if (!isEmoji(codePoint)) {
+                break;
+            }
+
+            end += Character.charCount(codePoint);
+        }
+
+        if (end > offset) {
+            appendBreak(offset);
+        }
+
+        return end;
+    }
+
+    /**
+     * Returns the code point at an offset, without reading past the end of
+     * the range. A surrogate pair split by the end of the range is returned
+     * as its high surrogate.
+     */
+    private int codePointAt(int offset) {
+        final char c = mText.charAt(offset);
+
+        if (Character.isHighSurrogate(c) && ((offset + 1) < mEnd)) {
+            final char low = mText.charAt(offset + 1);
+
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(c, low);
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Collapses repeated sentence punctuation, and strips runs of separator
+     * characters such as {@code -----} or {@code =====}.
+     */
+    private int normalizePunctuation(int offset) {
+        final char c = mText.charAt(offset);
+
+        if (!isRepeatable(c) || (offset + 1 >= mEnd) || (mText.charAt(offset + 1) != c)) {
+            return offset;
+        }
+
+        int end = offset + 1;
+
+        while ((end < mEnd) && (mText.charAt(end) == c)) {
+            end++;
+        }
+
+        final int length = (end - offset);
+
+        switch (c) {
+            case '!':
+            case '?':
+                append(c, offset);
+                break;
+            case '.':
+                // Keep an ellipsis.
+                for (int i = offset; i < Math.min(end, offset + 3); i++) {
+                    append(c, i);
+                }
+                break;
+            default:
+                if (length < SEPARATOR_RUN) {
+                    for (int i = offset; i < end; i++) {
+                        append(c, i);
+                    }
+                } else {
+                    appendBreak(offset);
+                }
+                break;
+        }
+
+        return end;
+    }
+
+    private void append(char c, int offset) {
+        final int index = mOutput.length();
+
+        if (index + 1 >= mOffsets.length) {
+            final int[] offsets = new int[mOffsets.length * 2];
+            System.arraycopy(mOffsets, 0, offsets, 0, index);
+            mOffsets = offsets;
+        }
+
+        mOutput.append(c);
+        mOffsets[index] = (offset - mStart);
+    }
+
+    /**
+     * Appends a space in place of stripped content, unless the output already
+     * ends with whitespace.
+     */
+    private void appendBreak(int offset) {
+        final int length = mOutput.length();
+
+        if ((length > 0) && !Character.isWhitespace(mOutput.charAt(length - 1))) {
+            append(' ', offset);
+        }
+    }
+
+    private boolean regionMatches(int offset, String prefix) {
+        if (offset + prefix.length() > mEnd) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(mText.charAt(offset + i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static char decodeEntity(String name) {
+        if (name.startsWith("#")) {
+            try {
+                final int codePoint;
+
+                if (name.startsWith("#x") || name.startsWith("#X")) {
+                    codePoint = Integer.parseInt(name.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(name.substring(1));
+                }
+
+                return ((codePoint > 0) && (codePoint < 0xD800)) ? (char) codePoint : 0;
+            } catch (final NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        final Character c = ENTITIES.get(name);
+
+        return (c == null) ? 0 : c;
+    }
+
+    private static boolean isDigit(char c) {
+        return ((c >= '0') && (c <= '9'));
+    }
+
+    private static boolean isTagStart(char c) {
+        return (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || (c == '/')
+                || (c == '!'));
+    }
+
+    private static boolean isUrlTerminator(char c) {
+        return (Character.isWhitespace(c) || (c == '<') || (c == '>') || (c == '"'));
+    }
+
+    private static boolean isTrailingPunctuation(char c) {
+        return ((c == '.') || (c == ',') || (c == ';') || (c == ':') || (c == '!')
+                || (c == '?') || (c == ')') || (c == '\''));
+    }
+
+    private static boolean isHostCharacter(char c) {
+        return (Character.isLetterOrDigit(c) || (c == '.') || (c == '-'));
+    }
+
+    private static boolean isRepeatable(char c) {
+        switch (c) {
+            case '!':
+            case '?':
+            case '.':
+            case '-':
+            case '=':
+            case '_':
+            case '*':
+            case '~':
+            case '#':
+            case '+':
+            case '/':
+            case '\\':
+            case '|':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isEmoji(int codePoint) {
+        return ((codePoint >= 0x1F000) && (codePoint <= 0x1FAFF)) // Pictographs.
+                || ((codePoint >= 0x2600) && (codePoint <= 0x27BF)) // Symbols, dingbats.
+                || ((codePoint >= 0x2B00) && (codePoint <= 0x2BFF)) // Arrows, stars.
+                || ((codePoint >= 0xFE00) && (codePoint <= 0xFE0F)) // Variation selectors.
+                || ((codePoint >= 0xE0020) && (codePoint <= 0xE007F)) // Tags.
+                || (codePoint == 0x200D) // Zero width joiner.
+                || (codePoint == 0x20E3); // Combining keycap.
+    }
+
+    /**
+     * Normalized text and the map back to the original text.
+     */
+    public static class Result {
+        /** The normalized text. */
+        public final String text;
+
+        private final int[] mOffsets;
+        private final int mOriginalLength;
+
+        private Result(String text, int[] offsets, int originalLength) {
+            this.text = text;
+            mOffsets = offsets;
+            mOriginalLength = originalLength;
+        }
+
+        /**
+         * Maps an offset in the normalized text to the original text. Offsets
+         * within expanded or shortened content map to the start of that
+         * content.
+         *
+         * @param offset An offset in the normalized text, from zero to its
+         *            length.
+         * @return The corresponding offset relative to the start of the
+         *         normalized range.
+         */
+        public int getOriginalOffset(int offset) {
+            if (offset <= 0) {
+                return 0;
+            } else if (offset >= text.length()) {
+                return mOriginalLength;
+            }
+
+            return mOffsets[offset];
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
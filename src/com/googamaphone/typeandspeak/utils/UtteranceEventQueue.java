@@ -0,0 +1,190 @@
+
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.googamaphone.compat.TextToSpeechCompatUtils.UtteranceListener;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Moves utterance events from the engine's callback thread to a handler's
+ * thread. Events are written to a fixed-size ring buffer without locking or
+ * allocating, and the handler drains all pending events at most once per
+ * display frame.
+ * <p>
+ * The queue supports a single producer, which holds for callbacks from a
+ * single engine, and a single consumer on the handler's thread. If the
+ * producer gets a full buffer ahead of the consumer, further events are
+ * dropped and the consumer is notified through
+ * {@link EventConsumer#onEventsDropped()}.
+ */
+public class UtteranceEventQueue implements UtteranceListener {
+    public static final int EVENT_STARTED = 1;
+    public static final int EVENT_DONE = 2;
+    public static final int EVENT_ERROR = 3;
+    public static final int EVENT_STOPPED = 4;
+    public static final int EVENT_RANGE_STARTED = 5;
+
+    /** The number of slots in the buffer, which must be a power of two. */
+    private static final int CAPACITY = 256;
+    private static final int MASK = (CAPACITY - 1);
+
+    /** The minimum interval between drains. */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private final int[] mTypes = new int[CAPACITY];
+    private final String[] mUtteranceIds = new String[CAPACITY];
+    private final int[] mArg1s = new int[CAPACITY];
+    private final int[] mArg2s = new int[CAPACITY];
+
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final Handler mHandler;
+    private final EventConsumer mConsumer;
+
+    /** The next slot to write. Only written by the producer. */
+    private volatile int mTail = 0;
+
+    /** The next slot to read. Only written by the consumer. */
+    private volatile int mHead = 0;
+
+    private volatile boolean mOverflowed = false;
+    private volatile long mLastDrainTime = 0;
+
+    /**
+     * Creates a new event queue.
+     *
+     * @param handler The handler on whose thread events are consumed.
+     * @param consumer The consumer of events.
+     */
+    public UtteranceEventQueue(Handler handler, EventConsumer consumer) {
+        mHandler = handler;
+        mConsumer = consumer;
+    }
+
+    @Override
+    public void onUtteranceStarted(String utteranceId) {
+        offer(EVENT_STARTED, utteranceId, 0, 0);
+    }
+
+    @Override
+    public void onUtteranceDone(String utteranceId) {
+        offer(EVENT_DONE, utteranceId, 0, 0);
+    }
+
+    @Override
+    public void onUtteranceError(String utteranceId, int errorCode) {
+        offer(EVENT_ERROR, utteranceId, errorCode, 0);
+    }
+
+    @Override
+    public void onUtteranceStopped(String utteranceId, boolean interrupted) {
+        offer(EVENT_STOPPED, utteranceId, (interrupted ? 1 : 0), 0);
+    }
+
+    @Override
+    public void onUtteranceRangeStarted(String utteranceId, int start, int end) {
+        offer(EVENT_RANGE_STARTED, utteranceId, start, end);
+    }
+
+    /**
+     * Discards all pending events, along with any pending notification of
+     * dropped events. Must be called on the handler's thread.
+     */
+    public void clear() {
+        final int tail = mTail;
+
+        for (int head = mHead; head != tail; head++) {
+            mUtteranceIds[head & MASK] = null;
+        }
+
+        mHead = tail;
+        mOverflowed = false;
+    }
+
+    private void offer(int type, String utteranceId, int arg1, int arg2) {
+        final int tail = mTail;
+
+        if ((tail - mHead) == CAPACITY) {
+            mOverflowed = true;
+        } else {
+            final int slot = (tail & MASK);
+
+            mTypes[slot] = type;
+            mUtteranceIds[slot] = utteranceId;
+            mArg1s[slot] = arg1;
+            mArg2s[slot] = arg2;
+
+            // Publishes the slot to the consumer.
+            mTail = (tail + 1);
+        }
+
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            final long drainTime = Math.max(SystemClock.uptimeMillis(), mLastDrainTime
+                    + FRAME_INTERVAL_MS);
+
+            mHandler.postAtTime(mDrainRunnable, drainTime);
+        }
+    }
+
+    private void drain() {
+        // Clear the flag first, so that events written after reading the tail
+        // schedule another drain.
+        mDrainScheduled.set(false);
+        mLastDrainTime = SystemClock.uptimeMillis();
+
+        final int tail = mTail;
+        int head = mHead;
+
+        while (head != tail) {
+            final int slot = (head & MASK);
+            final int type = mTypes[slot];
+            final String utteranceId = mUtteranceIds[slot];
+            final int arg1 = mArg1s[slot];
+            final int arg2 = mArg2s[slot];
+
+            mUtteranceIds[slot] = null;
+            mHead = ++head;
+
+            mConsumer.onUtteranceEvent(type, utteranceId, arg1, arg2);
+
+            if (mHead != head) {
+                // The consumer cleared the queue.
+                return;
+            }
+        }
+
+        if (mOverflowed) {
+            mOverflowed = false;
+            mConsumer.onEventsDropped();
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Consumes events on the handler's thread.
+     */
+    public interface EventConsumer {
+        /**
+         * @param type One of the {@code EVENT} constants.
+         * @param utteranceId The utterance identifier.
+         * @param arg1 The error code for {@link #EVENT_ERROR}, {@code 1} if
+         *            interrupted for {@link #EVENT_STOPPED}, or the range start
+         *            for {@link #EVENT_RANGE_STARTED}.
+         * @param arg2 The range end for {@link #EVENT_RANGE_STARTED}.
+         */
+        public void onUtteranceEvent(int type, String utteranceId, int arg1, int arg2);
+
+        /**
+         * Called when events were dropped because the consumer fell behind.
+         */
+        public void onEventsDropped();
+    }
+}